@@ -20,8 +20,10 @@
 package it.geoframe.blogspot.whetgeo2d.data;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import it.geoframe.blogspot.closureequation.closureequation.ClosureEquation;
 import it.geoframe.blogspot.closureequation.closureequation.Parameters;
@@ -32,7 +34,11 @@ import it.geoframe.blogspot.closureequation.conductivitymodel.UnsaturatedHydraul
 import it.geoframe.blogspot.closureequation.equationstate.EquationState;
 import it.geoframe.blogspot.closureequation.interfaceconductivity.InterfaceConductivity;
 import it.geoframe.blogspot.closureequation.interfaceconductivity.SimpleInterfaceConductivityFactory;
+import it.geoframe.blogspot.whetgeo2d.equationstate.BatchedEquationState;
 import it.geoframe.blogspot.whetgeo2d.equationstate.EquationStateFactory;
+import it.geoframe.blogspot.whetgeo2d.equationstate.TabulatedClosureEquation;
+import it.geoframe.blogspot.whetgeo2d.equationstate.TabulatedConductivityEquation;
+import it.geoframe.blogspot.whetgeo2d.parallel.ParallelLoop;
 import oms3.annotations.Author;
 import oms3.annotations.Bibliography;
 import oms3.annotations.Description;
@@ -52,6 +58,7 @@ import oms3.annotations.License;
 public class ComputeQuantitiesRichards {
 
 
+	private SimulationContext context;
 	private ProblemQuantities variables;
 	private Geometry geometry;
 	private Parameters parameters;
@@ -80,54 +87,230 @@ public class ComputeQuantitiesRichards {
 	private SimpleInterfaceConductivityFactory interfaceConductivityFactory;
 
 
-	private double sideFlux;
 	private double sumBoundaryFlux;
-
-	public ComputeQuantitiesRichards(String[] typeClosureEquation, String[] typeEquationState, String[] typeUHCModel, String typeUHCTemperatureModel,
+	private double inverseTimeDelta;
+	
+	/*
+	 * Ensemble members and their water volumes and boundary fluxes, used for the volume error of each member
+	 */
+	private int members;
+	private double[] memberWaterVolume;
+	private double[] memberWaterVolumeNew;
+	private double[] memberBoundaryFlux;
+	
+	/*
+	 * Element loops over the closure equations. They run on the fork/join pool, if any,
+	 * with chunks of CHUNK_SIZE elements that do not depend on the number of threads.
+	 */
+	private static final int CHUNK_SIZE = 512;
+	private ForkJoinPool pool;
+	private ParallelLoop waterVolumeLoop;
+	private ParallelLoop waterVolumeNewLoop;
+	private ParallelLoop thetasLoop;
+	private ParallelLoop thetasNewLoop;
+	private ParallelLoop saturationDegreeNewLoop;
+	private ParallelLoop hydraulicConductivityLoop;
+	private ParallelLoop postStepLoop;
+	private ParallelLoop darcyVelocityLoop;
+	
+	@Description("Partial sums of the water volume, one for each chunk, added in chunk order")
+	private double[] partialWaterVolume;
+	
+	/*
+	 * The closure equation and conductivity models keep intermediate results in their fields,
+	 * so each worker thread evaluates its own replica of them.
+	 */
+	private String[] typeClosureEquation;
+	private String[] typeEquationState;
+	private String[] typeUHCModel;
+	private String typeUHCTemperatureModel;
+	private Models primaryModels;
+	private ThreadLocal<Models> threadModels;
+	
+	/*
+	 * Incremental conductivity: the hydraulic conductivity of an element is recomputed only if its water suction
+	 * changed by more than conductivityUpdateTolerance, or its temperature changed, since the last evaluation.
+	 * The interface conductivity and the transmissibility are then recomputed only on the edges of these elements,
+	 * listed in changedEdges. changedEdgeNumber is -1 when all the edges changed.
+	 */
+	private boolean incrementalConductivity;
+	private boolean interfaceConductivityComputed;
+	private double conductivityUpdateTolerance;
+	private double[] conductivityWaterSuctions;
+	private double[] conductivityTemperatures;
+	private boolean[] changedElements;
+	private int[] changedEdges;
+	private int changedEdgeNumber = -1;
+	private int[] edgeStamp;
+	private int stamp;
+	private double transmissibilityTimeDelta = Double.NaN;
+	
+	/*
+	 * Tables of the tabulated closure equations of each equation state, built by the first models and shared by the ones of the other threads
+	 */
+	private TabulatedClosureEquation[] closureTables;
+	
+	/*
+	 * Tables of log(K) of each equation state, shared by the models of all the threads.
+	 * The tables are not used when conductivityTableTolerance is 0.
+	 */
+	private double conductivityTableTolerance;
+	private TabulatedConductivityEquation[] conductivityTables;
+	
+	
+	
+	public ComputeQuantitiesRichards(SimulationContext context, String[] typeClosureEquation, String[] typeEquationState, String[] typeUHCModel, String typeUHCTemperatureModel,
 			String interfaceHydraulicConductivityModel) {
-
-		variables = ProblemQuantities.getInstance();
-		geometry = Geometry.getInstance();
-		parameters = Parameters.getInstance();
-		topology = Topology.getInstance();
+		
+		this(context, typeClosureEquation, typeEquationState, typeUHCModel, typeUHCTemperatureModel, interfaceHydraulicConductivityModel, null);
+		
+	}
+	
+	
+	
+	/**
+	 * @param pool fork/join pool used for the element loops, null for serial execution
+	 */
+	public ComputeQuantitiesRichards(SimulationContext context, String[] typeClosureEquation, String[] typeEquationState, String[] typeUHCModel, String typeUHCTemperatureModel,
+			String interfaceHydraulicConductivityModel, ForkJoinPool pool) {
+
+		this.context = context;
+		variables = context.variables;
+		geometry = context.geometry;
+		parameters = context.parameters;
+		topology = context.topology;
+		members = context.members;
+		
+		variables.memberErrorVolume = new double[members];
+		memberWaterVolume = new double[members];
+		memberWaterVolumeNew = new double[members];
+		memberBoundaryFlux = new double[members];
+		
+		this.typeClosureEquation = typeClosureEquation;
+		this.typeEquationState = typeEquationState;
+		this.typeUHCModel = typeUHCModel;
+		this.typeUHCTemperatureModel = typeUHCTemperatureModel;
 
 		soilWaterRetentionCurveFactory = new SoilWaterRetentionCurveFactory();
-		closureEquation = new ArrayList<ClosureEquation>();
+		equationStateFactory = new EquationStateFactory();
+		conductivityEquationFactory = new ConductivityEquationFactory();
+		unsaturatedHydraulicConductivityTemperatureFactory = new UnsaturatedHydraulicConductivityTemperatureFactory();
+		
+		closureTables = new TabulatedClosureEquation[typeEquationState.length];
+		primaryModels = createModels();
+		closureEquation = primaryModels.closureEquation;
+		equationState = primaryModels.equationState;
+		hydraulicConductivity = primaryModels.hydraulicConductivity;
+
+		interfaceConductivityFactory = new SimpleInterfaceConductivityFactory();
+		interfaceConductivity = interfaceConductivityFactory.createInterfaceConductivity(interfaceHydraulicConductivityModel);
+		
+		this.pool = pool;
+		threadModels = ThreadLocal.withInitial(this::createModels);
+		
+		waterVolumeLoop = new ParallelLoop(pool, 1, topology.elementNumber, CHUNK_SIZE, this::computeWaterVolume);
+		waterVolumeNewLoop = new ParallelLoop(pool, 1, topology.elementNumber, CHUNK_SIZE, this::computeWaterVolumeNew);
+		thetasLoop = new ParallelLoop(pool, 1, topology.elementNumber, CHUNK_SIZE, this::computeThetas);
+		thetasNewLoop = new ParallelLoop(pool, 1, topology.elementNumber, CHUNK_SIZE, this::computeThetasNew);
+		saturationDegreeNewLoop = new ParallelLoop(pool, 1, topology.elementNumber, CHUNK_SIZE, this::computeSaturationDegreeNew);
+		hydraulicConductivityLoop = new ParallelLoop(pool, 1, topology.elementNumber, CHUNK_SIZE, this::computeHydraulicConductivity);
+		postStepLoop = new ParallelLoop(pool, 1, topology.elementNumber, CHUNK_SIZE, this::computePostStep);
+		partialWaterVolume = new double[waterVolumeLoop.getChunkNumber()];
+		darcyVelocityLoop = ParallelLoop.create(pool, 0, topology.interiorEdges.length, this::computeInteriorDarcyVelocities);
+
+	}
+	
+	
+	
+	private Models createModels() {
+		
+		Models models = new Models();
+		
+		models.closureEquation = new ArrayList<ClosureEquation>();
 		for(int i=0; i<typeClosureEquation.length; i++) {
 
-			closureEquation.add(soilWaterRetentionCurveFactory.create(typeClosureEquation[i]));
+			models.closureEquation.add(context.bind(soilWaterRetentionCurveFactory.create(typeClosureEquation[i])));
 
 		}
 
 
-		equationStateFactory = new EquationStateFactory();
-		equationState = new ArrayList<EquationState>();
+		models.equationState = new ArrayList<EquationState>();
 		for(int i=0; i<typeEquationState.length; i++) {
 
-			equationState.add(equationStateFactory.create(typeEquationState[i], closureEquation.get(i)));
+			models.equationState.add(equationStateFactory.create(typeEquationState[i], models.closureEquation.get(i), context, i, closureTables));
+		}
+		
+		/*
+		 * theta and the water volumes after the time step use the closure equations of the equation states,
+		 * so that the volume error compares volumes of the same curve when it is tabulated
+		 */
+		models.stateClosureEquation = new ArrayList<ClosureEquation>();
+		for(int i=0; i<typeEquationState.length; i++) {
+			EquationState state = models.equationState.get(i);
+			models.stateClosureEquation.add(state instanceof BatchedEquationState ? ((BatchedEquationState) state).getClosureEquation() : models.closureEquation.get(i));
 		}
 
 
-		hydraulicConductivity = new ArrayList<ConductivityEquation>();
-		conductivityEquationFactory = new ConductivityEquationFactory();
+		models.hydraulicConductivity = createConductivityModels(models.closureEquation);
+		
+		return models;
+		
+	}
+	
+	
+	
+	private List<ConductivityEquation> createConductivityModels(List<ClosureEquation> closureEquation) {
+		
+		List<ConductivityEquation> hydraulicConductivity = new ArrayList<ConductivityEquation>();
 		for(int i=0; i<typeUHCModel.length; i++) {
 
-			hydraulicConductivity.add(conductivityEquationFactory.create(typeUHCModel[i], closureEquation.get(i)));
+			ConductivityEquation conductivityEquation = conductivityEquationFactory.create(typeUHCModel[i], closureEquation.get(i));
+			if(conductivityTableTolerance > 0.0) {
+				if(conductivityTables[i] == null) {
+					conductivityTables[i] = new TabulatedConductivityEquation(conductivityEquation, closureEquation.get(i), context, i, conductivityTableTolerance);
+					conductivityEquation = conductivityTables[i];
+				} else {
+					conductivityEquation = new TabulatedConductivityEquation(conductivityEquation, closureEquation.get(i), conductivityTables[i]);
+				}
+			}
+			hydraulicConductivity.add(conductivityEquation);
 
 		}
 
 
-		unsaturatedHydraulicConductivityTemperatureFactory = new UnsaturatedHydraulicConductivityTemperatureFactory();
 		for(int i=0; i<typeUHCModel.length; i++) {
 
 			hydraulicConductivity.add(i, unsaturatedHydraulicConductivityTemperatureFactory.create(typeUHCTemperatureModel, closureEquation.get(i), hydraulicConductivity.get(i)) );
 
 		}
-
-		interfaceConductivityFactory = new SimpleInterfaceConductivityFactory();
-		interfaceConductivity = interfaceConductivityFactory.createInterfaceConductivity(interfaceHydraulicConductivityModel);
-
-
+		
+		return hydraulicConductivity;
+		
+	}
+	
+	
+	
+	/*
+	 * Models used by the current thread: the ones shared with the solver when the loops are serial
+	 */
+	private Models models() {
+		
+		if(pool == null) {
+			return primaryModels;
+		}
+		return threadModels.get();
+		
+	}
+	
+	
+	
+	private static class Models {
+		
+		List<ClosureEquation> closureEquation;
+		List<ClosureEquation> stateClosureEquation;
+		List<EquationState> equationState;
+		List<ConductivityEquation> hydraulicConductivity;
+		
 	}
 
 
@@ -138,17 +321,17 @@ public class ComputeQuantitiesRichards {
 	
 	public void computeGravityGradient() {
 		
-		for(int edge=1; edge<topology.edgeRightNeighbour.size(); edge++) {
+		for(int edge=1; edge<topology.edgeNumber; edge++) {
 			
-			if(topology.edgeRightNeighbour.get(edge)==0) {
+			if(topology.edgeRightNeighbour[edge]==0) {
 				
-				variables.gravityGradient.add( edge, (geometry.edgesCentroidsCoordinates.get(edge)[1] -
-			 			geometry.elementsCentroidsCoordinates.get(topology.edgeLeftNeighbour.get(edge))[1])/geometry.delta_j.get(edge) );
+				variables.gravityGradient[edge] = (geometry.edgesCentroidsCoordinates[edge][1] -
+			 			geometry.elementsCentroidsCoordinates[topology.edgeLeftNeighbour[edge]][1])/geometry.delta_j[edge];
 				
 			} else {
 				
-				variables.gravityGradient.add( edge, (geometry.elementsCentroidsCoordinates.get(topology.edgeRightNeighbour.get(edge))[1] -
-									 			geometry.elementsCentroidsCoordinates.get(topology.edgeLeftNeighbour.get(edge))[1])/geometry.delta_j.get(edge) );
+				variables.gravityGradient[edge] = (geometry.elementsCentroidsCoordinates[topology.edgeRightNeighbour[edge]][1] -
+									 			geometry.elementsCentroidsCoordinates[topology.edgeLeftNeighbour[edge]][1])/geometry.delta_j[edge];
 				
 			}
 		}
@@ -158,143 +341,430 @@ public class ComputeQuantitiesRichards {
 
 	public void computeWaterVolume() {
 
+		waterVolumeLoop.run();
 		variables.waterVolume = 0.0;
-		for(int element = 1; element<topology.elementEdgesSet.size(); element++) {
-			variables.volumes.set(element, equationState.get(variables.elementEquationStateID.get(element)).equationState(variables.waterSuctions.get(element), variables.temperatures.get(element), variables.elementParameterID.get(element), element));
-			variables.waterVolume += variables.volumes.get(element);
+		for(int chunk=0; chunk<partialWaterVolume.length; chunk++) {
+			variables.waterVolume += partialWaterVolume[chunk];
 		}
 
 	}
+	
+	
+	
+	private void computeWaterVolume(int chunk, int from, int to) {
+		
+		List<EquationState> equationState = models().equationState;
+		double waterVolume = 0.0;
+		for(int element = from; element<to; element++) {
+			variables.volumes[element] = equationState.get(variables.elementEquationStateID[element]).equationState(variables.waterSuctions[element], variables.temperatures[element], variables.elementParameterID[element], element);
+			waterVolume += variables.volumes[element];
+		}
+		partialWaterVolume[chunk] = waterVolume;
+		
+	}
 
 
 
 	public void computeWaterVolumeNew() {
 
+		waterVolumeNewLoop.run();
 		variables.waterVolumeNew = 0.0;
-		for(int element = 1; element<topology.elementEdgesSet.size(); element++) {
-			variables.volumesNew.set(element, equationState.get(variables.elementEquationStateID.get(element)).equationState(variables.waterSuctions.get(element), variables.temperatures.get(element), variables.elementParameterID.get(element), element));
-			variables.waterVolumeNew += variables.volumesNew.get(element);
+		for(int chunk=0; chunk<partialWaterVolume.length; chunk++) {
+			variables.waterVolumeNew += partialWaterVolume[chunk];
 		}
 
 	}
+	
+	
+	
+	private void computeWaterVolumeNew(int chunk, int from, int to) {
+		
+		List<EquationState> equationState = models().equationState;
+		double waterVolumeNew = 0.0;
+		for(int element = from; element<to; element++) {
+			variables.volumesNew[element] = equationState.get(variables.elementEquationStateID[element]).equationState(variables.waterSuctions[element], variables.temperatures[element], variables.elementParameterID[element], element);
+			waterVolumeNew += variables.volumesNew[element];
+		}
+		partialWaterVolume[chunk] = waterVolumeNew;
+		
+	}
 
 
 
 	public void computeThetas() {
 
-		for(int element = 1; element<topology.elementEdgesSet.size(); element++) {
-			variables.thetas.set(element, closureEquation.get(variables.elementEquationStateID.get(element)).f(variables.waterSuctions.get(element), variables.temperatures.get(element), variables.elementParameterID.get(element)));
-		}
+		thetasLoop.run();
 
 	}
+	
+	
+	
+	private void computeThetas(int chunk, int from, int to) {
+		
+		List<ClosureEquation> closureEquation = models().stateClosureEquation;
+		for(int element = from; element<to; element++) {
+			variables.thetas[element] = closureEquation.get(variables.elementEquationStateID[element]).f(variables.waterSuctions[element], variables.temperatures[element], variables.elementParameterID[element]);
+		}
+		
+	}
 
 
 
 	public void computeThetasNew() {
 
-		for(int element = 1; element<topology.elementEdgesSet.size(); element++) {
-			variables.thetasNew.set(element, closureEquation.get(variables.elementEquationStateID.get(element)).f(variables.waterSuctions.get(element), variables.temperatures.get(element), variables.elementParameterID.get(element)));
+		thetasNewLoop.run();
+		
+	}
+	
+	
+	
+	private void computeThetasNew(int chunk, int from, int to) {
+		
+		List<ClosureEquation> closureEquation = models().stateClosureEquation;
+		for(int element = from; element<to; element++) {
+			variables.thetasNew[element] = closureEquation.get(variables.elementEquationStateID[element]).f(variables.waterSuctions[element], variables.temperatures[element], variables.elementParameterID[element]);
 		}
+		
 	}
 
 	
 	
 	public void computeSaturationDegreeNew() {
 
-		for(int element = 1; element<topology.elementEdgesSet.size(); element++) {
-			variables.saturationDegree.set(element, (variables.thetasNew.get(element)-parameters.thetaR[variables.elementParameterID.get(element)])
-												/(parameters.thetaS[variables.elementParameterID.get(element)]-parameters.thetaR[variables.elementParameterID.get(element)]));
+		saturationDegreeNewLoop.run();
+		
+	}
+	
+	
+	
+	private void computeSaturationDegreeNew(int chunk, int from, int to) {
+		
+		for(int element = from; element<to; element++) {
+			variables.saturationDegree[element] = (variables.thetasNew[element]-parameters.thetaR[variables.elementParameterID[element]])
+												/(parameters.thetaS[variables.elementParameterID[element]]-parameters.thetaR[variables.elementParameterID[element]]);
 		}
+		
 	}
 
 	
 	
+	/**
+	 * Compute the star points once for each distinct equation state ID, parameter ID and temperature of the elements.
+	 * It is called once per run, at the first time step: the temperatures are the initial condition and are not
+	 * updated afterwards, so the star points remain valid for the whole run.
+	 */
 	public void computeXStar() {
 
-		for(int element=1; element<topology.elementEdgesSet.size(); element++) {
-			equationState.get(variables.elementEquationStateID.get(element)).computeXStar(variables.temperatures.get(element), variables.elementParameterID.get(element), element);
+		variables.indexStarPoints();
+		for(int starPoint=0; starPoint<variables.starPointNumber; starPoint++) {
+			int element = variables.starPointElement[starPoint];
+			equationState.get(variables.elementEquationStateID[element]).computeXStar(variables.temperatures[element], variables.elementParameterID[element], element);
 		}
 
 	}
 
 
 
-	public void computeHydraulicConductivity() {
+	/**
+	 * Recompute the hydraulic conductivity, the interface hydraulic conductivity and the transmissibility
+	 * only where the water suction changed by more than tolerance since the last evaluation.
+	 * With a tolerance of 0 the result is the same as the one of the full update.
+	 * The first update after this call is a full one.
+	 * 
+	 * @param incremental true to enable the incremental update
+	 * @param tolerance change of water suction [m] below which the hydraulic conductivity is not recomputed
+	 */
+	public void setIncrementalConductivity(boolean incremental, double tolerance) {
+		
+		incrementalConductivity = incremental;
+		conductivityUpdateTolerance = tolerance;
+		changedEdgeNumber = -1;
+		interfaceConductivityComputed = false;
+		transmissibilityTimeDelta = Double.NaN;
+		
+		if(incremental && conductivityWaterSuctions == null) {
+			conductivityWaterSuctions = new double[topology.elementNumber];
+			conductivityTemperatures = new double[topology.elementNumber];
+			changedElements = new boolean[topology.elementNumber];
+			changedEdges = new int[topology.edgeNumber];
+			edgeStamp = new int[topology.edgeNumber];
+		}
+		if(incremental) {
+			Arrays.fill(conductivityWaterSuctions, Double.NaN);
+		}
+		
+	}
+
 
-		for(int element=1; element<topology.elementEdgesSet.size(); element++) {
-			variables.kappas.set(element, hydraulicConductivity.get(variables.elementEquationStateID.get(element)).k(variables.waterSuctions.get(element), variables.temperatures.get(element), variables.elementParameterID.get(element), element));
-			variables.kappas.set(element, Math.max(variables.kappas.get(element), Math.ulp(1.0)) );
-		}			
 
+	/**
+	 * Compute the hydraulic conductivity from tables of log(K) built now for each parameter ID,
+	 * see {@link TabulatedConductivityEquation}. Call it before the first computation.
+	 * 
+	 * @param tolerance maximum error of log(K), i.e. about the relative error of K; 0 to use the exact models
+	 */
+	public void setConductivityTableTolerance(double tolerance) {
+		
+		conductivityTableTolerance = tolerance;
+		conductivityTables = new TabulatedConductivityEquation[typeUHCModel.length];
+		primaryModels.hydraulicConductivity = createConductivityModels(primaryModels.closureEquation);
+		hydraulicConductivity = primaryModels.hydraulicConductivity;
+		threadModels = ThreadLocal.withInitial(this::createModels);
+		
 	}
 
 
 
-	public void computeInterfaceHydraulicConductivity() {
+	public void computeHydraulicConductivity() {
 
-		for(int edge=1; edge<topology.edgeRightNeighbour.size(); edge++) {
+		hydraulicConductivityLoop.run();
 
-			if(topology.edgeRightNeighbour.get(edge)==0) {
+	}
+	
+	
+	
+	private void computeHydraulicConductivity(int chunk, int from, int to) {
+		
+		List<ConductivityEquation> hydraulicConductivity = models().hydraulicConductivity;
+		for(int element=from; element<to; element++) {
+			if(incrementalConductivity) {
+				/*
+				 * NaN, the value before the first evaluation, always fails the test
+				 */
+				if(Math.abs(variables.waterSuctions[element]-conductivityWaterSuctions[element]) <= conductivityUpdateTolerance
+						&& variables.temperatures[element] == conductivityTemperatures[element]) {
+					continue;
+				}
+				conductivityWaterSuctions[element] = variables.waterSuctions[element];
+				conductivityTemperatures[element] = variables.temperatures[element];
+				changedElements[element] = true;
+			}
+			variables.kappas[element] = hydraulicConductivity.get(variables.elementEquationStateID[element]).k(variables.waterSuctions[element], variables.temperatures[element], variables.elementParameterID[element], element);
+			variables.kappas[element] = Math.max(variables.kappas[element], Math.ulp(1.0));
+		}
+		
+	}
 
-				variables.kappasInterface.set(edge, variables.kappas.get(topology.edgeLeftNeighbour.get(edge)) *geometry.edgesLength.get(edge) );
 
-			} else {
 
-				variables.kappasInterface.set(edge, interfaceConductivity.compute(variables.kappas.get(topology.edgeRightNeighbour.get(edge)), variables.kappas.get(topology.edgeLeftNeighbour.get(edge)), 
-						geometry.elementsArea.get(topology.edgeRightNeighbour.get(edge)), geometry.elementsArea.get(topology.edgeLeftNeighbour.get(edge))) * geometry.edgesLength.get(edge) );
-//				variables.kappasInterface.set(edge, Math.pow(0.5*(1/variables.kappas.get(topology.edgeRightNeighbour.get(edge))+1/variables.kappas.get(topology.edgeLeftNeighbour.get(edge))),-1) * geometry.edgesLength.get(edge) );
+	public void computeInterfaceHydraulicConductivity() {
 
+		if(incrementalConductivity && interfaceConductivityComputed) {
+			
+			stamp++;
+			changedEdgeNumber = 0;
+			for(int element=1; element<topology.elementNumber; element++) {
+				if(!changedElements[element]) {
+					continue;
+				}
+				changedElements[element] = false;
+				for(int i=topology.elementEdgesOffset[element]; i<topology.elementEdgesOffset[element+1]; i++) {
+					int edge = topology.elementEdgesIndex[i];
+					if(edgeStamp[edge] != stamp) {
+						edgeStamp[edge] = stamp;
+						changedEdges[changedEdgeNumber] = edge;
+						changedEdgeNumber++;
+						computeInterfaceHydraulicConductivity(edge);
+					}
+				}
 			}
+			
+			return;
+			
+		}
+		
+		for(int edge=1; edge<topology.edgeNumber; edge++) {
 
-		}	
+			computeInterfaceHydraulicConductivity(edge);
 
-	}
+		}
+		
+		if(incrementalConductivity) {
+			Arrays.fill(changedElements, false);
+			changedEdgeNumber = -1;
+			interfaceConductivityComputed = true;
+		}
 
+	}
+	
+	
+	
+	private void computeInterfaceHydraulicConductivity(int edge) {
+		
+		if(topology.edgeRightNeighbour[edge]==0) {
 
+			variables.kappasInterface[edge] = variables.kappas[topology.edgeLeftNeighbour[edge]] *geometry.edgesLength[edge];
 
-	public void computeDarcyVelocities(HashMap<Integer, double[]> inHMBoundaryCondition) {
-		
-		sumBoundaryFlux = 0;
+		} else {
 
-		for(int edge=1; edge<topology.edgeRightNeighbour.size(); edge++) {
-			
-			if(topology.edgeRightNeighbour.get(edge)==0) {
+			variables.kappasInterface[edge] = interfaceConductivity.compute(variables.kappas[topology.edgeRightNeighbour[edge]], variables.kappas[topology.edgeLeftNeighbour[edge]], 
+					geometry.elementsArea[topology.edgeRightNeighbour[edge]], geometry.elementsArea[topology.edgeLeftNeighbour[edge]]) * geometry.edgesLength[edge];
+//				variables.kappasInterface.set(edge, Math.pow(0.5*(1/variables.kappas.get(topology.edgeRightNeighbour[edge])+1/variables.kappas.get(topology.edgeLeftNeighbour[edge])),-1) * geometry.edgesLength[edge] );
 
-				if(topology.edgesBoundaryBCType.get(edge)==1) {
+		}
+		
+	}
 
-					sideFlux = geometry.edgesLength.get(edge)*inHMBoundaryCondition.get(topology.edgesBoundaryBCValue.get(edge))[0];
 
-				} else if(topology.edgesBoundaryBCType.get(edge)==2) {
 
-					sideFlux = variables.kappasInterface.get(edge)*( (inHMBoundaryCondition.get(topology.edgesBoundaryBCValue.get(edge))[0] - variables.waterSuctions.get(topology.edgeLeftNeighbour.get(edge)))/geometry.delta_j.get(edge) 
-							+ variables.gravityGradient.get(edge) );
+	/**
+	 * Compute the transmissibility of each edge T = timeDelta * K * L / delta_j.
+	 * It must be updated every time the interface hydraulic conductivity or the time step change,
+	 * and it is shared by the matrix operator, the right-hand side, the Jacobi diagonal and the Darcy velocities.
+	 */
+	public void computeTransmissibility() {
 
-				} else if(topology.edgesBoundaryBCType.get(edge)==3) {
+		if(incrementalConductivity && changedEdgeNumber >= 0 && variables.timeDelta == transmissibilityTimeDelta) {
+			for(int i=0; i<changedEdgeNumber; i++) {
+				int edge = changedEdges[i];
+				variables.transmissibility[edge] = variables.timeDelta*variables.kappasInterface[edge]/geometry.delta_j[edge];
+			}
+			return;
+		}
 
-					sideFlux = variables.kappasInterface.get(edge)*geometry.edgesLength.get(edge)*Math.min(0.0, variables.gravityGradient.get(edge));
+		for(int edge=1; edge<topology.edgeNumber; edge++) {
 
-				} else if(topology.edgesBoundaryBCType.get(edge)==4) {
+			variables.transmissibility[edge] = variables.timeDelta*variables.kappasInterface[edge]/geometry.delta_j[edge];
 
-					sideFlux = variables.kappasInterface.get(edge)*( ((inHMBoundaryCondition.get(topology.edgesBoundaryBCValue.get(edge))[0]-geometry.edgesCentroidsCoordinates.get(edge)[1])-variables.waterSuctions.get(topology.edgeLeftNeighbour.get(edge)))/geometry.delta_j.get(edge) 
-							+ variables.gravityGradient.get(edge) );
+		}
+		
+		transmissibilityTimeDelta = variables.timeDelta;
+		changedEdgeNumber = -1;
 
-				}
-				
-				variables.darcyVelocities.set(edge, sideFlux);
-				sumBoundaryFlux += sideFlux;
+	}
+	
+	
+	
+	/**
+	 * @return edges whose transmissibility changed in the last call of {@link #computeTransmissibility()},
+	 * the first {@link #getChangedEdgeNumber()} entries are used
+	 */
+	public int[] getChangedEdges() {
+		return changedEdges;
+	}
+	
+	
+	/**
+	 * @return number of edges whose transmissibility changed in the last call of {@link #computeTransmissibility()},
+	 * -1 if all of them changed, always -1 if the incremental update is disabled
+	 */
+	public int getChangedEdgeNumber() {
+		return changedEdgeNumber;
+	}
 
-			} else { //internal domain
 
-				sideFlux = variables.kappasInterface.get(edge)*( (variables.waterSuctions.get(topology.edgeRightNeighbour.get(edge)) - variables.waterSuctions.get(topology.edgeLeftNeighbour.get(edge)))/geometry.delta_j.get(edge) 
-						+ variables.gravityGradient.get(edge) );
-				variables.darcyVelocities.set(edge, sideFlux);
 
-			}
+	public void computeDarcyVelocities(HashMap<Integer, double[]> inHMBoundaryCondition) {
+		
+		inverseTimeDelta = 1.0/variables.timeDelta;
+		topology.resolveBoundaryValues(inHMBoundaryCondition, variables.boundaryValues);
+		
+		computeInteriorDarcyVelocities(0, topology.interiorEdges.length);
+		computeBoundaryDarcyVelocities();
 
+	}
+	
+	
+	
+	/*
+	 * Flux across the interior edges interiorEdges[from] ... interiorEdges[to-1], inverseTimeDelta must be up to date
+	 */
+	private void computeInteriorDarcyVelocities(int from, int to) {
+		
+		final int[] interiorEdges = topology.interiorEdges;
+		
+		for(int i=from; i<to; i++) {
+			int edge = interiorEdges[i];
+			variables.darcyVelocities[edge] = variables.transmissibility[edge]*inverseTimeDelta*(variables.waterSuctions[topology.edgeRightNeighbour[edge]] - variables.waterSuctions[topology.edgeLeftNeighbour[edge]]) 
+					+ variables.kappasInterface[edge]*variables.gravityGradient[edge];
 		}
 		
+	}
+	
+	
+	
+	/*
+	 * Flux across the boundary edges, one loop per boundary condition type, and their sum in ascending edge order.
+	 * inverseTimeDelta and the boundary values must be up to date. The edges of the other types have no flux.
+	 */
+	private void computeBoundaryDarcyVelocities() {
+		
+		final double[] boundaryValues = variables.boundaryValues;
+		
+		for(int edge : topology.neumannEdges) {
+			variables.darcyVelocities[edge] = geometry.edgesLength[edge]*boundaryValues[edge];
+		}
+		
+		for(int edge : topology.pressureEdges) {
+			variables.darcyVelocities[edge] = variables.transmissibility[edge]*inverseTimeDelta*(boundaryValues[edge] - variables.waterSuctions[topology.edgeLeftNeighbour[edge]]) 
+					+ variables.kappasInterface[edge]*variables.gravityGradient[edge];
+		}
+		
+		for(int edge : topology.freeDrainageEdges) {
+			variables.darcyVelocities[edge] = variables.kappasInterface[edge]*geometry.edgesLength[edge]*Math.min(0.0, variables.gravityGradient[edge]);
+		}
+		
+		for(int edge : topology.totalHeadEdges) {
+			variables.darcyVelocities[edge] = variables.transmissibility[edge]*inverseTimeDelta*((boundaryValues[edge]-geometry.edgesCentroidsCoordinates[edge][1])-variables.waterSuctions[topology.edgeLeftNeighbour[edge]]) 
+					+ variables.kappasInterface[edge]*variables.gravityGradient[edge];
+		}
+		
+		sumBoundaryFlux = 0.0;
+		for(int edge : topology.boundaryEdges) {
+			sumBoundaryFlux += variables.darcyVelocities[edge];
+		}
 		variables.sumBoundaryFlux = sumBoundaryFlux;
-
+		
+	}
+	
+	
+	
+	/**
+	 * Fused version of computeWaterVolumeNew, computeThetasNew and computeSaturationDegreeNew, followed by computeDarcyVelocities.
+	 * The closure equation is evaluated once per element and the volume is computed as theta times the element area,
+	 * as all the equation states of the Richards equation do. The Darcy velocities of the interior edges
+	 * are computed by a parallel loop over the edges, the ones of the boundary edges by one loop per boundary condition type.
+	 * waterVolumeNew is summed per chunk and then over the chunks in chunk order: the result does not depend on the number
+	 * of threads, but it is bit-identical to the serial sum over the elements only for meshes of at most CHUNK_SIZE elements.
+	 * 
+	 * @param inHMBoundaryCondition boundary condition values
+	 */
+	public void computePostStep(HashMap<Integer, double[]> inHMBoundaryCondition) {
+		
+		inverseTimeDelta = 1.0/variables.timeDelta;
+		topology.resolveBoundaryValues(inHMBoundaryCondition, variables.boundaryValues);
+		
+		postStepLoop.run();
+		darcyVelocityLoop.run();
+		computeBoundaryDarcyVelocities();
+		
+		variables.waterVolumeNew = 0.0;
+		for(int chunk=0; chunk<partialWaterVolume.length; chunk++) {
+			variables.waterVolumeNew += partialWaterVolume[chunk];
+		}
+		
+	}
+	
+	
+	
+	private void computePostStep(int chunk, int from, int to) {
+		
+		List<ClosureEquation> closureEquation = models().stateClosureEquation;
+		double waterVolumeNew = 0.0;
+		
+		for(int element = from; element<to; element++) {
+			
+			int id = variables.elementParameterID[element];
+			double theta = closureEquation.get(variables.elementEquationStateID[element]).f(variables.waterSuctions[element], variables.temperatures[element], id);
+			variables.thetasNew[element] = theta;
+			variables.volumesNew[element] = theta*geometry.elementsArea[element];
+			variables.saturationDegree[element] = (theta-parameters.thetaR[id])/(parameters.thetaS[id]-parameters.thetaR[id]);
+			waterVolumeNew += variables.volumesNew[element];
+			
+		}
+		
+		partialWaterVolume[chunk] = waterVolumeNew;
+		
 	}
 	
 	//	
@@ -436,7 +906,40 @@ public class ComputeQuantitiesRichards {
 //			System.out.println(variables.waterVolume);
 //			System.out.println(timeDelta*variables.sumBoundaryFlux);
 			variables.errorVolume = variables.waterVolumeNew - variables.waterVolume - timeDelta*variables.sumBoundaryFlux;
+			
+			if(members == 1) {
+				variables.memberErrorVolume[0] = variables.errorVolume;
+			} else {
+				computeMemberErrorVolume(timeDelta);
+			}
 	
 		}
+		
+		
+		
+		/*
+		 * Volume error of each ensemble member, from the volumes of the elements and the fluxes of the boundary edges of the member
+		 */
+		private void computeMemberErrorVolume(double timeDelta) {
+			
+			for(int member=0; member<members; member++) {
+				memberWaterVolume[member] = 0.0;
+				memberWaterVolumeNew[member] = 0.0;
+				memberBoundaryFlux[member] = 0.0;
+				for(int element=member+1; element<topology.elementNumber; element+=members) {
+					memberWaterVolume[member] += variables.volumes[element];
+					memberWaterVolumeNew[member] += variables.volumesNew[element];
+				}
+			}
+			
+			for(int edge : topology.boundaryEdges) {
+				memberBoundaryFlux[(edge-1)%members] += variables.darcyVelocities[edge];
+			}
+			
+			for(int member=0; member<members; member++) {
+				variables.memberErrorVolume[member] = memberWaterVolumeNew[member] - memberWaterVolume[member] - timeDelta*memberBoundaryFlux[member];
+			}
+			
+		}
 	
 }
@@ -19,48 +19,91 @@
 
 package it.geoframe.blogspot.whetgeo2d.data;
 
-import java.util.ArrayList;
+import java.lang.ref.WeakReference;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+/**
+ * Immutable mesh geometry built once from the OMS inputs and shared among the simulations using the same inputs.
+ * Scalar quantities are stored as double arrays indexed by the element or edge number,
+ * vectors as double[number][2] arrays with the (x,y) components.
+ * As in the mesh inputs the entry 0 is unused.
+ */
 public class Geometry {
 	
-	private static Geometry uniqueInstance;
+	private static final Map<IdentityKey, WeakReference<Geometry>> sharedInstances = new WeakHashMap<IdentityKey, WeakReference<Geometry>>();
 	
-	public static Geometry getInstance() {
-
-		return uniqueInstance;
+	/**
+	 * Geometry built from the given inputs. Simulations that receive the very same input lists
+	 * (same objects, not just equal content) share a single instance, since it is immutable.
+	 */
+	public static Geometry getInstance(List<Double> elementsArea, List<Double> edgesLenght, List<Double> delta_j,
+			List<Double[]> edgeNormalVector, List<Double[]> elementsCentroidsCoordinates, List<Double[]> edgesCentroidsCoordinates) {
+	
+		IdentityKey key = new IdentityKey(elementsArea, edgesLenght, delta_j, edgeNormalVector, elementsCentroidsCoordinates, edgesCentroidsCoordinates);
+		synchronized (sharedInstances) {
+			WeakReference<Geometry> reference = sharedInstances.get(key);
+			Geometry geometry = reference == null ? null : reference.get();
+			if (geometry == null) {
+				geometry = new Geometry(key, elementsArea, edgesLenght, delta_j, edgeNormalVector, elementsCentroidsCoordinates, edgesCentroidsCoordinates);
+				sharedInstances.put(key, new WeakReference<Geometry>(geometry));
+			}
+			return geometry;
+		}
 
 	}
 	
-	public static Geometry getInstance(List<Double> elementsArea, List<Double> edgesLenght, List<Double> delta_j,
+	/*
+	 * Keeps the cache entry alive as long as the geometry is in use
+	 */
+	@SuppressWarnings("unused")
+	private final IdentityKey key;
+	
+	public final double[] elementsArea;
+	public final double[] edgesLength;
+	public final double[] delta_j;
+	public final double[][] edgeNormalVector;
+	public final double[][] elementsCentroidsCoordinates;
+	public final double[][] edgesCentroidsCoordinates;
+	
+	private Geometry(IdentityKey key, List<Double> elementsArea, List<Double> edgesLenght, List<Double> delta_j,
 			List<Double[]> edgeNormalVector, List<Double[]> elementsCentroidsCoordinates, List<Double[]> edgesCentroidsCoordinates) {
+		
+		this.key = key;
+		this.elementsArea = toArray(elementsArea);
+		this.edgesLength = toArray(edgesLenght);
+		this.delta_j = toArray(delta_j);
+		this.edgeNormalVector = toVectorArray(edgeNormalVector);
+		this.elementsCentroidsCoordinates = toVectorArray(elementsCentroidsCoordinates);
+		this.edgesCentroidsCoordinates = toVectorArray(edgesCentroidsCoordinates);
+		
+	}
+	
 	
-		if (uniqueInstance == null) {
+	/*
+	 * Entries that are not defined in the input lists are set to -9999
+	 */
+	private static double[] toArray(List<Double> list) {
 		
-			uniqueInstance = new Geometry(elementsArea, edgesLenght, delta_j, edgeNormalVector, elementsCentroidsCoordinates, edgesCentroidsCoordinates);
+		double[] array = new double[list.size()];
+		for(int i=0; i<list.size(); i++) {
+			array[i] = list.get(i) == null ? -9999.0 : list.get(i);
 		}
+		return array;
 		
-		return uniqueInstance;
-
 	}
 	
 	
-	public List<Double> elementsArea;
-	public List<Double> edgesLength;
-	public List<Double> delta_j;
-	public List<Double[]> edgeNormalVector;
-	public List<Double[]> elementsCentroidsCoordinates;
-	public List<Double[]> edgesCentroidsCoordinates;
-	
-	private Geometry(List<Double> elementsArea, List<Double> edgesLenght, List<Double> delta_j,
-			List<Double[]> edgeNormalVector, List<Double[]> elementsCentroidsCoordinates, List<Double[]> edgesCentroidsCoordinates) {
+	private static double[][] toVectorArray(List<Double[]> list) {
 		
-		this.elementsArea = new ArrayList<Double>(elementsArea);
-		this.edgesLength = new ArrayList<Double>(edgesLenght);
-		this.delta_j = new ArrayList<Double>(delta_j);
-		this.edgeNormalVector = new ArrayList<Double[]>(edgeNormalVector);
-		this.elementsCentroidsCoordinates = new ArrayList<Double[]>(elementsCentroidsCoordinates);
-		this.edgesCentroidsCoordinates = new ArrayList<Double[]>(edgesCentroidsCoordinates);
+		double[][] array = new double[list.size()][2];
+		for(int i=0; i<list.size(); i++) {
+			for(int component=0; component<2; component++) {
+				array[i][component] = list.get(i) == null || list.get(i)[component] == null ? -9999.0 : list.get(i)[component];
+			}
+		}
+		return array;
 		
 	}
 
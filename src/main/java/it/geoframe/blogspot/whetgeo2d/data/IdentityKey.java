@@ -0,0 +1,64 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.data;
+
+/**
+ * Key comparing a set of objects by identity, used to share the immutable mesh data
+ * among simulations that receive the same input objects.
+ */
+final class IdentityKey {
+	
+	private final Object[] parts;
+	private final int hash;
+	
+	IdentityKey(Object... parts) {
+		
+		this.parts = parts;
+		int hash = 1;
+		for(Object part : parts) {
+			hash = 31*hash + System.identityHashCode(part);
+		}
+		this.hash = hash;
+		
+	}
+	
+	@Override
+	public int hashCode() {
+		
+		return hash;
+		
+	}
+	
+	@Override
+	public boolean equals(Object object) {
+		
+		if(!(object instanceof IdentityKey) || ((IdentityKey) object).parts.length != parts.length) {
+			return false;
+		}
+		for(int i=0; i<parts.length; i++) {
+			if(((IdentityKey) object).parts[i] != parts[i]) {
+				return false;
+			}
+		}
+		return true;
+		
+	}
+
+}
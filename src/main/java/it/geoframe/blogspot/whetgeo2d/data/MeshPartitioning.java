@@ -0,0 +1,592 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.geoframe.blogspot.whetgeo2d.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Partition of the elements of the mesh in parts with about the same number of elements and few edges between them,
+ * computed by recursive bisection of the graph of the elements sharing an interior edge.
+ * Each bisection is multilevel:
+ * - the graph is coarsened by heavy-edge matching until it has a few tens of vertices
+ * - the coarsest graph is bisected by graph growing from a few seeds, keeping the one with the smallest cut
+ * - the bisection is projected back to the finer graphs and refined at each level by Fiduccia-Mattheyses passes.
+ * A number of parts that is not a power of two is split in k/2 and k-k/2 parts with proportional weights.
+ * The partition depends only on the topology.
+ */
+public class MeshPartitioning {
+	
+	/**
+	 * Size of the coarsest graph
+	 */
+	private static final int COARSEST_VERTICES = 64;
+	
+	/**
+	 * Allowed imbalance of a bisection, as a fraction of the weight of the graph
+	 */
+	private static final double IMBALANCE = 0.03;
+	
+	private static final int GROWING_SEEDS = 4;
+	private static final int REFINEMENT_PASSES = 8;
+	
+	/**
+	 * Moves without improvement after which a refinement pass stops
+	 */
+	private static final int HILL_CLIMBING_MOVES = 64;
+	
+	public final int partNumber;
+	
+	/**
+	 * Part of each element, from 0 to partNumber-1. The entry 0 is unused.
+	 */
+	public final int[] elementPart;
+	
+	/**
+	 * Number of interior edges between elements of different parts
+	 */
+	public final int edgeCut;
+	
+	
+	
+	/**
+	 * @param topology topology of the mesh
+	 * @param partNumber number of parts, at least 1
+	 */
+	public MeshPartitioning(Topology topology, int partNumber) {
+		
+		int elementNumber = topology.elementNumber;
+		this.partNumber = Math.max(1, Math.min(partNumber, elementNumber-1));
+		elementPart = new int[elementNumber];
+		
+		/*
+		 * Graph of the elements, vertex element-1
+		 */
+		int vertexNumber = elementNumber-1;
+		int[] offset = new int[vertexNumber+1];
+		for(int edge=1; edge<topology.edgeNumber; edge++) {
+			if(topology.edgeRightNeighbour[edge] != 0) {
+				offset[topology.edgeLeftNeighbour[edge]]++;
+				offset[topology.edgeRightNeighbour[edge]]++;
+			}
+		}
+		for(int vertex=0; vertex<vertexNumber; vertex++) {
+			offset[vertex+1] += offset[vertex];
+		}
+		int[] adjacency = new int[offset[vertexNumber]];
+		int[] position = Arrays.copyOf(offset, vertexNumber);
+		for(int edge=1; edge<topology.edgeNumber; edge++) {
+			if(topology.edgeRightNeighbour[edge] != 0) {
+				int left = topology.edgeLeftNeighbour[edge]-1;
+				int right = topology.edgeRightNeighbour[edge]-1;
+				adjacency[position[left]++] = right;
+				adjacency[position[right]++] = left;
+			}
+		}
+		int[] edgeWeight = new int[adjacency.length];
+		Arrays.fill(edgeWeight, 1);
+		int[] vertexWeight = new int[vertexNumber];
+		Arrays.fill(vertexWeight, 1);
+		
+		int[] vertexElement = new int[vertexNumber];
+		for(int vertex=0; vertex<vertexNumber; vertex++) {
+			vertexElement[vertex] = vertex+1;
+		}
+		
+		partition(new Graph(offset, adjacency, edgeWeight, vertexWeight), vertexElement, this.partNumber, 0);
+		
+		int cut = 0;
+		for(int edge=1; edge<topology.edgeNumber; edge++) {
+			int right = topology.edgeRightNeighbour[edge];
+			if(right != 0 && elementPart[topology.edgeLeftNeighbour[edge]] != elementPart[right]) {
+				cut++;
+			}
+		}
+		edgeCut = cut;
+		
+	}
+	
+	
+	
+	/**
+	 * @return the number of elements of each part
+	 */
+	public int[] getPartSizes() {
+		
+		int[] sizes = new int[partNumber];
+		for(int element=1; element<elementPart.length; element++) {
+			sizes[elementPart[element]]++;
+		}
+		return sizes;
+		
+	}
+	
+	
+	
+	private void partition(Graph graph, int[] vertexElement, int parts, int firstPart) {
+		
+		if(parts == 1 || graph.vertexNumber < 2) {
+			for(int vertex=0; vertex<graph.vertexNumber; vertex++) {
+				elementPart[vertexElement[vertex]] = firstPart;
+			}
+			return;
+		}
+		
+		int leftParts = parts/2;
+		long target = graph.totalWeight*leftParts/parts;
+		int[] side = bisect(graph, target);
+		
+		for(int s=0; s<2; s++) {
+			int[] local = new int[graph.vertexNumber];
+			int count = 0;
+			for(int vertex=0; vertex<graph.vertexNumber; vertex++) {
+				local[vertex] = side[vertex] == s ? count++ : -1;
+			}
+			int[] subElement = new int[count];
+			for(int vertex=0; vertex<graph.vertexNumber; vertex++) {
+				if(local[vertex] >= 0) {
+					subElement[local[vertex]] = vertexElement[vertex];
+				}
+			}
+			Graph subgraph = graph.subgraph(local, count);
+			if(s == 0) {
+				partition(subgraph, subElement, leftParts, firstPart);
+			} else {
+				partition(subgraph, subElement, parts-leftParts, firstPart+leftParts);
+			}
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * @param target weight of the side 0
+	 * @return the side, 0 or 1, of each vertex
+	 */
+	private int[] bisect(Graph graph, long target) {
+		
+		List<Graph> levels = new ArrayList<Graph>();
+		List<int[]> coarseVertex = new ArrayList<int[]>();
+		levels.add(graph);
+		Graph coarse = graph;
+		while(coarse.vertexNumber > COARSEST_VERTICES) {
+			int[] map = new int[coarse.vertexNumber];
+			int coarseNumber = coarse.match(map);
+			if(coarseNumber > 0.95*coarse.vertexNumber) {
+				break;
+			}
+			coarse = coarse.coarsen(map, coarseNumber);
+			levels.add(coarse);
+			coarseVertex.add(map);
+		}
+		
+		/*
+		 * Graph growing from a pseudo-peripheral vertex and from vertices spread over the numbering
+		 */
+		int[] best = null;
+		long bestCut = Long.MAX_VALUE;
+		for(int seed=0; seed<GROWING_SEEDS; seed++) {
+			int start = seed == 0 ? coarse.peripheralVertex(0) : (int) ((long) seed*coarse.vertexNumber/GROWING_SEEDS);
+			int[] side = coarse.grow(start, target);
+			long cut = refine(coarse, side, target);
+			if(cut < bestCut) {
+				bestCut = cut;
+				best = side;
+			}
+		}
+		
+		int[] side = best;
+		for(int level=levels.size()-2; level>=0; level--) {
+			Graph fine = levels.get(level);
+			int[] map = coarseVertex.get(level);
+			int[] fineSide = new int[fine.vertexNumber];
+			for(int vertex=0; vertex<fine.vertexNumber; vertex++) {
+				fineSide[vertex] = side[map[vertex]];
+			}
+			refine(fine, fineSide, target);
+			side = fineSide;
+		}
+		
+		return side;
+		
+	}
+	
+	
+	
+	/**
+	 * Fiduccia-Mattheyses refinement of a bisection: vertices are moved one at a time in order of decreasing cut reduction,
+	 * each at most once per pass, as long as the bisection stays balanced. The pass is then rolled back to the best cut seen.
+	 * 
+	 * @return the cut of the refined bisection
+	 */
+	private long refine(Graph graph, int[] side, long target) {
+		
+		int n = graph.vertexNumber;
+		long tolerance = (long) Math.ceil(IMBALANCE*graph.totalWeight)+graph.maximumVertexWeight;
+		
+		long weight = 0;
+		for(int vertex=0; vertex<n; vertex++) {
+			if(side[vertex] == 0) {
+				weight += graph.vertexWeight[vertex];
+			}
+		}
+		
+		int[] gain = new int[n];
+		long cut = 0;
+		for(int vertex=0; vertex<n; vertex++) {
+			for(int k=graph.offset[vertex]; k<graph.offset[vertex+1]; k++) {
+				if(side[graph.adjacency[k]] != side[vertex]) {
+					gain[vertex] += graph.edgeWeight[k];
+					cut += graph.edgeWeight[k];
+				} else {
+					gain[vertex] -= graph.edgeWeight[k];
+				}
+			}
+		}
+		cut /= 2;
+		
+		boolean[] locked = new boolean[n];
+		int[] moves = new int[n];
+		PriorityQueue<Long> queue = new PriorityQueue<Long>();
+		
+		for(int pass=0; pass<REFINEMENT_PASSES; pass++) {
+			
+			Arrays.fill(locked, false);
+			queue.clear();
+			for(int vertex=0; vertex<n; vertex++) {
+				if(gain[vertex] > -graph.degreeWeight(vertex)) {
+					queue.add(key(gain[vertex], vertex));
+				}
+			}
+			
+			long startCut = cut;
+			long bestCut = cut;
+			long bestImbalance = Math.abs(weight-target);
+			boolean bestBalanced = bestImbalance <= tolerance;
+			int bestMoves = 0;
+			int moveNumber = 0;
+			
+			while(!queue.isEmpty() && moveNumber-bestMoves < HILL_CLIMBING_MOVES) {
+				long entry = queue.poll();
+				int vertex = (int) (entry & 0xffffffffL);
+				if(locked[vertex] || key(gain[vertex], vertex) != entry) {
+					continue;
+				}
+				long newWeight = side[vertex] == 0 ? weight-graph.vertexWeight[vertex] : weight+graph.vertexWeight[vertex];
+				if(Math.abs(newWeight-target) > tolerance && Math.abs(newWeight-target) >= Math.abs(weight-target)) {
+					continue;
+				}
+				
+				locked[vertex] = true;
+				moves[moveNumber++] = vertex;
+				cut -= gain[vertex];
+				weight = newWeight;
+				side[vertex] = 1-side[vertex];
+				gain[vertex] = -gain[vertex];
+				for(int k=graph.offset[vertex]; k<graph.offset[vertex+1]; k++) {
+					int neighbour = graph.adjacency[k];
+					gain[neighbour] += side[neighbour] == side[vertex] ? -2*graph.edgeWeight[k] : 2*graph.edgeWeight[k];
+					if(!locked[neighbour]) {
+						queue.add(key(gain[neighbour], neighbour));
+					}
+				}
+				
+				long imbalance = Math.abs(weight-target);
+				boolean balanced = imbalance <= tolerance;
+				if(balanced ? !bestBalanced || cut < bestCut || cut == bestCut && imbalance < bestImbalance : !bestBalanced && imbalance < bestImbalance) {
+					bestBalanced = balanced;
+					bestCut = cut;
+					bestImbalance = imbalance;
+					bestMoves = moveNumber;
+				}
+			}
+			
+			/*
+			 * Roll back to the best cut
+			 */
+			for(int move=moveNumber-1; move>=bestMoves; move--) {
+				int vertex = moves[move];
+				weight = side[vertex] == 0 ? weight-graph.vertexWeight[vertex] : weight+graph.vertexWeight[vertex];
+				side[vertex] = 1-side[vertex];
+				gain[vertex] = -gain[vertex];
+				for(int k=graph.offset[vertex]; k<graph.offset[vertex+1]; k++) {
+					int neighbour = graph.adjacency[k];
+					gain[neighbour] += side[neighbour] == side[vertex] ? -2*graph.edgeWeight[k] : 2*graph.edgeWeight[k];
+				}
+			}
+			cut = bestCut;
+			
+			if(bestMoves == 0 || cut >= startCut) {
+				break;
+			}
+		}
+		
+		return cut;
+		
+	}
+	
+	
+	
+	/*
+	 * Priority queue key: largest gain first, then lowest vertex
+	 */
+	private static long key(int gain, int vertex) {
+		
+		return ((long) -gain << 32) | vertex;
+		
+	}
+	
+	
+	
+	/**
+	 * Weighted graph in CSR format
+	 */
+	private static final class Graph {
+		
+		final int vertexNumber;
+		final int[] offset;
+		final int[] adjacency;
+		final int[] edgeWeight;
+		final int[] vertexWeight;
+		final long totalWeight;
+		final int maximumVertexWeight;
+		
+		Graph(int[] offset, int[] adjacency, int[] edgeWeight, int[] vertexWeight) {
+			
+			this.vertexNumber = vertexWeight.length;
+			this.offset = offset;
+			this.adjacency = adjacency;
+			this.edgeWeight = edgeWeight;
+			this.vertexWeight = vertexWeight;
+			long total = 0;
+			int maximum = 0;
+			for(int weight : vertexWeight) {
+				total += weight;
+				maximum = Math.max(maximum, weight);
+			}
+			totalWeight = total;
+			maximumVertexWeight = maximum;
+			
+		}
+		
+		int degreeWeight(int vertex) {
+			
+			int sum = 0;
+			for(int k=offset[vertex]; k<offset[vertex+1]; k++) {
+				sum += edgeWeight[k];
+			}
+			return sum;
+			
+		}
+		
+		/**
+		 * Heavy-edge matching, visiting the vertices by increasing degree
+		 * 
+		 * @param map output, coarse vertex of each vertex
+		 * @return the number of coarse vertices
+		 */
+		int match(int[] map) {
+			
+			Integer[] order = new Integer[vertexNumber];
+			for(int vertex=0; vertex<vertexNumber; vertex++) {
+				order[vertex] = vertex;
+			}
+			Arrays.sort(order, (a, b) -> offset[a+1]-offset[a] != offset[b+1]-offset[b] ? (offset[a+1]-offset[a])-(offset[b+1]-offset[b]) : a-b);
+			
+			Arrays.fill(map, -1);
+			int coarseNumber = 0;
+			for(int vertex : order) {
+				if(map[vertex] >= 0) {
+					continue;
+				}
+				int mate = -1;
+				for(int k=offset[vertex]; k<offset[vertex+1]; k++) {
+					int neighbour = adjacency[k];
+					if(map[neighbour] < 0 && neighbour != vertex
+							&& (mate < 0 || edgeWeight[k] > edgeWeight[mate] || edgeWeight[k] == edgeWeight[mate] && vertexWeight[neighbour] < vertexWeight[adjacency[mate]])) {
+						mate = k;
+					}
+				}
+				map[vertex] = coarseNumber;
+				if(mate >= 0) {
+					map[adjacency[mate]] = coarseNumber;
+				}
+				coarseNumber++;
+			}
+			return coarseNumber;
+			
+		}
+		
+		Graph coarsen(int[] map, int coarseNumber) {
+			
+			int[] coarseVertexWeight = new int[coarseNumber];
+			int[] memberOffset = new int[coarseNumber+1];
+			for(int vertex=0; vertex<vertexNumber; vertex++) {
+				coarseVertexWeight[map[vertex]] += vertexWeight[vertex];
+				memberOffset[map[vertex]+1]++;
+			}
+			for(int coarse=0; coarse<coarseNumber; coarse++) {
+				memberOffset[coarse+1] += memberOffset[coarse];
+			}
+			int[] members = new int[vertexNumber];
+			int[] position = Arrays.copyOf(memberOffset, coarseNumber);
+			for(int vertex=0; vertex<vertexNumber; vertex++) {
+				members[position[map[vertex]]++] = vertex;
+			}
+			
+			int[] coarseOffset = new int[coarseNumber+1];
+			int[] coarseAdjacency = new int[adjacency.length];
+			int[] coarseEdgeWeight = new int[adjacency.length];
+			int[] slot = new int[coarseNumber];
+			Arrays.fill(slot, -1);
+			int size = 0;
+			for(int coarse=0; coarse<coarseNumber; coarse++) {
+				coarseOffset[coarse] = size;
+				for(int m=memberOffset[coarse]; m<memberOffset[coarse+1]; m++) {
+					int vertex = members[m];
+					for(int k=offset[vertex]; k<offset[vertex+1]; k++) {
+						int neighbour = map[adjacency[k]];
+						if(neighbour == coarse) {
+							continue;
+						}
+						if(slot[neighbour] < coarseOffset[coarse]) {
+							slot[neighbour] = size;
+							coarseAdjacency[size] = neighbour;
+							coarseEdgeWeight[size] = 0;
+							size++;
+						}
+						coarseEdgeWeight[slot[neighbour]] += edgeWeight[k];
+					}
+				}
+			}
+			coarseOffset[coarseNumber] = size;
+			
+			return new Graph(coarseOffset, Arrays.copyOf(coarseAdjacency, size), Arrays.copyOf(coarseEdgeWeight, size), coarseVertexWeight);
+			
+		}
+		
+		/**
+		 * @param local local number of each vertex in the subgraph, -1 if it is not in the subgraph
+		 */
+		Graph subgraph(int[] local, int count) {
+			
+			int[] subOffset = new int[count+1];
+			int[] subAdjacency = new int[adjacency.length];
+			int[] subEdgeWeight = new int[adjacency.length];
+			int[] subVertexWeight = new int[count];
+			int size = 0;
+			for(int vertex=0; vertex<vertexNumber; vertex++) {
+				if(local[vertex] < 0) {
+					continue;
+				}
+				subOffset[local[vertex]] = size;
+				subVertexWeight[local[vertex]] = vertexWeight[vertex];
+				for(int k=offset[vertex]; k<offset[vertex+1]; k++) {
+					if(local[adjacency[k]] >= 0) {
+						subAdjacency[size] = local[adjacency[k]];
+						subEdgeWeight[size] = edgeWeight[k];
+						size++;
+					}
+				}
+			}
+			subOffset[count] = size;
+			
+			return new Graph(subOffset, Arrays.copyOf(subAdjacency, size), Arrays.copyOf(subEdgeWeight, size), subVertexWeight);
+			
+		}
+		
+		/**
+		 * @return the last vertex reached by a breadth-first search from start, repeated from it while the depth grows
+		 */
+		int peripheralVertex(int start) {
+			
+			int[] level = new int[vertexNumber];
+			int[] queue = new int[vertexNumber];
+			int vertex = start;
+			int depth = -1;
+			for(int sweep=0; sweep<8; sweep++) {
+				Arrays.fill(level, -1);
+				level[vertex] = 0;
+				queue[0] = vertex;
+				int head = 0, tail = 1;
+				int last = vertex;
+				while(head < tail) {
+					last = queue[head++];
+					for(int k=offset[last]; k<offset[last+1]; k++) {
+						if(level[adjacency[k]] < 0) {
+							level[adjacency[k]] = level[last]+1;
+							queue[tail++] = adjacency[k];
+						}
+					}
+				}
+				if(level[last] <= depth) {
+					break;
+				}
+				depth = level[last];
+				vertex = last;
+			}
+			return vertex;
+			
+		}
+		
+		/**
+		 * Breadth-first growing of the side 0 from start until its weight reaches target,
+		 * restarting from the first vertex not yet reached if the graph is not connected
+		 */
+		int[] grow(int start, long target) {
+			
+			int[] side = new int[vertexNumber];
+			Arrays.fill(side, 1);
+			int[] queue = new int[vertexNumber];
+			boolean[] queued = new boolean[vertexNumber];
+			int head = 0, tail = 0;
+			int next = 0;
+			long weight = 0;
+			queue[tail++] = start;
+			queued[start] = true;
+			while(weight < target) {
+				if(head == tail) {
+					while(queued[next]) {
+						next++;
+					}
+					queue[tail++] = next;
+					queued[next] = true;
+				}
+				int vertex = queue[head++];
+				side[vertex] = 0;
+				weight += vertexWeight[vertex];
+				for(int k=offset[vertex]; k<offset[vertex+1]; k++) {
+					if(!queued[adjacency[k]]) {
+						queued[adjacency[k]] = true;
+						queue[tail++] = adjacency[k];
+					}
+				}
+			}
+			return side;
+			
+		}
+		
+	}
+
+}
@@ -0,0 +1,469 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.data;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Renumbering of the elements and of the edges of the mesh that improves the locality of the memory accesses.
+ * The mesh inputs are permuted before building {@link Topology}, {@link Geometry} and {@link ProblemQuantities},
+ * so the whole solver works in the new numbering, and the outputs are permuted back to the original numbering.
+ * The permuted mesh inputs are immutable, as the original ones.
+ * 
+ * The elements are renumbered with:
+ * - RCM, the reverse Cuthill-McKee ordering of the graph of the elements sharing an edge, that reduces the bandwidth of the matrix
+ * - Hilbert, the order of the element centroids along a Hilbert space-filling curve.
+ * The edges are then sorted by their neighbour with the lowest new number, so that the loops over the edges
+ * sweep the elements in ascending order.
+ * As in the mesh inputs the entry 0 is unused and it is not permuted.
+ */
+public class MeshReordering {
+	
+	private static final Map<IdentityKey, WeakReference<MeshReordering>> sharedInstances = new WeakHashMap<IdentityKey, WeakReference<MeshReordering>>();
+	
+	/**
+	 * Side of the grid of the Hilbert curve, 2^16 cells
+	 */
+	private static final int HILBERT_ORDER = 1 << 16;
+	
+	/**
+	 * Reordering of the given mesh. Simulations that receive the very same input lists share a single instance,
+	 * and then the same permuted mesh inputs, so that they still share {@link Topology} and {@link Geometry}.
+	 * 
+	 * @param type RCM or Hilbert
+	 * @return the reordering, null if type is None
+	 */
+	public static MeshReordering getInstance(String type, List<Integer> edgeLeftNeighbour, List<Integer> edgeRightNeighbour, List<Integer> edgesBoundaryBCType,
+			List<Integer> edgesBoundaryBCValue, List<? extends List<Integer>> elementEdgesSet, List<Double> elementsArea, List<Double> edgesLenght, List<Double> delta_j,
+			List<Double[]> edgeNormalVector, List<Double[]> elementsCentroidsCoordinates, List<Double[]> edgesCentroidsCoordinates) {
+		
+		if(type == null || type.equalsIgnoreCase("None")) {
+			return null;
+		}
+		
+		/*
+		 * The key compares its components by identity, so the type is one of the literals
+		 */
+		if(type.equalsIgnoreCase("RCM")) {
+			type = "RCM";
+		} else if(type.equalsIgnoreCase("Hilbert")) {
+			type = "Hilbert";
+		}
+		
+		IdentityKey key = new IdentityKey(type, edgeLeftNeighbour, edgeRightNeighbour, edgesBoundaryBCType, edgesBoundaryBCValue, elementEdgesSet,
+				elementsArea, edgesLenght, delta_j, edgeNormalVector, elementsCentroidsCoordinates, edgesCentroidsCoordinates);
+		synchronized (sharedInstances) {
+			WeakReference<MeshReordering> reference = sharedInstances.get(key);
+			MeshReordering reordering = reference == null ? null : reference.get();
+			if (reordering == null) {
+				reordering = new MeshReordering(key, type, edgeLeftNeighbour, edgeRightNeighbour, edgesBoundaryBCType, edgesBoundaryBCValue, elementEdgesSet,
+						elementsArea, edgesLenght, delta_j, edgeNormalVector, elementsCentroidsCoordinates, edgesCentroidsCoordinates);
+				sharedInstances.put(key, new WeakReference<MeshReordering>(reordering));
+			}
+			return reordering;
+		}
+		
+	}
+	
+	/*
+	 * Keeps the cache entry alive as long as the reordering is in use
+	 */
+	@SuppressWarnings("unused")
+	private final IdentityKey key;
+	
+	/*
+	 * elementNewToOld[new element] = original element, elementOldToNew the inverse, the same for the edges
+	 */
+	public final int[] elementNewToOld;
+	public final int[] elementOldToNew;
+	public final int[] edgeNewToOld;
+	public final int[] edgeOldToNew;
+	
+	/*
+	 * Mesh inputs in the new numbering
+	 */
+	public final List<Integer> edgeLeftNeighbour;
+	public final List<Integer> edgeRightNeighbour;
+	public final List<Integer> edgesBoundaryBCType;
+	public final List<Integer> edgesBoundaryBCValue;
+	public final List<ArrayList<Integer>> elementEdgesSet;
+	public final List<Double> elementsArea;
+	public final List<Double> edgesLenght;
+	public final List<Double> delta_j;
+	public final List<Double[]> edgeNormalVector;
+	public final List<Double[]> elementsCentroidsCoordinates;
+	public final List<Double[]> edgesCentroidsCoordinates;
+	
+	
+	
+	private MeshReordering(IdentityKey key, String type, List<Integer> edgeLeftNeighbour, List<Integer> edgeRightNeighbour, List<Integer> edgesBoundaryBCType,
+			List<Integer> edgesBoundaryBCValue, List<? extends List<Integer>> elementEdgesSet, List<Double> elementsArea, List<Double> edgesLenght, List<Double> delta_j,
+			List<Double[]> edgeNormalVector, List<Double[]> elementsCentroidsCoordinates, List<Double[]> edgesCentroidsCoordinates) {
+		
+		this.key = key;
+		int elementNumber = elementEdgesSet.size();
+		int edgeNumber = edgeLeftNeighbour.size();
+		
+		if(type.equalsIgnoreCase("RCM")) {
+			elementNewToOld = reverseCuthillMcKee(edgeLeftNeighbour, edgeRightNeighbour, elementEdgesSet);
+		} else if(type.equalsIgnoreCase("Hilbert")) {
+			elementNewToOld = hilbert(elementsCentroidsCoordinates);
+		} else {
+			System.out.println("ERROR MeshReordering: unknown reordering " + type + ", the original numbering is used");
+			elementNewToOld = new int[elementNumber];
+			for(int element=0; element<elementNumber; element++) {
+				elementNewToOld[element] = element;
+			}
+		}
+		elementOldToNew = inverse(elementNewToOld);
+		
+		/*
+		 * Edges sorted by the lowest new number of their neighbours, then by the other one (0 for the boundary edges)
+		 */
+		long[] edgeKeys = new long[edgeNumber-1];
+		for(int edge=1; edge<edgeNumber; edge++) {
+			int left = elementOldToNew[edgeLeftNeighbour.get(edge)];
+			int right = edgeRightNeighbour.get(edge) == 0 ? 0 : elementOldToNew[edgeRightNeighbour.get(edge)];
+			int first = right == 0 ? left : Math.min(left, right);
+			int second = right == 0 ? 0 : Math.max(left, right);
+			edgeKeys[edge-1] = ((long)first*elementNumber + second)*edgeNumber + edge;
+		}
+		Arrays.sort(edgeKeys);
+		edgeNewToOld = new int[edgeNumber];
+		for(int edge=1; edge<edgeNumber; edge++) {
+			edgeNewToOld[edge] = (int)(edgeKeys[edge-1] % edgeNumber);
+		}
+		edgeOldToNew = inverse(edgeNewToOld);
+		
+		this.edgeLeftNeighbour = new ArrayList<Integer>(edgeNumber);
+		this.edgeRightNeighbour = new ArrayList<Integer>(edgeNumber);
+		this.edgeLeftNeighbour.add(edgeLeftNeighbour.get(0));
+		this.edgeRightNeighbour.add(edgeRightNeighbour.get(0));
+		for(int edge=1; edge<edgeNumber; edge++) {
+			int old = edgeNewToOld[edge];
+			this.edgeLeftNeighbour.add(elementOldToNew[edgeLeftNeighbour.get(old)]);
+			this.edgeRightNeighbour.add(edgeRightNeighbour.get(old) == 0 ? 0 : elementOldToNew[edgeRightNeighbour.get(old)]);
+		}
+		
+		this.elementEdgesSet = new ArrayList<ArrayList<Integer>>(elementNumber);
+		this.elementEdgesSet.add(elementEdgesSet.get(0) == null ? null : new ArrayList<Integer>(elementEdgesSet.get(0)));
+		for(int element=1; element<elementNumber; element++) {
+			List<Integer> edges = elementEdgesSet.get(elementNewToOld[element]);
+			ArrayList<Integer> newEdges = new ArrayList<Integer>(edges.size());
+			for(Integer edge : edges) {
+				newEdges.add(edgeOldToNew[edge]);
+			}
+			this.elementEdgesSet.add(newEdges);
+		}
+		
+		this.edgesBoundaryBCType = permuteEdges(edgesBoundaryBCType);
+		this.edgesBoundaryBCValue = permuteEdges(edgesBoundaryBCValue);
+		this.elementsArea = permuteElements(elementsArea);
+		this.edgesLenght = permuteEdges(edgesLenght);
+		this.delta_j = permuteEdges(delta_j);
+		this.edgeNormalVector = permuteEdges(edgeNormalVector);
+		this.elementsCentroidsCoordinates = permuteElements(elementsCentroidsCoordinates);
+		this.edgesCentroidsCoordinates = permuteEdges(edgesCentroidsCoordinates);
+		
+	}
+	
+	
+	
+	/**
+	 * @param list element quantity in the original numbering
+	 * @return the list in the new numbering
+	 */
+	public <T> List<T> permuteElements(List<T> list) {
+		
+		return permute(list, elementNewToOld);
+		
+	}
+	
+	
+	
+	/**
+	 * @param list edge quantity in the original numbering
+	 * @return the list in the new numbering
+	 */
+	public <T> List<T> permuteEdges(List<T> list) {
+		
+		return permute(list, edgeNewToOld);
+		
+	}
+	
+	
+	
+	/**
+	 * @param array element quantity in the new numbering
+	 * @return the list in the original numbering
+	 */
+	public ArrayList<Double> elementsToOriginal(double[] array) {
+		
+		return toOriginal(array, elementOldToNew);
+		
+	}
+	
+	
+	
+	/**
+	 * @param array edge quantity in the new numbering
+	 * @return the list in the original numbering
+	 */
+	public ArrayList<Double> edgesToOriginal(double[] array) {
+		
+		return toOriginal(array, edgeOldToNew);
+		
+	}
+	
+	
+	
+	private static <T> List<T> permute(List<T> list, int[] newToOld) {
+		
+		List<T> permuted = new ArrayList<T>(list.size());
+		permuted.add(list.get(0));
+		for(int i=1; i<newToOld.length; i++) {
+			permuted.add(list.get(newToOld[i]));
+		}
+		return permuted;
+		
+	}
+	
+	
+	
+	private static ArrayList<Double> toOriginal(double[] array, int[] oldToNew) {
+		
+		ArrayList<Double> list = new ArrayList<Double>(array.length);
+		list.add(array[0]);
+		for(int i=1; i<array.length; i++) {
+			list.add(array[oldToNew[i]]);
+		}
+		return list;
+		
+	}
+	
+	
+	
+	private static int[] inverse(int[] permutation) {
+		
+		int[] inverse = new int[permutation.length];
+		for(int i=0; i<permutation.length; i++) {
+			inverse[permutation[i]] = i;
+		}
+		return inverse;
+		
+	}
+	
+	
+	
+	/*
+	 * Reverse Cuthill-McKee: breadth-first visit of each connected component starting from a pseudo-peripheral element,
+	 * neighbours visited by increasing degree, and the order reversed at the end
+	 */
+	private static int[] reverseCuthillMcKee(List<Integer> edgeLeftNeighbour, List<Integer> edgeRightNeighbour, List<? extends List<Integer>> elementEdgesSet) {
+		
+		int elementNumber = elementEdgesSet.size();
+		
+		int[] offset = new int[elementNumber+1];
+		for(int element=1; element<elementNumber; element++) {
+			int degree = 0;
+			for(Integer edge : elementEdgesSet.get(element)) {
+				if(edgeRightNeighbour.get(edge) != 0) {
+					degree++;
+				}
+			}
+			offset[element+1] = offset[element] + degree;
+		}
+		int[] adjacency = new int[offset[elementNumber]];
+		for(int element=1; element<elementNumber; element++) {
+			int position = offset[element];
+			for(Integer edge : elementEdgesSet.get(element)) {
+				if(edgeRightNeighbour.get(edge) != 0) {
+					int left = edgeLeftNeighbour.get(edge);
+					adjacency[position] = left == element ? edgeRightNeighbour.get(edge) : left;
+					position++;
+				}
+			}
+		}
+		
+		int[] order = new int[elementNumber];
+		int[] level = new int[elementNumber];
+		int[] component = new int[elementNumber];
+		boolean[] visited = new boolean[elementNumber];
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		Integer[] neighbours = new Integer[elementNumber];
+		int position = 0;
+		
+		for(int seed=1; seed<elementNumber; seed++) {
+			
+			if(visited[seed]) {
+				continue;
+			}
+			
+			/*
+			 * Pseudo-peripheral element: the visit is repeated from the element of the last level with minimum degree
+			 * while the number of levels increases
+			 */
+			int root = seed;
+			int levels = 0;
+			while(true) {
+				int size = breadthFirstLevels(root, offset, adjacency, level, component);
+				int maxLevel = level[component[size-1]];
+				int candidate = root;
+				int minDegree = Integer.MAX_VALUE;
+				for(int i=0; i<size; i++) {
+					int element = component[i];
+					if(level[element] == maxLevel && offset[element+1]-offset[element] < minDegree) {
+						minDegree = offset[element+1]-offset[element];
+						candidate = element;
+					}
+				}
+				for(int i=0; i<size; i++) {
+					level[component[i]] = 0;
+				}
+				if(maxLevel <= levels || candidate == root) {
+					break;
+				}
+				levels = maxLevel;
+				root = candidate;
+			}
+			
+			visited[root] = true;
+			queue.add(root);
+			while(!queue.isEmpty()) {
+				int element = queue.poll();
+				order[position] = element;
+				position++;
+				int count = 0;
+				for(int i=offset[element]; i<offset[element+1]; i++) {
+					if(!visited[adjacency[i]]) {
+						visited[adjacency[i]] = true;
+						neighbours[count] = adjacency[i];
+						count++;
+					}
+				}
+				Arrays.sort(neighbours, 0, count, (a, b) -> (offset[a+1]-offset[a]) != (offset[b+1]-offset[b]) ? (offset[a+1]-offset[a]) - (offset[b+1]-offset[b]) : a - b);
+				for(int i=0; i<count; i++) {
+					queue.add(neighbours[i]);
+				}
+			}
+			
+		}
+		
+		int[] newToOld = new int[elementNumber];
+		for(int i=0; i<position; i++) {
+			newToOld[i+1] = order[position-1-i];
+		}
+		return newToOld;
+		
+	}
+	
+	
+	
+	/*
+	 * Breadth-first visit from root: level[root] = 1 and the elements reached are stored in component in the order of the visit.
+	 * Returns their number.
+	 */
+	private static int breadthFirstLevels(int root, int[] offset, int[] adjacency, int[] level, int[] component) {
+		
+		level[root] = 1;
+		component[0] = root;
+		int size = 1;
+		for(int head=0; head<size; head++) {
+			int element = component[head];
+			for(int i=offset[element]; i<offset[element+1]; i++) {
+				if(level[adjacency[i]] == 0) {
+					level[adjacency[i]] = level[element]+1;
+					component[size] = adjacency[i];
+					size++;
+				}
+			}
+		}
+		return size;
+		
+	}
+	
+	
+	
+	/*
+	 * Elements sorted by the Hilbert index of their centroid on a HILBERT_ORDER x HILBERT_ORDER grid covering the mesh
+	 */
+	private static int[] hilbert(List<Double[]> elementsCentroidsCoordinates) {
+		
+		int elementNumber = elementsCentroidsCoordinates.size();
+		double xMin = Double.MAX_VALUE, xMax = -Double.MAX_VALUE, yMin = Double.MAX_VALUE, yMax = -Double.MAX_VALUE;
+		for(int element=1; element<elementNumber; element++) {
+			Double[] centroid = elementsCentroidsCoordinates.get(element);
+			xMin = Math.min(xMin, centroid[0]);
+			xMax = Math.max(xMax, centroid[0]);
+			yMin = Math.min(yMin, centroid[1]);
+			yMax = Math.max(yMax, centroid[1]);
+		}
+		double scale = (HILBERT_ORDER-1)/Math.max(Math.max(xMax-xMin, yMax-yMin), Double.MIN_NORMAL);
+		
+		long[] keys = new long[elementNumber-1];
+		for(int element=1; element<elementNumber; element++) {
+			Double[] centroid = elementsCentroidsCoordinates.get(element);
+			int x = (int)((centroid[0]-xMin)*scale);
+			int y = (int)((centroid[1]-yMin)*scale);
+			keys[element-1] = (hilbertIndex(x, y) << 31) | element;
+		}
+		Arrays.sort(keys);
+		
+		int[] newToOld = new int[elementNumber];
+		for(int element=1; element<elementNumber; element++) {
+			newToOld[element] = (int)(keys[element-1] & Integer.MAX_VALUE);
+		}
+		return newToOld;
+		
+	}
+	
+	
+	
+	/*
+	 * Distance along the Hilbert curve of the cell (x, y) of the HILBERT_ORDER x HILBERT_ORDER grid
+	 */
+	private static long hilbertIndex(int x, int y) {
+		
+		long d = 0;
+		for(int s=HILBERT_ORDER/2; s>0; s/=2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long)s*s*((3*rx) ^ ry);
+			if(ry == 0) {
+				if(rx == 1) {
+					x = HILBERT_ORDER-1 - x;
+					y = HILBERT_ORDER-1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+		
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mesh of an ensemble of simulations that differ only in the soil parameters.
+ * The mesh inputs are replicated once for each member before building {@link Topology}, {@link Geometry}
+ * and {@link ProblemQuantities}, so the whole solver works on the ensemble as on a single mesh made of
+ * disconnected copies, and the outputs are split back into the members.
+ *
+ * The members are interleaved: the element e of the member m is the element (e-1)*members+m+1 of the replicated mesh,
+ * and the same for the edges, so that the loops over the elements and over the edges visit the values of all
+ * the members of an element, or of an edge, one after the other. The member m uses the parameter IDs shifted
+ * by m times the number of parameter sets of a member.
+ * As in the mesh inputs the entry 0 is unused and it is not replicated.
+ */
+public class MeshReplication {
+
+	public final int members;
+
+	/*
+	 * Mesh inputs of the ensemble
+	 */
+	public final List<Integer> edgeLeftNeighbour;
+	public final List<Integer> edgeRightNeighbour;
+	public final List<Integer> edgesBoundaryBCType;
+	public final List<Integer> edgesBoundaryBCValue;
+	public final List<ArrayList<Integer>> elementEdgesSet;
+	public final List<Double> elementsArea;
+	public final List<Double> edgesLenght;
+	public final List<Double> delta_j;
+	public final List<Double[]> edgeNormalVector;
+	public final List<Double[]> elementsCentroidsCoordinates;
+	public final List<Double[]> edgesCentroidsCoordinates;
+
+
+
+	public MeshReplication(int members, List<Integer> edgeLeftNeighbour, List<Integer> edgeRightNeighbour, List<Integer> edgesBoundaryBCType,
+			List<Integer> edgesBoundaryBCValue, List<? extends List<Integer>> elementEdgesSet, List<Double> elementsArea, List<Double> edgesLenght, List<Double> delta_j,
+			List<Double[]> edgeNormalVector, List<Double[]> elementsCentroidsCoordinates, List<Double[]> edgesCentroidsCoordinates) {
+
+		this.members = members;
+
+		this.edgeLeftNeighbour = replicateNeighbours(edgeLeftNeighbour);
+		this.edgeRightNeighbour = replicateNeighbours(edgeRightNeighbour);
+
+		this.elementEdgesSet = new ArrayList<ArrayList<Integer>>((elementEdgesSet.size()-1)*members+1);
+		this.elementEdgesSet.add(elementEdgesSet.get(0) == null ? null : new ArrayList<Integer>(elementEdgesSet.get(0)));
+		for(int element=1; element<elementEdgesSet.size(); element++) {
+			List<Integer> edges = elementEdgesSet.get(element);
+			for(int member=0; member<members; member++) {
+				ArrayList<Integer> memberEdges = new ArrayList<Integer>(edges.size());
+				for(Integer edge : edges) {
+					memberEdges.add(index(edge, member));
+				}
+				this.elementEdgesSet.add(memberEdges);
+			}
+		}
+
+		this.edgesBoundaryBCType = replicate(edgesBoundaryBCType);
+		this.edgesBoundaryBCValue = replicate(edgesBoundaryBCValue);
+		this.elementsArea = replicate(elementsArea);
+		this.edgesLenght = replicate(edgesLenght);
+		this.delta_j = replicate(delta_j);
+		this.edgeNormalVector = replicate(edgeNormalVector);
+		this.elementsCentroidsCoordinates = replicate(elementsCentroidsCoordinates);
+		this.edgesCentroidsCoordinates = replicate(edgesCentroidsCoordinates);
+
+	}
+
+
+
+	/**
+	 * @return index in the replicated mesh of the element, or of the edge, of the given member
+	 */
+	public int index(int element, int member) {
+
+		return (element-1)*members+member+1;
+
+	}
+
+
+
+	/**
+	 * @param list element or edge quantity of the mesh, the same for all the members
+	 * @return the list of the ensemble
+	 */
+	public <T> List<T> replicate(List<T> list) {
+
+		List<T> replicated = new ArrayList<T>((list.size()-1)*members+1);
+		replicated.add(list.get(0));
+		for(int i=1; i<list.size(); i++) {
+			for(int member=0; member<members; member++) {
+				replicated.add(list.get(i));
+			}
+		}
+		return replicated;
+
+	}
+
+
+
+	/**
+	 * @param elementParameterID parameter IDs of the elements of the mesh
+	 * @param parameterNumber number of parameter sets of each member
+	 * @return the parameter IDs of the ensemble, the ones of the member m shifted by m*parameterNumber
+	 */
+	public List<Integer> replicateParameterID(List<Integer> elementParameterID, int parameterNumber) {
+
+		List<Integer> replicated = new ArrayList<Integer>((elementParameterID.size()-1)*members+1);
+		replicated.add(elementParameterID.get(0));
+		for(int element=1; element<elementParameterID.size(); element++) {
+			for(int member=0; member<members; member++) {
+				replicated.add(elementParameterID.get(element) + member*parameterNumber);
+			}
+		}
+		return replicated;
+
+	}
+
+
+
+	/**
+	 * @param array element or edge quantity of the ensemble
+	 * @return the quantity of the given member, with the entry 0 of array
+	 */
+	public double[] member(double[] array, int member) {
+
+		double[] memberArray = new double[(array.length-1)/members+1];
+		memberArray[0] = array[0];
+		for(int i=1; i<memberArray.length; i++) {
+			memberArray[i] = array[index(i, member)];
+		}
+		return memberArray;
+
+	}
+
+
+
+	/*
+	 * Neighbours of the edges, 0 stands for no neighbour
+	 */
+	private List<Integer> replicateNeighbours(List<Integer> neighbour) {
+
+		List<Integer> replicated = new ArrayList<Integer>((neighbour.size()-1)*members+1);
+		replicated.add(neighbour.get(0));
+		for(int edge=1; edge<neighbour.size(); edge++) {
+			for(int member=0; member<members; member++) {
+				replicated.add(neighbour.get(edge) == 0 ? 0 : index(neighbour.get(edge), member));
+			}
+		}
+		return replicated;
+
+	}
+
+}
@@ -19,58 +19,66 @@
 
 package it.geoframe.blogspot.whetgeo2d.data;
 
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
+/**
+ * State of the problem stored as struct-of-arrays.
+ * Element quantities are indexed by the element number and edge quantities
+ * by the edge number, both starting from 1 as in the mesh inputs: the entry 0 is unused.
+ * Each simulation owns its own instance, see {@link SimulationContext}.
+ */
 public class ProblemQuantities {
 
-	private static ProblemQuantities uniqueInstance;
-	
-	public static ProblemQuantities getInstance() {
-		
-		return uniqueInstance;
-		
-	}
+	/*
+	 * Element quantities
+	 */
+	public double[] waterSuctions;
+	public double[] temperatures;
 	
-	public static ProblemQuantities getInstance(List<Double> icWaterSuction, List<Double> icTemperature, List<Integer> elementEquationStateID, List<Integer> elementParameterID, int elementNumber, int edgeNumber) {
-		
-		if (uniqueInstance == null) {
-			
-			uniqueInstance = new ProblemQuantities(icWaterSuction, icTemperature, elementEquationStateID, elementParameterID, elementNumber, edgeNumber);
-		}
-		return uniqueInstance;
-		
-	}
+	public double[] thetas;
+	public double[] thetasNew;
+	public double[] saturationDegree;
+	public double[] kappas;
+	public double[] volumes;
+	public double[] volumesNew;
 	
+	/*
+	 * Star points of the equation states, one set for each distinct equation state ID, parameter ID and temperature,
+	 * see indexStarPoints: the ones of an element are the entries elementStarPoint[element] of the arrays below.
+	 * thetaStar and dThetaStar are the closure equation and its derivative at the star points, dThetaZero
+	 * the derivative at zero water suction; they are computed with the star points by computeXStar.
+	 */
+	public int[] elementStarPoint;
+	public int[] starPointElement;
+	public int starPointNumber;
+	public double[] waterSuctionStar1;
+	public double[] waterSuctionStar2;
+	public double[] waterSuctionStar3;
+	public double[] thetaStar1;
+	public double[] thetaStar2;
+	public double[] thetaStar3;
+	public double[] dThetaStar1;
+	public double[] dThetaStar2;
+	public double[] dThetaStar3;
+	public double[] dThetaZero;
 	
-	public List<Double> waterSuctions;
-	public List<Double> temperatures;
-	
-	public List<Double> thetas;
-	public List<Double> thetasNew;
-	public List<Double> saturationDegree;
-//	public Map<Integer, Double> dThetas;
-//	public Map<Integer, Double> dThetas1;
-//	public Map<Integer, Double> dThetas2;
-//	public Map<Integer, Double> thetas1;
-//	public Map<Integer, Double> thetas2;
-	public List<Double> kappas;
-	public List<Double> kappasInterface;
-	public List<Double> gravityGradient;
-	public List<Double> volumes;
-	public List<Double> volumesNew;
-	public List<Double> darcyVelocities;
-	public List<Double> darcyVelocitiesX;
-	public List<Double> darcyVelocitiesZ;
-	public List<Double> darcyVelocitiesCapillary;
-	public List<Double> darcyVelocitiesGravity;
-	public List<Double> poreVelocities;
-	public List<Double> celerities;        // Rasmussen et al. 2000
-	public List<Double> kinematicRatio;  // Rasmussen et al. 2000
-	public List<Double> waterSuctionStar1;
-	public List<Double> waterSuctionStar2;
-	public List<Double> waterSuctionStar3;
+	/*
+	 * Edge quantities
+	 */
+	public double[] kappasInterface;
+	public double[] transmissibility;
+	public double[] gravityGradient;
+	public double[] darcyVelocities;
+	public double[] darcyVelocitiesX;
+	public double[] darcyVelocitiesZ;
+	public double[] darcyVelocitiesCapillary;
+	public double[] darcyVelocitiesGravity;
+	public double[] poreVelocities;
+	public double[] celerities;        // Rasmussen et al. 2000
+	public double[] kinematicRatio;  // Rasmussen et al. 2000
+	public double[] boundaryValues;  // boundary condition value of the edges, see Topology.resolveBoundaryValues
 	
 	public double waterVolume;
 	public double waterVolumeNew;
@@ -79,43 +87,153 @@ public class ProblemQuantities {
 	public double timeDelta;
 	public double sumBoundaryFlux;
 	
+	/*
+	 * Volume error of each ensemble member, see MeshReplication, errorVolume is the one of the whole ensemble
+	 */
+	public double[] memberErrorVolume;
+	
 	
-	public List<Integer> elementEquationStateID;
-	public List<Integer> elementParameterID;
+	public int[] elementEquationStateID;
+	public int[] elementParameterID;
+
+	public ProblemQuantities(List<Double> icWaterSuction, List<Double> icTemperature, List<Integer> elementEquationStateID, List<Integer> elementParameterID, int elementNumber, int edgeNumber) {
+		
+		this.waterSuctions = toArray(icWaterSuction, elementNumber);
+		this.temperatures = toArray(icTemperature, elementNumber);
+		
+		thetas = new double[elementNumber];
+		thetasNew = new double[elementNumber];
+		saturationDegree = new double[elementNumber];
+		kappas = new double[elementNumber];
+		volumes = new double[elementNumber];
+		volumesNew = new double[elementNumber];
 
-	private ProblemQuantities(List<Double> icWaterSuction, List<Double> icTemperature, List<Integer> elementEquationStateID, List<Integer> elementParameterID, int elementNumber, int edgeNumber) {
-		
-		this.waterSuctions = new ArrayList<Double>(icWaterSuction);
-		this.temperatures = new ArrayList<Double>(icTemperature);
-		
-		thetas = new ArrayList<Double>(Arrays.asList(new Double[elementNumber]));
-		thetasNew = new ArrayList<Double>(Arrays.asList(new Double[elementNumber]));
-		saturationDegree = new ArrayList<Double>(Arrays.asList(new Double[elementNumber]));
-//	    dThetas = new HashMap<Integer, Double>();
-//		ProblemQuantities.dThetas1 = new HashMap<Integer, Double>();
-//		ProblemQuantities.dThetas2 = new HashMap<Integer, Double>();
-//		ProblemQuantities.thetas1 = new HashMap<Integer, Double>();
-//		ProblemQuantities.thetas2 = new HashMap<Integer, Double>();
-		kappas = new ArrayList<Double>(Arrays.asList(new Double[elementNumber]));
-		kappasInterface = new ArrayList<Double>(Arrays.asList(new Double[edgeNumber]));
-		gravityGradient = new ArrayList<Double>(Arrays.asList(new Double[edgeNumber]));
-		volumes = new ArrayList<Double>(Arrays.asList(new Double[elementNumber]));
-		volumesNew = new ArrayList<Double>(Arrays.asList(new Double[elementNumber]));
-		waterSuctionStar1 = new ArrayList<Double>(Arrays.asList(new Double[elementNumber]));
-		waterSuctionStar2 = new ArrayList<Double>(Arrays.asList(new Double[elementNumber]));
-		waterSuctionStar3 = new ArrayList<Double>(Arrays.asList(new Double[elementNumber])); 
-		darcyVelocities = new ArrayList<Double>(Arrays.asList(new Double[edgeNumber]));
-		darcyVelocitiesX = new ArrayList<Double>(Arrays.asList(new Double[edgeNumber]));
-		darcyVelocitiesZ = new ArrayList<Double>(Arrays.asList(new Double[edgeNumber]));
-		darcyVelocitiesCapillary = new ArrayList<Double>(Arrays.asList(new Double[edgeNumber]));
-		darcyVelocitiesGravity = new ArrayList<Double>(Arrays.asList(new Double[edgeNumber]));
-		poreVelocities = new ArrayList<Double>(Arrays.asList(new Double[edgeNumber]));
-		celerities = new ArrayList<Double>(Arrays.asList(new Double[edgeNumber]));
-		kinematicRatio = new ArrayList<Double>(Arrays.asList(new Double[edgeNumber]));
-		
-		this.elementEquationStateID = new ArrayList<Integer>(elementEquationStateID);
-		this.elementParameterID = new ArrayList<Integer>(elementParameterID);
+		kappasInterface = new double[edgeNumber];
+		transmissibility = new double[edgeNumber];
+		gravityGradient = new double[edgeNumber];
+		darcyVelocities = new double[edgeNumber];
+		darcyVelocitiesX = new double[edgeNumber];
+		darcyVelocitiesZ = new double[edgeNumber];
+		darcyVelocitiesCapillary = new double[edgeNumber];
+		darcyVelocitiesGravity = new double[edgeNumber];
+		poreVelocities = new double[edgeNumber];
+		celerities = new double[edgeNumber];
+		kinematicRatio = new double[edgeNumber];
+		boundaryValues = new double[edgeNumber];
+		
+		this.elementEquationStateID = toIntArray(elementEquationStateID, elementNumber);
+		this.elementParameterID = toIntArray(elementParameterID, elementNumber);
 
 	}
+	
+	
+	/**
+	 * Give the elements the index of their star points, one for each distinct equation state ID,
+	 * parameter ID and temperature, and allocate the star point arrays. starPointElement is an element
+	 * of each star point, the one to pass to computeXStar of the equation state. The unused entry 0 is set to -1.
+	 */
+	public void indexStarPoints() {
+		
+		elementStarPoint = new int[elementEquationStateID.length];
+		elementStarPoint[0] = -1;
+		int[] elements = new int[elementEquationStateID.length];
+		
+		HashMap<StarPointKey, Integer> starPoints = new HashMap<StarPointKey, Integer>();
+		for(int element=1; element<elementEquationStateID.length; element++) {
+			/*
+			 * Neighbouring elements usually belong to the same layer
+			 */
+			if(element > 1 && elementEquationStateID[element] == elementEquationStateID[element-1]
+					&& elementParameterID[element] == elementParameterID[element-1]
+					&& Double.compare(temperatures[element], temperatures[element-1]) == 0) {
+				elementStarPoint[element] = elementStarPoint[element-1];
+				continue;
+			}
+			StarPointKey key = new StarPointKey(elementEquationStateID[element], elementParameterID[element], temperatures[element]);
+			Integer starPoint = starPoints.get(key);
+			if(starPoint == null) {
+				starPoint = starPoints.size();
+				starPoints.put(key, starPoint);
+				elements[starPoint] = element;
+			}
+			elementStarPoint[element] = starPoint;
+		}
+		
+		starPointNumber = starPoints.size();
+		starPointElement = Arrays.copyOf(elements, starPointNumber);
+		waterSuctionStar1 = new double[starPointNumber];
+		waterSuctionStar2 = new double[starPointNumber];
+		waterSuctionStar3 = new double[starPointNumber];
+		thetaStar1 = new double[starPointNumber];
+		thetaStar2 = new double[starPointNumber];
+		thetaStar3 = new double[starPointNumber];
+		dThetaStar1 = new double[starPointNumber];
+		dThetaStar2 = new double[starPointNumber];
+		dThetaStar3 = new double[starPointNumber];
+		dThetaZero = new double[starPointNumber];
+		
+	}
+	
+	
+	
+	private static final class StarPointKey {
+		
+		private final int equationStateID;
+		private final int parameterID;
+		private final double temperature;
+		
+		StarPointKey(int equationStateID, int parameterID, double temperature) {
+			
+			this.equationStateID = equationStateID;
+			this.parameterID = parameterID;
+			this.temperature = temperature;
+			
+		}
+		
+		@Override
+		public int hashCode() {
+			
+			return 31*(31*equationStateID + parameterID) + Double.hashCode(temperature);
+			
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			
+			if(!(object instanceof StarPointKey)) {
+				return false;
+			}
+			StarPointKey key = (StarPointKey) object;
+			return key.equationStateID == equationStateID && key.parameterID == parameterID
+					&& Double.compare(key.temperature, temperature) == 0;
+			
+		}
+		
+	}
+	
+	
+	/*
+	 * Entries that are not defined in the input lists (i.e. the unused entry 0) are set to -9999
+	 */
+	private static double[] toArray(List<Double> list, int size) {
+		
+		double[] array = new double[size];
+		for(int i=0; i<size; i++) {
+			array[i] = list.get(i) == null ? -9999.0 : list.get(i);
+		}
+		return array;
+		
+	}
+	
+	
+	private static int[] toIntArray(List<Integer> list, int size) {
+		
+		int[] array = new int[size];
+		for(int i=0; i<size; i++) {
+			array[i] = list.get(i) == null ? -9999 : list.get(i);
+		}
+		return array;
+		
+	}
 
 }
@@ -0,0 +1,154 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.data;
+
+import java.lang.reflect.Constructor;
+
+import it.geoframe.blogspot.closureequation.closureequation.ClosureEquation;
+import it.geoframe.blogspot.closureequation.closureequation.Parameters;
+
+/**
+ * Data of a single simulation: the mesh topology and geometry, which are immutable and may be
+ * shared with other simulations, and the problem quantities and soil parameters, which are owned
+ * by the simulation. The context is passed to the solver, the operator, the equation states and
+ * ComputeQuantitiesRichards, so that several simulations can run in the same JVM.
+ */
+public class SimulationContext {
+	
+	public final Topology topology;
+	public final Geometry geometry;
+	public final ProblemQuantities variables;
+	public final Parameters parameters;
+	
+	/**
+	 * Number of ensemble members, 1 for a single simulation.
+	 * The mesh of an ensemble is replicated with the members interleaved, see {@link MeshReplication}.
+	 */
+	public final int members;
+	
+	
+	
+	public SimulationContext(Topology topology, Geometry geometry, ProblemQuantities variables, Parameters parameters) {
+		
+		this(topology, geometry, variables, parameters, 1);
+		
+	}
+	
+	
+	
+	public SimulationContext(Topology topology, Geometry geometry, ProblemQuantities variables, Parameters parameters, int members) {
+		
+		this.topology = topology;
+		this.geometry = geometry;
+		this.variables = variables;
+		this.parameters = parameters;
+		this.members = members;
+		
+	}
+	
+	
+	
+	/**
+	 * Make the closure equation read the soil parameters of this simulation.
+	 * The closure equations take the JVM-wide Parameters.getInstance() when they are created.
+	 * 
+	 * @param closureEquation closure equation created for this simulation
+	 * @return the same closure equation
+	 */
+	public ClosureEquation bind(ClosureEquation closureEquation) {
+		
+		closureEquation.parameters = parameters;
+		return closureEquation;
+		
+	}
+	
+	
+	
+	/**
+	 * Version of the closure equation library whose private constructor of Parameters is used by createParameters
+	 */
+	public static final String CLOSURE_EQUATION_VERSION = "1.0.1";
+	
+	
+	
+	/**
+	 * Create a new set of soil parameters. Parameters.getInstance(...) returns the same object
+	 * at every call and the library has no public constructor, so the private constructor of
+	 * closureequation CLOSURE_EQUATION_VERSION is used instead.
+	 * 
+	 * @throws IncompatibleLibraryException if the closure equation library has another version,
+	 * the constructor has another signature or it cannot be made accessible
+	 */
+	public static Parameters createParameters(double referenceTemperatureSWRC, double beta0, double[] thetaS, double[] thetaR,
+			double[] par1SWRC, double[] par2SWRC, double[] par3SWRC, double[] par4SWRC, double[] par5SWRC, double[] ks,
+			double[] alphaSpecificStorage, double[] betaSpecificStorage) {
+		
+		String version = Parameters.class.getPackage().getImplementationVersion();
+		if(version != null && !version.equals(CLOSURE_EQUATION_VERSION)) {
+			throw new IncompatibleLibraryException("closureequation " + version + " is in use, but the soil parameters can only be created with closureequation "
+					+ CLOSURE_EQUATION_VERSION);
+		}
+		
+		Constructor<Parameters> constructor;
+		try {
+			constructor = Parameters.class.getDeclaredConstructor(double.class, double.class,
+					double[].class, double[].class, double[].class, double[].class, double[].class, double[].class, double[].class,
+					double[].class, double[].class, double[].class);
+		} catch (NoSuchMethodException e) {
+			throw new IncompatibleLibraryException("the constructor Parameters(double, double, double[] x 10) of closureequation "
+					+ CLOSURE_EQUATION_VERSION + " is missing, the library has another version", e);
+		}
+		
+		try {
+			constructor.setAccessible(true);
+		} catch (RuntimeException e) {
+			throw new IncompatibleLibraryException("the constructor of Parameters is not accessible, the package "
+					+ Parameters.class.getPackage().getName() + " must be open to this component", e);
+		}
+		
+		try {
+			return constructor.newInstance(referenceTemperatureSWRC, beta0, thetaS, thetaR, par1SWRC, par2SWRC, par3SWRC, par4SWRC, par5SWRC,
+					ks, alphaSpecificStorage, betaSpecificStorage);
+		} catch (ReflectiveOperationException e) {
+			throw new IncompatibleLibraryException("the constructor of Parameters of closureequation " + CLOSURE_EQUATION_VERSION + " failed", e);
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * The closure equation library is not the one the soil parameters can be created with
+	 */
+	public static class IncompatibleLibraryException extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		public IncompatibleLibraryException(String message) {
+			super("ERROR SimulationContext: " + message);
+		}
+		
+		public IncompatibleLibraryException(String message, Throwable cause) {
+			super("ERROR SimulationContext: " + message, cause);
+		}
+		
+	}
+
+}
@@ -19,42 +19,220 @@
 
 package it.geoframe.blogspot.whetgeo2d.data;
 
-import java.util.ArrayList;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+/**
+ * Immutable mesh topology built once from the OMS inputs and shared among the simulations using the same inputs.
+ * Edge to element connectivity is stored as int arrays indexed by the edge number,
+ * element to edge connectivity is stored in compressed sparse row (CSR) format:
+ * the edges of the element i are elementEdgesIndex[elementEdgesOffset[i]] ... elementEdgesIndex[elementEdgesOffset[i+1]-1].
+ * As in the mesh inputs the entry 0 is unused.
+ */
 public class Topology {
 
-private static Topology uniqueInstance;
-	
-	public static Topology getInstance() {
-
-		return uniqueInstance;
-	}
+	private static final Map<IdentityKey, WeakReference<Topology>> sharedInstances = new WeakHashMap<IdentityKey, WeakReference<Topology>>();
 	
+	/**
+	 * Topology built from the given inputs. Simulations that receive the very same input lists
+	 * (same objects, not just equal content) share a single instance, since it is immutable.
+	 */
 	public static Topology getInstance(List<Integer> edgeLeftNeighbour, List<Integer> edgeRightNeighbour, List<Integer> edgesBoundaryBCType,
-			 							List<Integer> edgesBoundaryBCValue, List<ArrayList<Integer>> elementEdgesSet) {
-		if (uniqueInstance == null) {
-			uniqueInstance = new Topology(edgeLeftNeighbour, edgeRightNeighbour, edgesBoundaryBCType, edgesBoundaryBCValue, elementEdgesSet);
+			 							List<Integer> edgesBoundaryBCValue, List<? extends List<Integer>> elementEdgesSet) {
+		
+		IdentityKey key = new IdentityKey(edgeLeftNeighbour, edgeRightNeighbour, edgesBoundaryBCType, edgesBoundaryBCValue, elementEdgesSet);
+		synchronized (sharedInstances) {
+			WeakReference<Topology> reference = sharedInstances.get(key);
+			Topology topology = reference == null ? null : reference.get();
+			if (topology == null) {
+				topology = new Topology(key, edgeLeftNeighbour, edgeRightNeighbour, edgesBoundaryBCType, edgesBoundaryBCValue, elementEdgesSet);
+				sharedInstances.put(key, new WeakReference<Topology>(topology));
+			}
+			return topology;
 		}
-		return uniqueInstance;
+		
 	}
 	
-	public List<Integer> edgeLeftNeighbour;
-	public List<Integer> edgeRightNeighbour;
-	public List<Integer> edgesBoundaryBCType;
-	public List<Integer> edgesBoundaryBCValue;
-	public List<ArrayList<Integer>> elementEdgesSet;
+	/*
+	 * Keeps the cache entry alive as long as the topology is in use
+	 */
+	@SuppressWarnings("unused")
+	private final IdentityKey key;
+	
+	/*
+	 * Number of elements and edges, including the unused entry 0
+	 */
+	public final int elementNumber;
+	public final int edgeNumber;
+	
+	public final int[] edgeLeftNeighbour;
+	public final int[] edgeRightNeighbour;
+	public final int[] edgesBoundaryBCType;
+	public final int[] edgesBoundaryBCValue;
+	
+	public final int[] elementEdgesOffset;
+	public final int[] elementEdgesIndex;
+	
+	/*
+	 * +1 if the element is the left neighbour of the edge elementEdgesIndex[i], -1 if it is the right one
+	 */
+	public final double[] elementEdgesSign;
+	
+	/*
+	 * Edges classified once by kind, each array in ascending order:
+	 * interior edges have two neighbours, boundary edges are split by the type of their boundary condition
+	 * 	- 1 neumann
+	 * 	- 2 dirichlet with water pressure
+	 * 	- 3 free drainage
+	 * 	- 4 dirichlet with total head
+	 * dirichletEdges are the edges of type 2 and 4, the ones that contribute to the matrix,
+	 * boundaryEdges are all the boundary edges, also the ones of other types.
+	 */
+	public final int[] interiorEdges;
+	public final int[] neumannEdges;
+	public final int[] pressureEdges;
+	public final int[] freeDrainageEdges;
+	public final int[] totalHeadEdges;
+	public final int[] dirichletEdges;
+	public final int[] boundaryEdges;
+	
+	/*
+	 * Keys of the boundary condition map used by the edges of type 1, 2 and 4, and the edges using each of them:
+	 * boundaryValueEdges[boundaryValueEdgesOffset[k] ... boundaryValueEdgesOffset[k+1]-1] use boundaryValueKeys[k]
+	 */
+	private final int[] boundaryValueKeys;
+	private final int[] boundaryValueEdgesOffset;
+	private final int[] boundaryValueEdges;
 
 	
-	private Topology(List<Integer> edgeLeftNeighbour, List<Integer> edgeRightNeighbour, List<Integer> edgesBoundaryBCType,
-				List<Integer> edgesBoundaryBCValue, List<ArrayList<Integer>> elementEdgesSet) {
+	private Topology(IdentityKey key, List<Integer> edgeLeftNeighbour, List<Integer> edgeRightNeighbour, List<Integer> edgesBoundaryBCType,
+				List<Integer> edgesBoundaryBCValue, List<? extends List<Integer>> elementEdgesSet) {
 		
-		this.edgeLeftNeighbour = new ArrayList<Integer>(edgeLeftNeighbour);
-		this.edgeRightNeighbour = new ArrayList<Integer>(edgeRightNeighbour);
-		this.edgesBoundaryBCType = new ArrayList<Integer>(edgesBoundaryBCType);
-		this.edgesBoundaryBCValue = new ArrayList<Integer>(edgesBoundaryBCValue);
-		this.elementEdgesSet = new ArrayList<ArrayList<Integer>>(elementEdgesSet);
+		this.key = key;
+		this.elementNumber = elementEdgesSet.size();
+		this.edgeNumber = edgeLeftNeighbour.size();
+		
+		this.edgeLeftNeighbour = toIntArray(edgeLeftNeighbour);
+		this.edgeRightNeighbour = toIntArray(edgeRightNeighbour);
+		this.edgesBoundaryBCType = toIntArray(edgesBoundaryBCType);
+		this.edgesBoundaryBCValue = toIntArray(edgesBoundaryBCValue);
+		
+		this.elementEdgesOffset = new int[elementNumber+1];
+		for(int element=1; element<elementNumber; element++) {
+			elementEdgesOffset[element+1] = elementEdgesOffset[element] + elementEdgesSet.get(element).size();
+		}
+		
+		/*
+		 * Edges of each element are sorted in ascending order so that a gather over the
+		 * element edges visits them in the same order of a loop over the edges.
+		 */
+		this.elementEdgesIndex = new int[elementEdgesOffset[elementNumber]];
+		for(int element=1; element<elementNumber; element++) {
+			int position = elementEdgesOffset[element];
+			for(Integer edge : elementEdgesSet.get(element)) {
+				elementEdgesIndex[position] = edge;
+				position++;
+			}
+			Arrays.sort(elementEdgesIndex, elementEdgesOffset[element], elementEdgesOffset[element+1]);
+		}
+		
+		this.elementEdgesSign = new double[elementEdgesIndex.length];
+		for(int element=1; element<elementNumber; element++) {
+			for(int i=elementEdgesOffset[element]; i<elementEdgesOffset[element+1]; i++) {
+				elementEdgesSign[i] = this.edgeLeftNeighbour[elementEdgesIndex[i]]==element ? 1.0 : -1.0;
+			}
+		}
+		
+		this.interiorEdges = selectEdges(0);
+		this.neumannEdges = selectEdges(1);
+		this.pressureEdges = selectEdges(2);
+		this.freeDrainageEdges = selectEdges(3);
+		this.totalHeadEdges = selectEdges(4);
+		this.dirichletEdges = selectEdges(2, 4);
+		this.boundaryEdges = selectEdges(-1);
+		
+		int[] valueEdges = selectEdges(1, 2, 4);
+		int[] keys = new int[valueEdges.length];
+		for(int i=0; i<valueEdges.length; i++) {
+			keys[i] = this.edgesBoundaryBCValue[valueEdges[i]];
+		}
+		this.boundaryValueKeys = Arrays.stream(keys).distinct().sorted().toArray();
+		for(int i=0; i<valueEdges.length; i++) {
+			keys[i] = Arrays.binarySearch(boundaryValueKeys, keys[i]);
+		}
+		this.boundaryValueEdgesOffset = new int[boundaryValueKeys.length+1];
+		for(int i=0; i<valueEdges.length; i++) {
+			boundaryValueEdgesOffset[keys[i]+1]++;
+		}
+		for(int k=0; k<boundaryValueKeys.length; k++) {
+			boundaryValueEdgesOffset[k+1] += boundaryValueEdgesOffset[k];
+		}
+		this.boundaryValueEdges = new int[valueEdges.length];
+		int[] position = Arrays.copyOf(boundaryValueEdgesOffset, boundaryValueKeys.length);
+		for(int i=0; i<valueEdges.length; i++) {
+			boundaryValueEdges[position[keys[i]]++] = valueEdges[i];
+		}
 				
 	}
+	
+	
+	
+	/**
+	 * Resolve the boundary condition values from the map of the OMS input into a dense array indexed by the edge,
+	 * with one map lookup per key. Only the entries of the edges of type 1, 2 and 4 are written.
+	 * 
+	 * @param inBC boundary condition values, by the key edgesBoundaryBCValue
+	 * @param values output, the value of each boundary edge
+	 */
+	public void resolveBoundaryValues(Map<Integer, double[]> inBC, double[] values) {
+		
+		for(int k=0; k<boundaryValueKeys.length; k++) {
+			double value = inBC.get(boundaryValueKeys[k])[0];
+			for(int i=boundaryValueEdgesOffset[k]; i<boundaryValueEdgesOffset[k+1]; i++) {
+				values[boundaryValueEdges[i]] = value;
+			}
+		}
+		
+	}
+	
+	
+	
+	/*
+	 * Edges with one of the given kinds in ascending order: 0 is interior, -1 any boundary edge, the others are boundary condition types.
+	 * A boundary edge with type 0 has kind -2, so that it is never interior.
+	 */
+	private int[] selectEdges(int... kinds) {
+		
+		int[] edges = new int[edgeNumber];
+		int size = 0;
+		for(int edge=1; edge<edgeNumber; edge++) {
+			int kind = edgeRightNeighbour[edge] != 0 ? 0 : (edgesBoundaryBCType[edge] == 0 ? -2 : edgesBoundaryBCType[edge]);
+			for(int k : kinds) {
+				if(k == kind || k == -1 && edgeRightNeighbour[edge] == 0) {
+					edges[size++] = edge;
+					break;
+				}
+			}
+		}
+		return Arrays.copyOf(edges, size);
+		
+	}
+	
+	
+	/*
+	 * Entries that are not defined in the input lists are set to -9999
+	 */
+	private static int[] toIntArray(List<Integer> list) {
+		
+		int[] array = new int[list.size()];
+		for(int i=0; i<list.size(); i++) {
+			array[i] = list.get(i) == null ? -9999 : list.get(i);
+		}
+		return array;
+		
+	}
 
 }
@@ -0,0 +1,118 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.geoframe.blogspot.whetgeo2d.equationstate;
+
+import it.geoframe.blogspot.closureequation.closureequation.ClosureEquation;
+import it.geoframe.blogspot.closureequation.equationstate.EquationState;
+
+/**
+ * Equation state that also evaluates p, pIntegral and q, qIntegral for a block of elements at once.
+ * The vectors are indexed by the element number and the block is the range from, ..., to-1 of elements
+ * sharing this equation state. The default implementations loop over the scalar methods,
+ * the models override them with loops that resolve the star points and the areas once per element.
+ */
+public abstract class BatchedEquationState extends EquationState {
+
+
+
+	public BatchedEquationState(ClosureEquation closureEquation) {
+		super(closureEquation);
+	}
+
+
+
+	/**
+	 * @return the closure equation evaluated by the equation state, with its table if it is tabulated
+	 */
+	public ClosureEquation getClosureEquation() {
+		return closureEquation;
+	}
+
+
+
+	/**
+	 * @param x water suctions
+	 * @param y temperatures
+	 * @param id parameter ID of the elements
+	 * @param p output vector of p
+	 * @param pIntegral output vector of pIntegral
+	 */
+	public void p(double[] x, double[] y, int[] id, int from, int to, double[] p, double[] pIntegral) {
+
+		for(int element=from; element<to; element++) {
+			p[element] = p(x[element], y[element], id[element], element);
+			pIntegral[element] = pIntegral(x[element], y[element], id[element], element);
+		}
+
+	}
+
+
+
+	/**
+	 * @param q output vector of q
+	 * @param qIntegral output vector of qIntegral
+	 */
+	public void q(double[] x, double[] y, int[] id, int from, int to, double[] q, double[] qIntegral) {
+
+		for(int element=from; element<to; element++) {
+			q[element] = q(x[element], y[element], id[element], element);
+			qIntegral[element] = qIntegral(x[element], y[element], id[element], element);
+		}
+
+	}
+
+
+
+	/**
+	 * p and pIntegral of the block, with the scalar methods if the equation state is not batched
+	 */
+	public static void computeP(EquationState equationState, double[] x, double[] y, int[] id, int from, int to, double[] p, double[] pIntegral) {
+
+		if(equationState instanceof BatchedEquationState) {
+			((BatchedEquationState) equationState).p(x, y, id, from, to, p, pIntegral);
+		} else {
+			for(int element=from; element<to; element++) {
+				p[element] = equationState.p(x[element], y[element], id[element], element);
+				pIntegral[element] = equationState.pIntegral(x[element], y[element], id[element], element);
+			}
+		}
+
+	}
+
+
+
+	/**
+	 * q and qIntegral of the block, with the scalar methods if the equation state is not batched
+	 */
+	public static void computeQ(EquationState equationState, double[] x, double[] y, int[] id, int from, int to, double[] q, double[] qIntegral) {
+
+		if(equationState instanceof BatchedEquationState) {
+			((BatchedEquationState) equationState).q(x, y, id, from, to, q, qIntegral);
+		} else {
+			for(int element=from; element<to; element++) {
+				q[element] = equationState.q(x[element], y[element], id[element], element);
+				qIntegral[element] = equationState.qIntegral(x[element], y[element], id[element], element);
+			}
+		}
+
+	}
+
+}
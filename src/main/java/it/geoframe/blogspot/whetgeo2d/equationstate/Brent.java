@@ -0,0 +1,130 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.geoframe.blogspot.whetgeo2d.equationstate;
+
+import it.geoframe.blogspot.closureequation.equationstate.EquationState;
+
+/**
+ * Zero of the second derivative of the equation state in a bracketing interval, by the Brent method:
+ * inverse quadratic interpolation or secant steps, safeguarded by bisection when they do not shrink the bracket.
+ * It replaces the Bisection of the numerical library with the same tolerance, in a few evaluations.
+ * A Newton method is not used since the closure equations have no third derivative.
+ */
+public class Brent {
+	
+	private static final double TOLERANCE = 1e-11;
+	private static final int MAXIMUM_ITERATIONS = 150;
+	
+	private final EquationState equationState;
+	
+	
+	
+	public Brent(EquationState equationState) {
+		
+		this.equationState = equationState;
+		
+	}
+	
+	
+	
+	/**
+	 * @param a one end of the interval
+	 * @param b other end of the interval, ddEquationState must have opposite signs at a and b
+	 * @return the zero of ddEquationState, within TOLERANCE
+	 */
+	public double findZero(double a, double b, double y, int id, int element) {
+		
+		double fa = equationState.ddEquationState(a, y, id, element);
+		double fb = equationState.ddEquationState(b, y, id, element);
+		if(fa*fb > 0.0) {
+			System.out.println("\tBRENT: error finding zero, the interval [" + a + ", " + b + "] does not bracket a zero.");
+			return Math.abs(fa) < Math.abs(fb) ? a : b;
+		}
+		
+		double c = b;
+		double fc = fb;
+		double d = 0.0;
+		double e = 0.0;
+		for(int iteration=0; iteration<MAXIMUM_ITERATIONS; iteration++) {
+			
+			if(fb*fc > 0.0) {
+				c = a;
+				fc = fa;
+				d = b - a;
+				e = d;
+			}
+			if(Math.abs(fc) < Math.abs(fb)) {
+				a = b;
+				b = c;
+				c = a;
+				fa = fb;
+				fb = fc;
+				fc = fa;
+			}
+			
+			double tolerance = 2.0*Math.ulp(b) + 0.5*TOLERANCE;
+			double middle = 0.5*(c - b);
+			if(Math.abs(middle) <= tolerance || fb == 0.0) {
+				return b;
+			}
+			
+			if(Math.abs(e) >= tolerance && Math.abs(fa) > Math.abs(fb)) {
+				double s = fb/fa;
+				double p;
+				double q;
+				if(a == c) {
+					p = 2.0*middle*s;
+					q = 1.0 - s;
+				} else {
+					double r = fb/fc;
+					q = fa/fc;
+					p = s*(2.0*middle*q*(q - r) - (b - a)*(r - 1.0));
+					q = (q - 1.0)*(r - 1.0)*(s - 1.0);
+				}
+				if(p > 0.0) {
+					q = -q;
+				}
+				p = Math.abs(p);
+				if(2.0*p < Math.min(3.0*middle*q - Math.abs(tolerance*q), Math.abs(e*q))) {
+					e = d;
+					d = p/q;
+				} else {
+					d = middle;
+					e = d;
+				}
+			} else {
+				d = middle;
+				e = d;
+			}
+			
+			a = b;
+			fa = fb;
+			b += Math.abs(d) > tolerance ? d : Math.copySign(tolerance, middle);
+			fb = equationState.ddEquationState(b, y, id, element);
+			
+		}
+		
+		System.out.println("\tBRENT: reached " + MAXIMUM_ITERATIONS + " iterations |b-c| = " + Math.abs(b-c));
+		return b;
+		
+	}
+
+}
@@ -21,36 +21,79 @@ package it.geoframe.blogspot.whetgeo2d.equationstate;
 
 import it.geoframe.blogspot.closureequation.closureequation.ClosureEquation;
 import it.geoframe.blogspot.closureequation.equationstate.EquationState;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
 
 public class EquationStateFactory {
 	
 	
-	public EquationState create(String model, ClosureEquation closureEquation) {
+	/**
+	 * The suffix Tabulated, optionally followed by the tolerance (e.g. "Van Genuchten Tabulated 1e-8"),
+	 * evaluates the closure equation of the model with {@link TabulatedClosureEquation}.
+	 */
+	public EquationState create(String model, ClosureEquation closureEquation, SimulationContext context) {
+		
+		return create(model, closureEquation, context, -1, null);
+		
+	}
+	
+	
+	
+	/**
+	 * @param equationStateID index of the model in the list of the equation states
+	 * @param closureTables tabulated closure equations by equation state ID, null not to share them. The tables of a model
+	 * are built at the first call and shared by the later ones, e.g. by the models of the other threads.
+	 */
+	public EquationState create(String model, ClosureEquation closureEquation, SimulationContext context, int equationStateID,
+			TabulatedClosureEquation[] closureTables) {
 		
 		EquationState myModel = null;
 		
+		int tabulated = model.toLowerCase().indexOf("tabulated");
+		if(tabulated > 0) {
+			String tolerance = model.substring(tabulated + "tabulated".length()).trim();
+			double tableTolerance = TabulatedClosureEquation.DEFAULT_TOLERANCE;
+			if(!tolerance.isEmpty()) {
+				try {
+					tableTolerance = Double.parseDouble(tolerance);
+				} catch(NumberFormatException e) {
+					System.out.println("\n\n\tERROR: please check the tolerance of the typeEquationState \"" + model + "\"");
+					return null;
+				}
+			}
+			TabulatedClosureEquation tabulatedClosureEquation;
+			if(closureTables == null) {
+				tabulatedClosureEquation = new TabulatedClosureEquation(closureEquation, context, equationStateID, tableTolerance);
+			} else if(closureTables[equationStateID] == null) {
+				tabulatedClosureEquation = new TabulatedClosureEquation(closureEquation, context, equationStateID, tableTolerance);
+				closureTables[equationStateID] = tabulatedClosureEquation;
+			} else {
+				tabulatedClosureEquation = new TabulatedClosureEquation(closureEquation, closureTables[equationStateID]);
+			}
+			return create(model.substring(0, tabulated).trim(), tabulatedClosureEquation, context);
+		}
+		
 		if(model.equalsIgnoreCase("Van Genuchten") || model.equalsIgnoreCase("VanGenuchten") || model.equalsIgnoreCase("VG")) {
-			myModel = new SoilWaterVolumeVanGenuchten(closureEquation);
+			myModel = new SoilWaterVolumeVanGenuchten(closureEquation, context);
 		} else if(model.equalsIgnoreCase("Brooks Corey") || model.equalsIgnoreCase("BrooksCorey") || model.equalsIgnoreCase("BC")) {
-			myModel = new SoilWaterVolumeBrooksCorey(closureEquation);
+			myModel = new SoilWaterVolumeBrooksCorey(closureEquation, context);
 		} else if(model.equalsIgnoreCase("Kosugi") ) {
-			myModel = new SoilWaterVolumeKosugi(closureEquation);
+			myModel = new SoilWaterVolumeKosugi(closureEquation, context);
 		} else if(model.equalsIgnoreCase("Romano") ) {
-			myModel = new SoilWaterVolumeRomano(closureEquation);
+			myModel = new SoilWaterVolumeRomano(closureEquation, context);
 		} else if(model.equalsIgnoreCase("Gardner") ) {
-			myModel = new SoilWaterVolumeGardner(closureEquation);
+			myModel = new SoilWaterVolumeGardner(closureEquation, context);
 //		} else if(model.equalsIgnoreCase("Water Depth") || model.equalsIgnoreCase("WaterDepth") ) {
-//			myModel = new WaterDepth(closureEquation);
+//			myModel = new WaterDepth(closureEquation, context);
 //		} else if(model.equalsIgnoreCase("Soil Internal Energy") || model.equalsIgnoreCase("SoilInternalEnergy")) {
-//			myModel = new SoilInternalEnergy(closureEquation);
+//			myModel = new SoilInternalEnergy(closureEquation, context);
 //		} else if(model.equalsIgnoreCase("Freezing Soil Internal Energy") || model.equalsIgnoreCase("FreezingSoilInternalEnergy")) {
-//			myModel = new FreezingSoilInternalEnergy(closureEquation);
+//			myModel = new FreezingSoilInternalEnergy(closureEquation, context);
 //		} else if(model.equalsIgnoreCase("Soil heat capacity") || model.equalsIgnoreCase("SoilHeatCapacity")) {
-//			myModel = new SoilHeatCapacity(closureEquation);
+//			myModel = new SoilHeatCapacity(closureEquation, context);
 //		} else if(model.equalsIgnoreCase("Water heat capacity") || model.equalsIgnoreCase("WaterHeatCapacity")) {
-//			myModel = new PureWaterHeatCapacity(closureEquation);
+//			myModel = new PureWaterHeatCapacity(closureEquation, context);
 //		}  else if(model.equalsIgnoreCase("Water internal energy") || model.equalsIgnoreCase("Waterinternalenergy")) {
-//			myModel = new PureWaterInternalEnergy(closureEquation);
+//			myModel = new PureWaterInternalEnergy(closureEquation, context);
 		} else {
 			System.out.println("\n\n\tERROR: please check the stateEquationModel");
 		}
@@ -23,24 +23,24 @@
 package it.geoframe.blogspot.whetgeo2d.equationstate;
 
 import it.geoframe.blogspot.closureequation.closureequation.ClosureEquation;
-import it.geoframe.blogspot.closureequation.equationstate.EquationState;
 import it.geoframe.blogspot.whetgeo2d.data.Geometry;
 import it.geoframe.blogspot.whetgeo2d.data.ProblemQuantities;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
 
 /**
  * @author Niccolo` Tubini
  *
  */
-public class SoilWaterVolumeGardner extends EquationState {
+public class SoilWaterVolumeGardner extends BatchedEquationState {
 
 	private Geometry geometry;
 	private ProblemQuantities variables;
 
 
-	public SoilWaterVolumeGardner(ClosureEquation closureEquation) {
+	public SoilWaterVolumeGardner(ClosureEquation closureEquation, SimulationContext context) {
 		super(closureEquation);
-		this.geometry = Geometry.getInstance();
-		this.variables = ProblemQuantities.getInstance();
+		this.geometry = context.geometry;
+		this.variables = context.variables;
 	}
 
 
@@ -48,7 +48,7 @@ public class SoilWaterVolumeGardner extends EquationState {
 	@Override
 	public double equationState(double x, double y, int id, int element) {
 		
-		return closureEquation.f(x, y, id)*geometry.elementsArea.get(element);
+		return closureEquation.f(x, y, id)*geometry.elementsArea[element];
 
 	}
 
@@ -56,7 +56,7 @@ public class SoilWaterVolumeGardner extends EquationState {
 	@Override
 	public double dEquationState(double x, double y, int id, int element) {
 
-		return closureEquation.df(x, y, id)*geometry.elementsArea.get(element);
+		return closureEquation.df(x, y, id)*geometry.elementsArea[element];
 
 	}
 
@@ -64,7 +64,7 @@ public class SoilWaterVolumeGardner extends EquationState {
 	@Override
 	public double ddEquationState(double x, double y, int id, int element) {
 
-		return closureEquation.ddf(x, y, id)*geometry.elementsArea.get(element);
+		return closureEquation.ddf(x, y, id)*geometry.elementsArea[element];
 
 	}
 
@@ -86,19 +86,47 @@ public class SoilWaterVolumeGardner extends EquationState {
 
 
 
+	@Override
+	public void p(double[] x, double[] y, int[] id, int from, int to, double[] p, double[] pIntegral) {
+
+		double[] elementsArea = geometry.elementsArea;
+
+		for(int element=from; element<to; element++) {
+			p[element] = closureEquation.df(x[element], y[element], id[element])*elementsArea[element];
+			pIntegral[element] = closureEquation.f(x[element], y[element], id[element])*elementsArea[element];
+		}
+
+	}
+
+
+	/*
+	 * p is dEquationState and pIntegral is equationState, so q and qIntegral are zero
+	 */
+	@Override
+	public void q(double[] x, double[] y, int[] id, int from, int to, double[] q, double[] qIntegral) {
+
+		for(int element=from; element<to; element++) {
+			q[element] = 0.0;
+			qIntegral[element] = 0.0;
+		}
+
+	}
+
+
+
 	@Override
 	public void computeXStar(double y, int id, int element) {
 		
-		variables.waterSuctionStar1.add(element, -9999.0);
-		variables.waterSuctionStar2.add(element, -9999.0);
-		variables.waterSuctionStar3.add(element, -9999.0);
-		
+		int star = variables.elementStarPoint[element];
+		variables.waterSuctionStar1[star] = -9999.0;
+		variables.waterSuctionStar2[star] = -9999.0;
+		variables.waterSuctionStar3[star] = -9999.0;
 	}
 
 	@Override
 	public double initialGuess(double x, int id, int element) {
 		
-		return variables.waterSuctions.get(element);
+		return variables.waterSuctions[element];
 		
 	}
 
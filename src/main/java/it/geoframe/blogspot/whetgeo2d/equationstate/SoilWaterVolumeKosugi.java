@@ -23,24 +23,24 @@
 package it.geoframe.blogspot.whetgeo2d.equationstate;
 
 import it.geoframe.blogspot.closureequation.closureequation.ClosureEquation;
-import it.geoframe.blogspot.closureequation.equationstate.EquationState;
 import it.geoframe.blogspot.whetgeo2d.data.Geometry;
 import it.geoframe.blogspot.whetgeo2d.data.ProblemQuantities;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
 
 /**
  * @author Niccolo` Tubini
  *
  */
-public class SoilWaterVolumeKosugi extends EquationState {
+public class SoilWaterVolumeKosugi extends BatchedEquationState {
 
 	private Geometry geometry;
 	private ProblemQuantities variables;
 
 
-	public SoilWaterVolumeKosugi(ClosureEquation closureEquation) {
+	public SoilWaterVolumeKosugi(ClosureEquation closureEquation, SimulationContext context) {
 		super(closureEquation);
-		this.geometry = Geometry.getInstance();
-		this.variables = ProblemQuantities.getInstance();
+		this.geometry = context.geometry;
+		this.variables = context.variables;
 	}
 
 
@@ -48,7 +48,7 @@ public class SoilWaterVolumeKosugi extends EquationState {
 	@Override
 	public double equationState(double x, double y, int id, int element) {
 		
-		return super.closureEquation.f(x, y, id)*geometry.elementsArea.get(element);
+		return super.closureEquation.f(x, y, id)*geometry.elementsArea[element];
 
 	}
 
@@ -56,7 +56,7 @@ public class SoilWaterVolumeKosugi extends EquationState {
 	@Override
 	public double dEquationState(double x, double y, int id, int element) {
 
-		return super.closureEquation.df(x, y, id)*geometry.elementsArea.get(element);
+		return super.closureEquation.df(x, y, id)*geometry.elementsArea[element];
 
 	}
 
@@ -64,7 +64,7 @@ public class SoilWaterVolumeKosugi extends EquationState {
 	@Override
 	public double ddEquationState(double x, double y, int id, int element) {
 
-		return super.closureEquation.ddf(x, y, id)*geometry.elementsArea.get(element);
+		return super.closureEquation.ddf(x, y, id)*geometry.elementsArea[element];
 
 	}
 
@@ -72,12 +72,15 @@ public class SoilWaterVolumeKosugi extends EquationState {
 	@Override
 	public double p(double x, double y, int id, int element) {
 
-		if(x<=variables.waterSuctionStar1.get(element)) {
+		int star = variables.elementStarPoint[element];
+		double area = geometry.elementsArea[element];
+
+		if(x<=variables.waterSuctionStar1[star]) {
 			return dEquationState(x, y, id, element);  
-		} else if(x>variables.waterSuctionStar1.get(element) && x<=0){
-			return dEquationState(variables.waterSuctionStar1.get(element), y, id, element);
+		} else if(x>variables.waterSuctionStar1[star] && x<=0){
+			return variables.dThetaStar1[star]*area;
 		} else {
-			return dEquationState(variables.waterSuctionStar1.get(element), y, id, element) + dEquationState(x, y, id, element);
+			return variables.dThetaStar1[star]*area + dEquationState(x, y, id, element);
 		}
 
 	}
@@ -86,12 +89,15 @@ public class SoilWaterVolumeKosugi extends EquationState {
 	@Override
 	public double pIntegral(double x, double y, int id, int element) {
 
-		if(x<=variables.waterSuctionStar1.get(element)) {
+		int star = variables.elementStarPoint[element];
+		double area = geometry.elementsArea[element];
+
+		if(x<=variables.waterSuctionStar1[star]) {
 			return equationState(x, y, id, element);  
-		} else if(x>variables.waterSuctionStar1.get(element) && x<=0){
-			return equationState(variables.waterSuctionStar1.get(element), y, id, element) + dEquationState(variables.waterSuctionStar1.get(element), y, id, element)*(x-variables.waterSuctionStar1.get(element));
+		} else if(x>variables.waterSuctionStar1[star] && x<=0){
+			return variables.thetaStar1[star]*area + variables.dThetaStar1[star]*area*(x-variables.waterSuctionStar1[star]);
 		} else {
-			return equationState(variables.waterSuctionStar1.get(element), y, id, element) + dEquationState(variables.waterSuctionStar1.get(element), y, id, element)*(x-variables.waterSuctionStar1.get(element))
+			return variables.thetaStar1[star]*area + variables.dThetaStar1[star]*area*(x-variables.waterSuctionStar1[star])
 					+ dEquationState(x, y, id, element)*(x-0);
 		}
 
@@ -99,20 +105,90 @@ public class SoilWaterVolumeKosugi extends EquationState {
 
 
 
+	@Override
+	public void p(double[] x, double[] y, int[] id, int from, int to, double[] p, double[] pIntegral) {
+
+		double[] elementsArea = geometry.elementsArea;
+		int[] elementStarPoint = variables.elementStarPoint;
+		double[] waterSuctionStar1 = variables.waterSuctionStar1;
+		double[] thetaStar1 = variables.thetaStar1;
+		double[] dThetaStar1 = variables.dThetaStar1;
+
+		for(int element=from; element<to; element++) {
+			int star = elementStarPoint[element];
+			double area = elementsArea[element];
+			double suction = x[element];
+			if(suction<=waterSuctionStar1[star]) {
+				p[element] = closureEquation.df(suction, y[element], id[element])*area;
+				pIntegral[element] = closureEquation.f(suction, y[element], id[element])*area;
+			} else if(suction<=0) {
+				p[element] = dThetaStar1[star]*area;
+				pIntegral[element] = thetaStar1[star]*area + dThetaStar1[star]*area*(suction-waterSuctionStar1[star]);
+			} else {
+				double dVolume = closureEquation.df(suction, y[element], id[element])*area;
+				p[element] = dThetaStar1[star]*area + dVolume;
+				pIntegral[element] = thetaStar1[star]*area + dThetaStar1[star]*area*(suction-waterSuctionStar1[star])
+						+ dVolume*suction;
+			}
+		}
+
+	}
+
+
+	/*
+	 * Below the star point p is dEquationState and pIntegral is equationState, so q and qIntegral are zero
+	 * and the closure equation is not evaluated.
+	 */
+	@Override
+	public void q(double[] x, double[] y, int[] id, int from, int to, double[] q, double[] qIntegral) {
+
+		double[] elementsArea = geometry.elementsArea;
+		int[] elementStarPoint = variables.elementStarPoint;
+		double[] waterSuctionStar1 = variables.waterSuctionStar1;
+		double[] thetaStar1 = variables.thetaStar1;
+		double[] dThetaStar1 = variables.dThetaStar1;
+
+		for(int element=from; element<to; element++) {
+			int star = elementStarPoint[element];
+			double area = elementsArea[element];
+			double suction = x[element];
+			if(suction<=waterSuctionStar1[star]) {
+				q[element] = 0.0;
+				qIntegral[element] = 0.0;
+			} else {
+				double volume = closureEquation.f(suction, y[element], id[element])*area;
+				double dVolume = closureEquation.df(suction, y[element], id[element])*area;
+				if(suction<=0) {
+					q[element] = dThetaStar1[star]*area - dVolume;
+					qIntegral[element] = thetaStar1[star]*area + dThetaStar1[star]*area*(suction-waterSuctionStar1[star]) - volume;
+				} else {
+					q[element] = dThetaStar1[star]*area + dVolume - dVolume;
+					qIntegral[element] = thetaStar1[star]*area + dThetaStar1[star]*area*(suction-waterSuctionStar1[star])
+							+ dVolume*suction - volume;
+				}
+			}
+		}
+
+	}
+
+
+
 	@Override
 	public void computeXStar(double y, int id, int element) {
 		
-		variables.waterSuctionStar1.add(element,super.closureEquation.parameters.par1[id]/Math.exp(Math.pow(super.closureEquation.parameters.par2[id],2)));
-		variables.waterSuctionStar2.add(element, -9999.0);
-		variables.waterSuctionStar3.add(element, -9999.0);
-		
+		int star = variables.elementStarPoint[element];
+		variables.waterSuctionStar1[star] = super.closureEquation.parameters.par1[id]/Math.exp(Math.pow(super.closureEquation.parameters.par2[id],2));
+		variables.thetaStar1[star] = closureEquation.f(variables.waterSuctionStar1[star], y, id);
+		variables.dThetaStar1[star] = closureEquation.df(variables.waterSuctionStar1[star], y, id);
+		variables.waterSuctionStar2[star] = -9999.0;
+		variables.waterSuctionStar3[star] = -9999.0;
 	}
 	
 	@Override
 	public double initialGuess(double x, int id, int element) {
 		
-//		return Math.min(variables.waterSuctions.get(element), variables.waterSuctionStar1.get(element));
-		return Math.min(x, variables.waterSuctionStar1.get(element));
+//		return Math.min(variables.waterSuctions[element], variables.waterSuctionStar1[element]);
+		return Math.min(x, variables.waterSuctionStar1[variables.elementStarPoint[element]]);
 		
 	}
 
@@ -24,25 +24,24 @@ package it.geoframe.blogspot.whetgeo2d.equationstate;
 
 import it.geoframe.blogspot.whetgeo2d.data.Geometry;
 import it.geoframe.blogspot.whetgeo2d.data.ProblemQuantities;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
 import it.geoframe.blogspot.closureequation.closureequation.ClosureEquation;
-import it.geoframe.blogspot.closureequation.equationstate.EquationState;
-import it.geoframe.blogspot.numerical.rootfinding.Bisection;
 
 /**
  * @author Niccolo` Tubini
  *
  */
-public class SoilWaterVolumeRomano extends EquationState {
+public class SoilWaterVolumeRomano extends BatchedEquationState {
 
 	private Geometry geometry;
 	private ProblemQuantities variables;
-	private Bisection bisection;
+	private Brent brent;
 
-	public SoilWaterVolumeRomano(ClosureEquation closureEquation) {
+	public SoilWaterVolumeRomano(ClosureEquation closureEquation, SimulationContext context) {
 		super(closureEquation);
-		this.bisection = new Bisection(this);
-		this.geometry = Geometry.getInstance();
-		this.variables = ProblemQuantities.getInstance();
+		this.brent = new Brent(this);
+		this.geometry = context.geometry;
+		this.variables = context.variables;
 	}
 
 
@@ -50,7 +49,7 @@ public class SoilWaterVolumeRomano extends EquationState {
 	@Override
 	public double equationState(double x, double y, int id, int element) {
 		
-		return super.closureEquation.f(x, y, id)*geometry.elementsArea.get(element);
+		return super.closureEquation.f(x, y, id)*geometry.elementsArea[element];
 
 	}
 
@@ -58,7 +57,7 @@ public class SoilWaterVolumeRomano extends EquationState {
 	@Override
 	public double dEquationState(double x, double y, int id, int element) {
 
-		return super.closureEquation.df(x, y, id)*geometry.elementsArea.get(element);
+		return super.closureEquation.df(x, y, id)*geometry.elementsArea[element];
 
 	}
 
@@ -66,7 +65,7 @@ public class SoilWaterVolumeRomano extends EquationState {
 	@Override
 	public double ddEquationState(double x, double y, int id, int element) {
 
-		return super.closureEquation.ddf(x, y, id)*geometry.elementsArea.get(element);
+		return super.closureEquation.ddf(x, y, id)*geometry.elementsArea[element];
 
 	}
 
@@ -74,25 +73,28 @@ public class SoilWaterVolumeRomano extends EquationState {
 	@Override
 	public double p(double x, double y, int id, int element) {
 
-		if(x<=variables.waterSuctionStar1.get(element)) {
+		int star = variables.elementStarPoint[element];
+		double area = geometry.elementsArea[element];
+
+		if(x<=variables.waterSuctionStar1[star]) {
 			
 			return dEquationState(x, y, id, element);  
 			
-		} else if(variables.waterSuctionStar1.get(element)<x && x<variables.waterSuctionStar3.get(element)) {
+		} else if(variables.waterSuctionStar1[star]<x && x<variables.waterSuctionStar3[star]) {
 			
-			return this.dEquationState(variables.waterSuctionStar1.get(element), y, id, element);
+			return variables.dThetaStar1[star]*area;
 			
-		} else if (variables.waterSuctionStar3.get(element)<=x && x<=variables.waterSuctionStar2.get(element)) {
+		} else if (variables.waterSuctionStar3[star]<=x && x<=variables.waterSuctionStar2[star]) {
 			
-			return this.dEquationState(x, y, id, element) + (this.dEquationState(variables.waterSuctionStar1.get(element), y, id, element)-this.dEquationState(variables.waterSuctionStar3.get(element), y, id, element));
+			return this.dEquationState(x, y, id, element) + (variables.dThetaStar1[star]*area-variables.dThetaStar3[star]*area);
 			
-		} else if (variables.waterSuctionStar2.get(element)<x && x<0){
+		} else if (variables.waterSuctionStar2[star]<x && x<0){
 			
-			return this.dEquationState(variables.waterSuctionStar2.get(element), y, id, element) + (this.dEquationState(variables.waterSuctionStar1.get(element), y, id, element)-this.dEquationState(variables.waterSuctionStar3.get(element), y, id, element));
+			return variables.dThetaStar2[star]*area + (variables.dThetaStar1[star]*area-variables.dThetaStar3[star]*area);
 			
 		} else {
 			
-			return this.dEquationState(variables.waterSuctionStar2.get(element), y, id, element) + (this.dEquationState(variables.waterSuctionStar1.get(element), y, id, element)-this.dEquationState(variables.waterSuctionStar3.get(element), y, id, element))
+			return variables.dThetaStar2[star]*area + (variables.dThetaStar1[star]*area-variables.dThetaStar3[star]*area)
 					+ this.dEquationState(x, y, id, element);
 			
 		}
@@ -103,38 +105,41 @@ public class SoilWaterVolumeRomano extends EquationState {
 	@Override
 	public double pIntegral(double x, double y, int id, int element) {
 
-		if(x <=variables.waterSuctionStar1.get(element)) {
+		int star = variables.elementStarPoint[element];
+		double area = geometry.elementsArea[element];
+
+		if(x <=variables.waterSuctionStar1[star]) {
 			
 			return this.equationState(x, y, id, element); 
 			
-		} else if(variables.waterSuctionStar1.get(element)<x && x<=variables.waterSuctionStar3.get(element)) {
+		} else if(variables.waterSuctionStar1[star]<x && x<=variables.waterSuctionStar3[star]) {
 			
-			return this.equationState(variables.waterSuctionStar1.get(element), y, id, element) 
-					+ this.dEquationState(variables.waterSuctionStar1.get(element), y, id, element)*(x - variables.waterSuctionStar1.get(element));
+			return variables.thetaStar1[star]*area 
+					+ variables.dThetaStar1[star]*area*(x - variables.waterSuctionStar1[star]);
 			
-		} else if (variables.waterSuctionStar3.get(element)<x && x<=variables.waterSuctionStar2.get(element)) {
+		} else if (variables.waterSuctionStar3[star]<x && x<=variables.waterSuctionStar2[star]) {
 			
-			return this.equationState(variables.waterSuctionStar1.get(element), y, id, element) 
-					+ this.dEquationState(variables.waterSuctionStar1.get(element), y, id, element)*(x-variables.waterSuctionStar1.get(element))
-					- this.dEquationState(variables.waterSuctionStar3.get(element), y, id, element)*(x-variables.waterSuctionStar3.get(element))
-					+ this.equationState(x, y, id, element) - this.equationState(variables.waterSuctionStar3.get(element), y, id, element);
+			return variables.thetaStar1[star]*area 
+					+ variables.dThetaStar1[star]*area*(x-variables.waterSuctionStar1[star])
+					- variables.dThetaStar3[star]*area*(x-variables.waterSuctionStar3[star])
+					+ this.equationState(x, y, id, element) - variables.thetaStar3[star]*area;
 			
-		} else if (variables.waterSuctionStar2.get(element)<x && x<0){
+		} else if (variables.waterSuctionStar2[star]<x && x<0){
 			
-			return this.equationState(variables.waterSuctionStar1.get(element), y, id, element)
-					+ this.dEquationState(variables.waterSuctionStar1.get(element), y, id, element)*(variables.waterSuctionStar2.get(element)-variables.waterSuctionStar1.get(element))
-					- this.dEquationState(variables.waterSuctionStar3.get(element), y, id, element)*(variables.waterSuctionStar2.get(element)-variables.waterSuctionStar3.get(element))
-					+ this.equationState(variables.waterSuctionStar2.get(element), y, id, element) - this.equationState(variables.waterSuctionStar3.get(element), y, id, element)
-					+ this.dEquationState(variables.waterSuctionStar2.get(element), y, id, element)*(x-variables.waterSuctionStar2.get(element));
+			return variables.thetaStar1[star]*area
+					+ variables.dThetaStar1[star]*area*(variables.waterSuctionStar2[star]-variables.waterSuctionStar1[star])
+					- variables.dThetaStar3[star]*area*(variables.waterSuctionStar2[star]-variables.waterSuctionStar3[star])
+					+ variables.thetaStar2[star]*area - variables.thetaStar3[star]*area
+					+ variables.dThetaStar2[star]*area*(x-variables.waterSuctionStar2[star]);
 			
 		} else {
 			
-			return this.equationState(variables.waterSuctionStar1.get(element), y, id, element) 
-					+ this.dEquationState(variables.waterSuctionStar1.get(element), y, id, element)*(variables.waterSuctionStar2.get(element)-variables.waterSuctionStar1.get(element)) 
-					- this.dEquationState(variables.waterSuctionStar3.get(element), y, id, element)*(variables.waterSuctionStar2.get(element)-variables.waterSuctionStar3.get(element))
-					+ this.equationState(variables.waterSuctionStar2.get(element), y, id, element) - this.equationState(variables.waterSuctionStar3.get(element), y, id, element) 
-					+ this.dEquationState(variables.waterSuctionStar2.get(element), y, id, element)*(0-variables.waterSuctionStar2.get(element))
-					+ this.dEquationState(0, y, id, element)*(x-0);
+			return variables.thetaStar1[star]*area 
+					+ variables.dThetaStar1[star]*area*(variables.waterSuctionStar2[star]-variables.waterSuctionStar1[star]) 
+					- variables.dThetaStar3[star]*area*(variables.waterSuctionStar2[star]-variables.waterSuctionStar3[star])
+					+ variables.thetaStar2[star]*area - variables.thetaStar3[star]*area 
+					+ variables.dThetaStar2[star]*area*(0-variables.waterSuctionStar2[star])
+					+ variables.dThetaZero[star]*area*(x-0);
 
 		}
 
@@ -142,14 +147,132 @@ public class SoilWaterVolumeRomano extends EquationState {
     
 
 
+	@Override
+	public void p(double[] x, double[] y, int[] id, int from, int to, double[] p, double[] pIntegral) {
+
+		double[] elementsArea = geometry.elementsArea;
+		int[] elementStarPoint = variables.elementStarPoint;
+
+		for(int element=from; element<to; element++) {
+			int star = elementStarPoint[element];
+			double area = elementsArea[element];
+			double suction = x[element];
+			double suction1 = variables.waterSuctionStar1[star];
+			if(suction<=suction1) {
+				p[element] = closureEquation.df(suction, y[element], id[element])*area;
+				pIntegral[element] = closureEquation.f(suction, y[element], id[element])*area;
+				continue;
+			}
+			double suction2 = variables.waterSuctionStar2[star];
+			double suction3 = variables.waterSuctionStar3[star];
+			double dVolume1 = variables.dThetaStar1[star]*area;
+			double dVolume3 = variables.dThetaStar3[star]*area;
+
+			if(suction<suction3) {
+				p[element] = dVolume1;
+			} else if(suction<=suction2) {
+				p[element] = closureEquation.df(suction, y[element], id[element])*area + (dVolume1-dVolume3);
+			} else if(suction<0) {
+				p[element] = variables.dThetaStar2[star]*area + (dVolume1-dVolume3);
+			} else {
+				p[element] = variables.dThetaStar2[star]*area + (dVolume1-dVolume3)
+						+ closureEquation.df(suction, y[element], id[element])*area;
+			}
+
+			if(suction<=suction3) {
+				pIntegral[element] = variables.thetaStar1[star]*area + dVolume1*(suction-suction1);
+			} else if(suction<=suction2) {
+				pIntegral[element] = variables.thetaStar1[star]*area + dVolume1*(suction-suction1) - dVolume3*(suction-suction3)
+						+ closureEquation.f(suction, y[element], id[element])*area - variables.thetaStar3[star]*area;
+			} else if(suction<0) {
+				pIntegral[element] = variables.thetaStar1[star]*area + dVolume1*(suction2-suction1) - dVolume3*(suction2-suction3)
+						+ variables.thetaStar2[star]*area - variables.thetaStar3[star]*area
+						+ variables.dThetaStar2[star]*area*(suction-suction2);
+			} else {
+				pIntegral[element] = variables.thetaStar1[star]*area + dVolume1*(suction2-suction1) - dVolume3*(suction2-suction3)
+						+ variables.thetaStar2[star]*area - variables.thetaStar3[star]*area
+						+ variables.dThetaStar2[star]*area*(0-suction2)
+						+ variables.dThetaZero[star]*area*suction;
+			}
+		}
+
+	}
+
+
+	/*
+	 * Below the first star point p is dEquationState and pIntegral is equationState, so q and qIntegral are zero
+	 * and the closure equation is not evaluated.
+	 */
+	@Override
+	public void q(double[] x, double[] y, int[] id, int from, int to, double[] q, double[] qIntegral) {
+
+		double[] elementsArea = geometry.elementsArea;
+		int[] elementStarPoint = variables.elementStarPoint;
+
+		for(int element=from; element<to; element++) {
+			int star = elementStarPoint[element];
+			double area = elementsArea[element];
+			double suction = x[element];
+			double suction1 = variables.waterSuctionStar1[star];
+			if(suction<=suction1) {
+				q[element] = 0.0;
+				qIntegral[element] = 0.0;
+				continue;
+			}
+			double suction2 = variables.waterSuctionStar2[star];
+			double suction3 = variables.waterSuctionStar3[star];
+			double dVolume1 = variables.dThetaStar1[star]*area;
+			double dVolume3 = variables.dThetaStar3[star]*area;
+			double volume = closureEquation.f(suction, y[element], id[element])*area;
+			double dVolume = closureEquation.df(suction, y[element], id[element])*area;
+
+			if(suction<suction3) {
+				q[element] = dVolume1 - dVolume;
+			} else if(suction<=suction2) {
+				q[element] = dVolume + (dVolume1-dVolume3) - dVolume;
+			} else if(suction<0) {
+				q[element] = variables.dThetaStar2[star]*area + (dVolume1-dVolume3) - dVolume;
+			} else {
+				q[element] = variables.dThetaStar2[star]*area + (dVolume1-dVolume3) + dVolume - dVolume;
+			}
+
+			if(suction<=suction3) {
+				qIntegral[element] = variables.thetaStar1[star]*area + dVolume1*(suction-suction1) - volume;
+			} else if(suction<=suction2) {
+				qIntegral[element] = variables.thetaStar1[star]*area + dVolume1*(suction-suction1) - dVolume3*(suction-suction3)
+						+ volume - variables.thetaStar3[star]*area - volume;
+			} else if(suction<0) {
+				qIntegral[element] = variables.thetaStar1[star]*area + dVolume1*(suction2-suction1) - dVolume3*(suction2-suction3)
+						+ variables.thetaStar2[star]*area - variables.thetaStar3[star]*area
+						+ variables.dThetaStar2[star]*area*(suction-suction2) - volume;
+			} else {
+				qIntegral[element] = variables.thetaStar1[star]*area + dVolume1*(suction2-suction1) - dVolume3*(suction2-suction3)
+						+ variables.thetaStar2[star]*area - variables.thetaStar3[star]*area
+						+ variables.dThetaStar2[star]*area*(0-suction2)
+						+ variables.dThetaZero[star]*area*suction - volume;
+			}
+		}
+
+	}
+
+
+
 	@Override
 	public void computeXStar(double y, int id, int element) {
 		
+		int star = variables.elementStarPoint[element];
 		double x1 = super.closureEquation.parameters.par4[id]*Math.exp(-Math.pow(super.closureEquation.parameters.par2[id],2));
-		variables.waterSuctionStar1.set(element, bisection.findZero(x1*1.1, x1*0.9, y, id, element));
+		variables.waterSuctionStar1[star] = brent.findZero(x1*1.1, x1*0.9, y, id, element);
 		double x2 = super.closureEquation.parameters.par5[id]*Math.exp(-Math.pow(super.closureEquation.parameters.par3[id],2));
-		variables.waterSuctionStar2.set(element, bisection.findZero(x2*1.2, x2*0.8, y, id, element));
-		variables.waterSuctionStar3.set(element, bisection.findZero(variables.waterSuctionStar1.get(element)*0.9, variables.waterSuctionStar2.get(element)*1.1, y, id, element));
+		variables.waterSuctionStar2[star] = brent.findZero(x2*1.2, x2*0.8, y, id, element);
+		variables.waterSuctionStar3[star] = brent.findZero(variables.waterSuctionStar1[star]*0.9, variables.waterSuctionStar2[star]*1.1, y, id, element);
+		variables.thetaStar1[star] = closureEquation.f(variables.waterSuctionStar1[star], y, id);
+		variables.thetaStar2[star] = closureEquation.f(variables.waterSuctionStar2[star], y, id);
+		variables.thetaStar3[star] = closureEquation.f(variables.waterSuctionStar3[star], y, id);
+		variables.dThetaStar1[star] = closureEquation.df(variables.waterSuctionStar1[star], y, id);
+		variables.dThetaStar2[star] = closureEquation.df(variables.waterSuctionStar2[star], y, id);
+		variables.dThetaStar3[star] = closureEquation.df(variables.waterSuctionStar3[star], y, id);
+		variables.dThetaZero[star] = closureEquation.df(0, y, id);
 	}
 	
 	
@@ -157,7 +280,7 @@ public class SoilWaterVolumeRomano extends EquationState {
 	public double initialGuess(double x, int id, int element) {
 		
 //		return Math.min(variables.waterSuctions[element], variables.waterSuctionStar1[element]);
-		return Math.min(x, variables.waterSuctionStar1.get(element));
+		return Math.min(x, variables.waterSuctionStar1[variables.elementStarPoint[element]]);
 		
 	}
 
@@ -0,0 +1,374 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.geoframe.blogspot.whetgeo2d.equationstate;
+
+import it.geoframe.blogspot.closureequation.closureequation.ClosureEquation;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
+
+/**
+ * Soil water retention curve evaluated from a table built once per parameter ID, instead of
+ * computing pow, exp or erfc at each call.
+ * <p>
+ * The table covers the water suctions -2^MAXIMUM_EXPONENT <= psi <= -2^MINIMUM_EXPONENT with 2^SEGMENT_BITS segments
+ * in each binade of |psi|, so the segments are about log-spaced and the segment of psi is read from the bits of the double,
+ * without computing a logarithm. On each segment theta is the cubic Hermite interpolant of the exact theta and
+ * dtheta/dpsi at the ends, and df is the derivative of the interpolant, so that the Jacobian of the
+ * Newton method is the one of the tabulated theta. The second derivative of the interpolant jumps at each node,
+ * so ddf, which locates the inflection points once per run, is computed by the exact curve.
+ * <p>
+ * Each segment must satisfy the Fritsch-Carlson condition, so that the interpolant is monotone, and is checked
+ * against the exact curve at seven inner points: the error on theta and on psi*dtheta/dpsi must not exceed the tolerance. The segments that fail,
+ * e.g. the one containing the air-entry suction of Brooks and Corey, and the water suctions outside the table
+ * are computed by the exact curve. The tables are computed at one temperature: a curve that depends on the temperature is not tabulated.
+ * Like the closure equation it wraps, it is not thread safe.
+ */
+public class TabulatedClosureEquation extends ClosureEquation {
+	
+	public static final double DEFAULT_TOLERANCE = 1e-8;
+	
+	private static final int MINIMUM_EXPONENT = -20;
+	private static final int MAXIMUM_EXPONENT = 14;
+	private static final int SEGMENT_BITS = 7;
+	
+	private static final int SEGMENT_SHIFT = 52 - SEGMENT_BITS;
+	static final int SEGMENT_NUMBER = (MAXIMUM_EXPONENT - MINIMUM_EXPONENT) << SEGMENT_BITS;
+	private static final long FIRST_SEGMENT = Double.doubleToRawLongBits(Math.scalb(1.0, MINIMUM_EXPONENT)) >>> SEGMENT_SHIFT;
+	
+	/*
+	 * Each segment stores the coefficients c0 ... c3 of the cubic in t = (|psi|-left)/width, left and 1/width.
+	 * c0 is NaN if the segment is computed by the exact curve.
+	 */
+	private static final int STRIDE = 6;
+	
+	private static final int CHECK_POINTS = 8;
+	static final double[] TEMPERATURES = {273.15, 293.15, 313.15};
+	
+	private final ClosureEquation closureEquation;
+	private final double tolerance;
+	
+	/*
+	 * Table of each parameter ID, null if it is not used by the equation state or not tabulated.
+	 * The tables are read only and shared by the closure equations of all the threads.
+	 */
+	private final double[][] tables;
+	private int exactSegments;
+	
+	
+	
+	/**
+	 * @param closureEquation exact soil water retention curve, bound to the parameters of the simulation
+	 * @param context data of the simulation
+	 * @param equationStateID the tables are built for the parameter IDs of the elements with this equation state ID, -1 for all the elements
+	 * @param tolerance maximum error of theta and of psi*dtheta/dpsi
+	 */
+	public TabulatedClosureEquation(ClosureEquation closureEquation, SimulationContext context, int equationStateID, double tolerance) {
+		
+		this.closureEquation = closureEquation;
+		this.parameters = closureEquation.parameters;
+		this.tolerance = tolerance;
+		
+		int[] elementParameterID = context.variables.elementParameterID;
+		int maximumID = -1;
+		for(int element=1; element<elementParameterID.length; element++) {
+			maximumID = Math.max(maximumID, elementParameterID[element]);
+		}
+		
+		tables = new double[maximumID+1][];
+		boolean[] built = new boolean[maximumID+1];
+		for(int element=1; element<elementParameterID.length; element++) {
+			int id = elementParameterID[element];
+			if(id >= 0 && !built[id] && (equationStateID < 0 || context.variables.elementEquationStateID[element] == equationStateID)) {
+				tables[id] = buildTable(id);
+				built[id] = true;
+			}
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * Closure equation sharing the tables of another one, e.g. for another thread.
+	 * 
+	 * @param closureEquation exact soil water retention curve, bound to the parameters of the simulation
+	 * @param tabulatedClosureEquation closure equation whose tables are shared
+	 */
+	public TabulatedClosureEquation(ClosureEquation closureEquation, TabulatedClosureEquation tabulatedClosureEquation) {
+		
+		this.closureEquation = closureEquation;
+		this.parameters = closureEquation.parameters;
+		tolerance = tabulatedClosureEquation.tolerance;
+		tables = tabulatedClosureEquation.tables;
+		exactSegments = tabulatedClosureEquation.exactSegments;
+		
+	}
+	
+	
+	
+	/**
+	 * @return the number of segments computed by the exact curve, over all the tables
+	 */
+	public int getExactSegments() {
+		
+		return exactSegments;
+		
+	}
+	
+	
+	
+	private double[] buildTable(int id) {
+		
+		double[] nodeF = new double[SEGMENT_NUMBER+1];
+		double[] nodeDF = new double[SEGMENT_NUMBER+1];
+		
+		/*
+		 * Tables are in the variable u = -psi > 0: F(u) = theta(psi), F'(u) = -dtheta/dpsi
+		 */
+		double temperature = TEMPERATURES[1];
+		for(int node=0; node<=SEGMENT_NUMBER; node++) {
+			double psi = -node(node);
+			nodeF[node] = closureEquation.f(psi, temperature, id);
+			nodeDF[node] = -closureEquation.df(psi, temperature, id);
+			for(double otherTemperature : TEMPERATURES) {
+				if(closureEquation.f(psi, otherTemperature, id) != nodeF[node]) {
+					System.out.println("WARNING TabulatedClosureEquation: the closure equation of the parameter ID " + id
+							+ " depends on the temperature, it is not tabulated");
+					return null;
+				}
+			}
+		}
+		
+		double[] table = new double[SEGMENT_NUMBER*STRIDE];
+		for(int segment=0; segment<SEGMENT_NUMBER; segment++) {
+			
+			double left = node(segment);
+			double width = node(segment+1) - left;
+			double p0 = nodeF[segment];
+			double p1 = nodeF[segment+1];
+			double v0 = nodeDF[segment]*width;
+			double v1 = nodeDF[segment+1]*width;
+			
+			int base = segment*STRIDE;
+			table[base] = p0;
+			table[base+1] = v0;
+			table[base+2] = 3.0*(p1-p0) - 2.0*v0 - v1;
+			table[base+3] = -2.0*(p1-p0) + v0 + v1;
+			table[base+4] = left;
+			table[base+5] = 1.0/width;
+			
+			if(!isMonotone(p0, p1, v0, v1) || !isAccurate(table, base, id, temperature)) {
+				table[base] = Double.NaN;
+				exactSegments++;
+			}
+			
+		}
+		
+		return table;
+		
+	}
+	
+	
+	
+	/*
+	 * Fritsch-Carlson condition on the slopes scaled by the secant
+	 */
+	static boolean isMonotone(double p0, double p1, double v0, double v1) {
+		
+		double secant = p1 - p0;
+		if(secant == 0.0) {
+			return v0 == 0.0 && v1 == 0.0;
+		}
+		double alpha = v0/secant;
+		double beta = v1/secant;
+		return alpha >= 0.0 && beta >= 0.0 && alpha*alpha + beta*beta <= 9.0;
+		
+	}
+	
+	
+	
+	private boolean isAccurate(double[] table, int base, int id, double temperature) {
+		
+		for(int i=base; i<base+STRIDE; i++) {
+			if(!Double.isFinite(table[i])) {
+				return false;
+			}
+		}
+		
+		double width = 1.0/table[base+5];
+		for(int k=0; k<=CHECK_POINTS; k++) {
+			double t = (double) k/CHECK_POINTS;
+			double u = table[base+4] + t*width;
+			if(Math.abs(value(table, base, t) - closureEquation.f(-u, temperature, id)) > tolerance
+					|| Math.abs(derivative(table, base, t) + closureEquation.df(-u, temperature, id))*u > tolerance) {
+				return false;
+			}
+		}
+		return true;
+		
+	}
+	
+	
+	
+	/*
+	 * |psi| at the start of the segment
+	 */
+	static double node(int segment) {
+		
+		return Double.longBitsToDouble((FIRST_SEGMENT + segment) << SEGMENT_SHIFT);
+		
+	}
+	
+	
+	
+	/*
+	 * Segment containing the water suction x, -1 if x is outside the table
+	 */
+	static int segment(double x) {
+		
+		if(!(x < 0.0)) {
+			return -1;
+		}
+		long segment = (Double.doubleToRawLongBits(-x) >>> SEGMENT_SHIFT) - FIRST_SEGMENT;
+		return segment < 0 || segment >= SEGMENT_NUMBER ? -1 : (int) segment;
+		
+	}
+	
+	
+	
+	/*
+	 * Position of x in the table: base of its segment, -1 if it is computed by the exact curve
+	 */
+	private static int base(double[] table, double x) {
+		
+		int segment = segment(x);
+		if(table == null || segment < 0) {
+			return -1;
+		}
+		int base = segment*STRIDE;
+		return Double.isNaN(table[base]) ? -1 : base;
+		
+	}
+	
+	
+	
+	private static double value(double[] table, int base, double t) {
+		
+		return table[base] + t*(table[base+1] + t*(table[base+2] + t*table[base+3]));
+		
+	}
+	
+	
+	
+	/*
+	 * dF/du
+	 */
+	private static double derivative(double[] table, int base, double t) {
+		
+		return (table[base+1] + t*(2.0*table[base+2] + t*3.0*table[base+3]))*table[base+5];
+		
+	}
+	
+	
+	
+	private double[] table(int id) {
+		
+		if(id < 0 || id >= tables.length) {
+			return null;
+		}
+		return tables[id];
+		
+	}
+	
+	
+	
+	@Override
+	public double f(double x, double y, int id) {
+		
+		double[] table = table(id);
+		int base = base(table, x);
+		if(base < 0) {
+			return closureEquation.f(x, y, id);
+		}
+		return value(table, base, (-x-table[base+4])*table[base+5]);
+		
+	}
+	
+	
+	
+	@Override
+	public double f(double x, int id) {
+		
+		double[] table = table(id);
+		int base = base(table, x);
+		if(base < 0) {
+			return closureEquation.f(x, id);
+		}
+		return value(table, base, (-x-table[base+4])*table[base+5]);
+		
+	}
+	
+	
+	
+	@Override
+	public double df(double x, double y, int id) {
+		
+		double[] table = table(id);
+		int base = base(table, x);
+		if(base < 0) {
+			return closureEquation.df(x, y, id);
+		}
+		return -derivative(table, base, (-x-table[base+4])*table[base+5]);
+		
+	}
+	
+	
+	
+	@Override
+	public double df(double x, int id) {
+		
+		double[] table = table(id);
+		int base = base(table, x);
+		if(base < 0) {
+			return closureEquation.df(x, id);
+		}
+		return -derivative(table, base, (-x-table[base+4])*table[base+5]);
+		
+	}
+	
+	
+	
+	@Override
+	public double ddf(double x, double y, int id) {
+		
+		return closureEquation.ddf(x, y, id);
+		
+	}
+	
+	
+	
+	@Override
+	public double ddf(double x, int id) {
+		
+		return closureEquation.ddf(x, id);
+		
+	}
+
+}
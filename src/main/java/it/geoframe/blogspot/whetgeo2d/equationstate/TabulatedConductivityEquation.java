@@ -0,0 +1,245 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.geoframe.blogspot.whetgeo2d.equationstate;
+
+import it.geoframe.blogspot.closureequation.closureequation.ClosureEquation;
+import it.geoframe.blogspot.closureequation.conductivitymodel.ConductivityEquation;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
+
+/**
+ * Unsaturated hydraulic conductivity evaluated from a table of log(K) built at start-up for each parameter ID,
+ * on the segments of {@link TabulatedClosureEquation}.
+ * <p>
+ * On each segment log(K) is the cubic Hermite interpolant of the exact log(K) and of its derivative, computed
+ * by central differences, so the relative error of K is about the error of log(K). Each segment must satisfy the
+ * Fritsch-Carlson condition and the error of log(K) at seven inner points must not exceed the tolerance; the segments
+ * that fail and the water suctions outside the table are computed by the exact model.
+ * <p>
+ * The table replaces the model without temperature correction: the temperature decorators of the closureequation library
+ * multiply K by a function of the temperature only, so they wrap this class and the correction is computed analytically.
+ * A model that depends on the temperature is not tabulated.
+ */
+public class TabulatedConductivityEquation extends ConductivityEquation {
+	
+	/*
+	 * Each segment stores the coefficients c0 ... c3 of the cubic of log(K) in t = (|psi|-left)/width, left and 1/width.
+	 * c0 is NaN if the segment is computed by the exact model.
+	 */
+	private static final int STRIDE = 6;
+	
+	private static final int CHECK_POINTS = 8;
+	
+	/*
+	 * Step of the central differences, relative to |psi|
+	 */
+	private static final double DIFFERENCE_STEP = 1e-4;
+	
+	private final ConductivityEquation conductivityEquation;
+	private final double tolerance;
+	
+	/*
+	 * Table of each parameter ID, null if it is not used by the equation state or not tabulated
+	 */
+	private final double[][] tables;
+	private int exactSegments;
+	
+	
+	
+	/**
+	 * @param conductivityEquation exact conductivity model, without temperature correction
+	 * @param closureEquation closure equation of the conductivity model
+	 * @param context data of the simulation
+	 * @param equationStateID the tables are built for the parameter IDs of the elements with this equation state ID
+	 * @param tolerance maximum error of log(K)
+	 */
+	public TabulatedConductivityEquation(ConductivityEquation conductivityEquation, ClosureEquation closureEquation, SimulationContext context,
+			int equationStateID, double tolerance) {
+		
+		super(closureEquation);
+		this.conductivityEquation = conductivityEquation;
+		this.tolerance = tolerance;
+		
+		int[] elementParameterID = context.variables.elementParameterID;
+		int maximumID = -1;
+		for(int element=1; element<elementParameterID.length; element++) {
+			maximumID = Math.max(maximumID, elementParameterID[element]);
+		}
+		
+		tables = new double[maximumID+1][];
+		boolean[] built = new boolean[maximumID+1];
+		for(int element=1; element<elementParameterID.length; element++) {
+			int id = elementParameterID[element];
+			if(id >= 0 && !built[id] && context.variables.elementEquationStateID[element] == equationStateID) {
+				tables[id] = buildTable(id);
+				built[id] = true;
+			}
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * Conductivity model sharing the tables of another one, e.g. for another thread.
+	 * 
+	 * @param conductivityEquation exact conductivity model, without temperature correction
+	 * @param closureEquation closure equation of the conductivity model
+	 * @param tabulatedConductivityEquation conductivity model whose tables are shared
+	 */
+	public TabulatedConductivityEquation(ConductivityEquation conductivityEquation, ClosureEquation closureEquation,
+			TabulatedConductivityEquation tabulatedConductivityEquation) {
+		
+		super(closureEquation);
+		this.conductivityEquation = conductivityEquation;
+		tolerance = tabulatedConductivityEquation.tolerance;
+		tables = tabulatedConductivityEquation.tables;
+		exactSegments = tabulatedConductivityEquation.exactSegments;
+		
+	}
+	
+	
+	
+	/**
+	 * @return the number of segments computed by the exact model, over all the tables
+	 */
+	public int getExactSegments() {
+		
+		return exactSegments;
+		
+	}
+	
+	
+	
+	private double[] buildTable(int id) {
+		
+		int segmentNumber = TabulatedClosureEquation.SEGMENT_NUMBER;
+		double[] nodeLogK = new double[segmentNumber+1];
+		double[] nodeDLogK = new double[segmentNumber+1];
+		
+		/*
+		 * Tables are in the variable u = -psi > 0
+		 */
+		double temperature = TabulatedClosureEquation.TEMPERATURES[1];
+		for(int node=0; node<=segmentNumber; node++) {
+			double u = TabulatedClosureEquation.node(node);
+			double step = DIFFERENCE_STEP*u;
+			nodeLogK[node] = logK(u, temperature, id);
+			nodeDLogK[node] = (logK(u+step, temperature, id) - logK(u-step, temperature, id))/(2.0*step);
+			for(double otherTemperature : TabulatedClosureEquation.TEMPERATURES) {
+				if(conductivityEquation.k(-u, otherTemperature, id, 0) != conductivityEquation.k(-u, temperature, id, 0)) {
+					System.out.println("WARNING TabulatedConductivityEquation: the conductivity model of the parameter ID " + id
+							+ " depends on the temperature, it is not tabulated");
+					return null;
+				}
+			}
+		}
+		
+		double[] table = new double[segmentNumber*STRIDE];
+		for(int segment=0; segment<segmentNumber; segment++) {
+			
+			double left = TabulatedClosureEquation.node(segment);
+			double width = TabulatedClosureEquation.node(segment+1) - left;
+			double p0 = nodeLogK[segment];
+			double p1 = nodeLogK[segment+1];
+			double v0 = nodeDLogK[segment]*width;
+			double v1 = nodeDLogK[segment+1]*width;
+			
+			int base = segment*STRIDE;
+			table[base] = p0;
+			table[base+1] = v0;
+			table[base+2] = 3.0*(p1-p0) - 2.0*v0 - v1;
+			table[base+3] = -2.0*(p1-p0) + v0 + v1;
+			table[base+4] = left;
+			table[base+5] = 1.0/width;
+			
+			if(!TabulatedClosureEquation.isMonotone(p0, p1, v0, v1) || !isAccurate(table, base, id, temperature)) {
+				table[base] = Double.NaN;
+				exactSegments++;
+			}
+			
+		}
+		
+		return table;
+		
+	}
+	
+	
+	
+	private double logK(double u, double temperature, int id) {
+		
+		return Math.log(conductivityEquation.k(-u, temperature, id, 0));
+		
+	}
+	
+	
+	
+	private boolean isAccurate(double[] table, int base, int id, double temperature) {
+		
+		for(int i=base; i<base+STRIDE; i++) {
+			if(!Double.isFinite(table[i])) {
+				return false;
+			}
+		}
+		
+		double width = 1.0/table[base+5];
+		for(int k=0; k<=CHECK_POINTS; k++) {
+			double t = (double) k/CHECK_POINTS;
+			if(!(Math.abs(value(table, base, t) - logK(table[base+4] + t*width, temperature, id)) <= tolerance)) {
+				return false;
+			}
+		}
+		return true;
+		
+	}
+	
+	
+	
+	private static double value(double[] table, int base, double t) {
+		
+		return table[base] + t*(table[base+1] + t*(table[base+2] + t*table[base+3]));
+		
+	}
+	
+	
+	
+	@Override
+	public double k(double x, double y, int id, int element) {
+		
+		double[] table = id >= 0 && id < tables.length ? tables[id] : null;
+		int segment = TabulatedClosureEquation.segment(x);
+		if(table == null || segment < 0 || Double.isNaN(table[segment*STRIDE])) {
+			return conductivityEquation.k(x, y, id, element);
+		}
+		int base = segment*STRIDE;
+		return Math.exp(value(table, base, (-x-table[base+4])*table[base+5]));
+		
+	}
+	
+	
+	
+	@Override
+	public double k(double x, int id, int element) {
+		
+		return conductivityEquation.k(x, id, element);
+		
+	}
+
+}
@@ -0,0 +1,383 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.linearsystemsolver;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2D;
+import it.geoframe.blogspot.whetgeo2d.parallel.ParallelLoop;
+import it.geoframe.blogspot.whetgeo2d.preconditioner.Preconditioner;
+
+/**
+ * Preconditioned conjugate gradient for (diag(dis) + T) x = b on primitive arrays.
+ * It follows the conjugate gradient of the numerical library: the initial guess is b,
+ * the iterations stop when the diagonally scaled norm of the residual, sqrt(r^T D^-1 r), is below the tolerance
+ * or after 4 times the number of elements. This is the stopping test of the library, that uses the Jacobi preconditioner,
+ * so that the accuracy does not depend on the preconditioner and with the Jacobi preconditioner the iterates are the same.
+ * For an inexact Newton method the iterations can also stop as soon as the Euclidean norm of the residual,
+ * the norm of the Newton residual, is below a given tolerance.
+ * 
+ * The dot products and the vector updates run on the fork/join pool, if any, in chunks of CHUNK_SIZE elements.
+ * The partial sums are added in chunk order, so the iterates do not depend on the number of threads
+ * and are the ones of the library for meshes up to CHUNK_SIZE elements.
+ * The work vectors are allocated once, solve does not allocate.
+ * 
+ * For an ensemble, see {@link it.geoframe.blogspot.whetgeo2d.data.MeshReplication}, the matrix is block diagonal
+ * with one block for each member and the conjugate gradient of each member runs on its entries, with its own scalars and stopping test.
+ * A member that has stopped keeps its entries, which are still in the products of the matrix and of the preconditioner.
+ */
+public class PreconditionedConjugateGradient {
+	
+	private static final int CHUNK_SIZE = 4096;
+	
+	private Matop2D matop;
+	private Preconditioner preconditioner;
+	private double cgTolerance;
+	private int elementNumber;
+	private int members;
+	
+	private double[] residual;
+	private double[] z;
+	private double[] p;
+	private double[] Apsi;
+	
+	/*
+	 * Arguments of the current call and scalars of the current iteration, read by the loops
+	 */
+	private double[] dis;
+	private double[] b;
+	private double[] mainDiagonal;
+	private double[] x;
+	private double[] lambda;
+	private double[] beta;
+	
+	/*
+	 * Members whose iterations have not stopped, and the scalars of each member
+	 */
+	private boolean[] active;
+	private double[] squaredResidualTolerance;
+	private double[] alpha;
+	private double[] previousAlpha;
+	private double[] residualNorm;
+	private double[] euclideanNorm;
+	
+	private ParallelLoop residualLoop;
+	private ParallelLoop dotLoop;
+	private ParallelLoop pApLoop;
+	private ParallelLoop updateLoop;
+	private ParallelLoop directionLoop;
+	private double[] partialAlpha;
+	private double[] partialResidualNorm;
+	private double[] partialEuclideanNorm;
+	
+	
+	
+	public PreconditionedConjugateGradient(Matop2D matop, Preconditioner preconditioner, double cgTolerance, int elementNumber) {
+		
+		this(matop, preconditioner, cgTolerance, elementNumber, null);
+		
+	}
+	
+	
+	
+	/**
+	 * @param pool fork/join pool used for the dot products and the vector updates, null for serial execution
+	 */
+	public PreconditionedConjugateGradient(Matop2D matop, Preconditioner preconditioner, double cgTolerance, int elementNumber, ForkJoinPool pool) {
+		
+		this(matop, preconditioner, cgTolerance, elementNumber, 1, pool);
+		
+	}
+	
+	
+	
+	/**
+	 * @param members number of ensemble members, the entries of the vectors are interleaved by member
+	 */
+	public PreconditionedConjugateGradient(Matop2D matop, Preconditioner preconditioner, double cgTolerance, int elementNumber, int members, ForkJoinPool pool) {
+		
+		this.matop = matop;
+		this.preconditioner = preconditioner;
+		this.cgTolerance = cgTolerance;
+		this.elementNumber = elementNumber;
+		this.members = members;
+		
+		residual = new double[elementNumber];
+		z = new double[elementNumber];
+		p = new double[elementNumber];
+		Apsi = new double[elementNumber];
+		
+		residualLoop = new ParallelLoop(pool, 1, elementNumber, CHUNK_SIZE, this::computeResidual);
+		dotLoop = new ParallelLoop(pool, 1, elementNumber, CHUNK_SIZE, this::computeDot);
+		pApLoop = new ParallelLoop(pool, 1, elementNumber, CHUNK_SIZE, this::computePAp);
+		updateLoop = new ParallelLoop(pool, 1, elementNumber, CHUNK_SIZE, this::computeUpdate);
+		directionLoop = new ParallelLoop(pool, 1, elementNumber, CHUNK_SIZE, this::computeDirection);
+		partialAlpha = new double[dotLoop.getChunkNumber()*members];
+		partialResidualNorm = new double[dotLoop.getChunkNumber()*members];
+		partialEuclideanNorm = new double[dotLoop.getChunkNumber()*members];
+		
+		active = new boolean[members];
+		squaredResidualTolerance = new double[members];
+		alpha = new double[members];
+		previousAlpha = new double[members];
+		residualNorm = new double[members];
+		euclideanNorm = new double[members];
+		lambda = new double[members];
+		beta = new double[members];
+		
+	}
+	
+	
+	
+	/**
+	 * @param dis diagonal contribution of the equation state
+	 * @param b right-hand side
+	 * @param mainDiagonal diagonal of T
+	 * @param x solution
+	 * @return number of iterations
+	 */
+	public int solve(double[] dis, double[] b, double[] mainDiagonal, double[] x) {
+		
+		return solve(dis, b, mainDiagonal, x, 0.0);
+		
+	}
+	
+	
+	
+	/**
+	 * @param residualTolerance the iterations also stop when the Euclidean norm of the residual is below it.
+	 * With 0 only the tolerance on the scaled norm is used.
+	 * @return number of iterations
+	 */
+	public int solve(double[] dis, double[] b, double[] mainDiagonal, double[] x, double residualTolerance) {
+		
+		Arrays.fill(active, true);
+		Arrays.fill(squaredResidualTolerance, residualTolerance*residualTolerance);
+		return solveActive(dis, b, mainDiagonal, x);
+		
+	}
+	
+	
+	
+	/**
+	 * @param residualTolerance tolerance on the Euclidean norm of the residual of each member
+	 * @param solvedMembers members to solve for, the entries of x of the other members are not significant
+	 * @return number of iterations of the member with the most iterations
+	 */
+	public int solve(double[] dis, double[] b, double[] mainDiagonal, double[] x, double[] residualTolerance, boolean[] solvedMembers) {
+		
+		for(int member=0; member<members; member++) {
+			active[member] = solvedMembers[member];
+			squaredResidualTolerance[member] = residualTolerance[member]*residualTolerance[member];
+		}
+		return solveActive(dis, b, mainDiagonal, x);
+		
+	}
+	
+	
+	
+	/*
+	 * Conjugate gradient of the active members, with their squared tolerances
+	 */
+	private int solveActive(double[] dis, double[] b, double[] mainDiagonal, double[] x) {
+		
+		this.dis = dis;
+		this.b = b;
+		this.mainDiagonal = mainDiagonal;
+		this.x = x;
+		
+		preconditioner.update(dis, mainDiagonal);
+		
+		System.arraycopy(b, 1, x, 1, elementNumber-1);
+		matop.solve(dis, x, Apsi);
+		residualLoop.run();
+		preconditioner.apply(residual, z);
+		
+		System.arraycopy(z, 1, p, 1, elementNumber-1);
+		dotLoop.run();
+		sumDot();
+		
+		int iteration = 1;
+		for(; iteration<4*elementNumber; iteration++) {
+			
+			boolean stop = true;
+			for(int member=0; member<members; member++) {
+				if(active[member] && (!(Math.sqrt(residualNorm[member]) > cgTolerance) || euclideanNorm[member] < squaredResidualTolerance[member])) {
+					active[member] = false;
+				}
+				stop = stop && !active[member];
+			}
+			if(stop) {
+				break;
+			}
+			
+			matop.solve(dis, p, Apsi);
+			pApLoop.run();
+			for(int member=0; member<members; member++) {
+				if(!active[member]) {
+					continue;
+				}
+				double pAp = 0.0;
+				for(int chunk=member; chunk<partialAlpha.length; chunk+=members) {
+					pAp += partialAlpha[chunk];
+				}
+				lambda[member] = alpha[member]/pAp;
+				previousAlpha[member] = alpha[member];
+			}
+			
+			updateLoop.run();
+			preconditioner.apply(residual, z);
+			
+			dotLoop.run();
+			sumDot();
+			
+			for(int member=0; member<members; member++) {
+				if(active[member]) {
+					beta[member] = alpha[member]/previousAlpha[member];
+				}
+			}
+			directionLoop.run();
+			
+		}
+		
+		this.dis = null;
+		this.b = null;
+		this.mainDiagonal = null;
+		this.x = null;
+		
+		return iteration-1;
+		
+	}
+	
+	
+	
+	/*
+	 * Sum of the partial dot products of each member in chunk order
+	 */
+	private void sumDot() {
+		
+		for(int member=0; member<members; member++) {
+			alpha[member] = 0.0;
+			residualNorm[member] = 0.0;
+			euclideanNorm[member] = 0.0;
+			for(int chunk=member; chunk<partialAlpha.length; chunk+=members) {
+				alpha[member] += partialAlpha[chunk];
+				residualNorm[member] += partialResidualNorm[chunk];
+				euclideanNorm[member] += partialEuclideanNorm[chunk];
+			}
+		}
+		
+	}
+	
+	
+	
+	/*
+	 * First entry of the member not before from
+	 */
+	private int first(int from, int member) {
+		
+		return from + Math.floorMod(member-(from-1), members);
+		
+	}
+	
+	
+	
+	private void computeResidual(int chunk, int from, int to) {
+		
+		for(int element=from; element<to; element++) {
+			residual[element] = b[element] - Apsi[element];
+		}
+		
+	}
+	
+	
+	
+	/*
+	 * z^T r, r^T D^-1 r and r^T r of each member
+	 */
+	private void computeDot(int chunk, int from, int to) {
+		
+		for(int member=0; member<members; member++) {
+			double alpha = 0.0;
+			double residualNorm = 0.0;
+			double euclideanNorm = 0.0;
+			if(active[member]) {
+				for(int element=first(from, member); element<to; element+=members) {
+					alpha += z[element]*residual[element];
+					residualNorm += residual[element]/(mainDiagonal[element]+dis[element])*residual[element];
+					euclideanNorm += residual[element]*residual[element];
+				}
+			}
+			partialAlpha[chunk*members+member] = alpha;
+			partialResidualNorm[chunk*members+member] = residualNorm;
+			partialEuclideanNorm[chunk*members+member] = euclideanNorm;
+		}
+		
+	}
+	
+	
+	
+	private void computePAp(int chunk, int from, int to) {
+		
+		for(int member=0; member<members; member++) {
+			double pAp = 0.0;
+			if(active[member]) {
+				for(int element=first(from, member); element<to; element+=members) {
+					pAp += p[element]*Apsi[element];
+				}
+			}
+			partialAlpha[chunk*members+member] = pAp;
+		}
+		
+	}
+	
+	
+	
+	private void computeUpdate(int chunk, int from, int to) {
+		
+		for(int member=0; member<members; member++) {
+			if(active[member]) {
+				double lambda = this.lambda[member];
+				for(int element=first(from, member); element<to; element+=members) {
+					x[element] = x[element] + lambda*p[element];
+					residual[element] = residual[element] - lambda*Apsi[element];
+				}
+			}
+		}
+		
+	}
+	
+	
+	
+	private void computeDirection(int chunk, int from, int to) {
+		
+		for(int member=0; member<members; member++) {
+			if(active[member]) {
+				double beta = this.beta[member];
+				for(int element=first(from, member); element<to; element+=members) {
+					p[element] = z[element] + beta*p[element];
+				}
+			}
+		}
+		
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.matop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import it.geoframe.blogspot.numerical.matop.Matop;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
+import it.geoframe.blogspot.whetgeo2d.data.Topology;
+
+/**
+ * Base class of the 2D operators working on primitive arrays.
+ * The List<Double> interface required by the nested Newton algorithm is
+ * implemented on top of {@link #solve(double[], double[], double[])}.
+ */
+public abstract class Matop2D extends Matop {
+
+	protected Topology topology;
+	private List<Double> Apsi;
+	
+	/*
+	 * Work arrays used to unbox the input vectors of the operator
+	 */
+	private double[] disArray;
+	private double[] xArray;
+	private double[] ApsiArray;
+	
+	
+	
+	public Matop2D(SimulationContext context) {
+		
+		topology = context.topology;
+		Apsi = new ArrayList<Double>(Arrays.asList(new Double[topology.elementNumber]));
+		disArray = new double[topology.elementNumber];
+		xArray = new double[topology.elementNumber];
+		ApsiArray = new double[topology.elementNumber];
+		
+	}
+	
+	
+	
+	public List<Double> solve(List<Double> dis, List<Double> x) {
+
+		for(int element=1; element<topology.elementNumber; element++) {
+			disArray[element] = dis.get(element);
+			xArray[element] = x.get(element);
+		}
+		
+		solve(disArray, xArray, ApsiArray);
+		
+		for(int element=1; element<topology.elementNumber; element++) {
+			Apsi.set(element, ApsiArray[element]);
+		}
+
+		return Apsi;
+
+	}
+	
+	
+	
+	/**
+	 * Product Apsi = (diag(dis) + T) x on primitive arrays.
+	 * 
+	 * @param dis diagonal contribution of the equation state
+	 * @param x vector to be multiplied
+	 * @param Apsi output vector
+	 */
+	public abstract void solve(double[] dis, double[] x, double[] Apsi);
+	
+	
+	
+	/**
+	 * Called once per Picard iteration, after the transmissibility has been updated.
+	 * Matrix-free operators have nothing to do.
+	 */
+	public void assemble() {
+		
+	}
+	
+	
+	
+	/**
+	 * Called instead of {@link #assemble()} when the transmissibility changed only on some edges.
+	 * 
+	 * @param edges edges whose transmissibility changed, the first edgeNumber entries are used
+	 * @param edgeNumber number of changed edges, -1 if all of them changed
+	 */
+	public void assemble(int[] edges, int edgeNumber) {
+		
+		assemble();
+		
+	}
+
+}
@@ -19,114 +19,71 @@
 
 package it.geoframe.blogspot.whetgeo2d.matop;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-
-import it.geoframe.blogspot.numerical.matop.Matop;
-import it.geoframe.blogspot.whetgeo2d.data.Geometry;
 import it.geoframe.blogspot.whetgeo2d.data.ProblemQuantities;
-import it.geoframe.blogspot.whetgeo2d.data.Topology;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
 
 
-public class Matop2DRichards extends Matop {
+public class Matop2DRichards extends Matop2D {
 
-	private static Matop2DRichards uniqueInstance;
-	private Geometry geometry;
-	private Topology topology;
 	private ProblemQuantities variables;
-	private List<Double> Apsi;
-
-	private double sideFlux;
-
-
-	public static Matop2DRichards getInstance() {
-
-		if (uniqueInstance == null) {
-
-			uniqueInstance = new Matop2DRichards();
-
-		}
-
-		return uniqueInstance;
-	}
-
-
 
-	public Matop2DRichards() {
 
-		geometry = Geometry.getInstance();
-		topology = Topology.getInstance();
-		variables = ProblemQuantities.getInstance();		
-		Apsi = new ArrayList<Double>(Arrays.asList(new Double[topology.elementEdgesSet.size()]));
+	public Matop2DRichards(SimulationContext context) {
 
+		super(context);
+		variables = context.variables;		
 
 	}
-
-
-
-	public List<Double> solve(List<Double> dis, List<Double> x) {
-
-		//Map<Integer, Double> Apsi = new HashMap<Integer,Double>();
-
-		//		Apsi.clear();
-		for(int element=1; element<topology.elementEdgesSet.size(); element++) {
-
-			Apsi.set(element, dis.get(element)*x.get(element));
+	
+	
+	
+	/**
+	 * Matrix-free product Apsi = (diag(dis) + T) x on primitive arrays.
+	 * 
+	 * @param dis diagonal contribution of the equation state
+	 * @param x vector to be multiplied
+	 * @param Apsi output vector
+	 */
+	public void solve(double[] dis, double[] x, double[] Apsi) {
+
+		for(int element=1; element<topology.elementNumber; element++) {
+
+			Apsi[element] = dis[element]*x[element];
 
 		}
 
 
-		for(int edge=1; edge<topology.edgeLeftNeighbour.size(); edge++) {
-			/*
-			 * FIXME: everywhere NO FLUX BOUNDARY CONDITION
-			 */
-			sideFlux = 0.0;
-
-			if(topology.edgeRightNeighbour.get(edge)==0) {
-
-				if(topology.edgesBoundaryBCType.get(edge)==2 || topology.edgesBoundaryBCType.get(edge)==4) {
-
-//					System.out.println(edge+" "+variables.timeDelta +" "+variables.kappasInterface.get(edge)+" "+ -x.get(topology.edgeLeftNeighbour.get(edge))+" "+geometry.delta_j.get(edge));
-					sideFlux = variables.timeDelta * variables.kappasInterface.get(edge) * ( -x.get(topology.edgeLeftNeighbour.get(edge)) )/geometry.delta_j.get(edge);
-					Apsi.set( topology.edgeLeftNeighbour.get(edge), Apsi.get(topology.edgeLeftNeighbour.get(edge))-sideFlux );
+		/*
+		 * FIXME: everywhere NO FLUX BOUNDARY CONDITION
+		 * 
+		 * Interior edges in a sequential loop over the edges: a loop over topology.interiorEdges
+		 * adds a dependent load per edge and it is slower. Boundary edges only contribute if they are
+		 * in topology.dirichletEdges.
+		 */
+		final double[] transmissibility = variables.transmissibility;
+		final int[] edgeLeftNeighbour = topology.edgeLeftNeighbour;
+		final int[] edgeRightNeighbour = topology.edgeRightNeighbour;
+		
+		for(int edge=1; edge<topology.edgeNumber; edge++) {
+
+			int right = edgeRightNeighbour[edge];
+			if(right!=0) {
+				int left = edgeLeftNeighbour[edge];
+				double sideFlux = transmissibility[edge] * ( x[right]-x[left] );
+				Apsi[left] -= sideFlux;
+				Apsi[right] += sideFlux;
+			}
 
-				}
+		}
 
-			} else {
+		final int[] dirichletEdges = topology.dirichletEdges;
+		for(int i=0; i<dirichletEdges.length; i++) {
 
-				sideFlux = variables.timeDelta * variables.kappasInterface.get(edge) * ( x.get(topology.edgeRightNeighbour.get(edge))-x.get(topology.edgeLeftNeighbour.get(edge)) )/geometry.delta_j.get(edge);
-//				System.out.println(edge+" "+variables.timeDelta +" "+variables.kappasInterface.get(edge)+" "+ -x.get(topology.edgeLeftNeighbour.get(edge))+" "+geometry.delta_j.get(edge));
-				Apsi.set( topology.edgeLeftNeighbour.get(edge), Apsi.get(topology.edgeLeftNeighbour.get(edge))-sideFlux );
-				Apsi.set( topology.edgeRightNeighbour.get(edge), Apsi.get(topology.edgeRightNeighbour.get(edge))+sideFlux );
+			int edge = dirichletEdges[i];
+			int left = edgeLeftNeighbour[edge];
+			Apsi[left] -= transmissibility[edge] * ( -x[left] );
 
-			}
 		}
-		//			System.out.println("\n\nApsi:");
-		//			for(Integer element : Topology.s_i.keySet()) {
-		//				System.out.println("\t" + element + "\t" + Apsi.get(element));
-		//			}
-
-		//		for(int edge=1; edge<topology.edgesBoundaryBCType.size(); edge++) {
-		//			/*
-		//			 * FIXME: boundary conditions
-		//			 * if 0 no flux
-		//			 * if 1 neumann 
-		//			 * if 2 dirichlet
-		//			 */
-		//			
-		//			if(topology.edgesBoundaryBCType.get(edge)==2 || topology.edgesBoundaryBCType.get(edge)==4) {
-		//				
-		//				sideFlux = variables.timeDelta * variables.kappasInterface.get(edge) * ( -x.get(topology.edgeLeftNeighbour.get(edge)) )/geometry.delta_j.get(edge);
-		//				
-		//				Apsi.set( topology.edgeLeftNeighbour.get(edge), Apsi.get(topology.edgeLeftNeighbour.get(edge))-sideFlux );
-		//				
-		//			}
-		//			
-		//		}
-
-		return Apsi;
 
 	}
 
@@ -0,0 +1,228 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.matop;
+
+import it.geoframe.blogspot.whetgeo2d.data.ProblemQuantities;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
+
+/**
+ * Assembled version of {@link Matop2DRichards}.
+ * The symmetric matrix T is stored in compressed sparse row (CSR) format: the diagonal is kept
+ * in a separate array and each row stores only the off-diagonal entries, one for each interior edge of the element.
+ * The sparsity pattern is computed once from the topology, the values are updated by {@link #assemble()}
+ * once per Picard iteration, so that the product inside the conjugate gradient has no branches.
+ */
+public class Matop2DRichardsCSR extends Matop2D {
+
+	private ProblemQuantities variables;
+	
+	/*
+	 * Off-diagonal entries of the row i are rowOffset[i] ... rowOffset[i+1]-1
+	 */
+	private int[] rowOffset;
+	private int[] column;
+	private int[] entryEdge;
+	private double[] values;
+	private double[] diagonal;
+	
+	/*
+	 * Dirichlet boundary edges (type 2 and 4) and the element they belong to
+	 */
+	private int[] dirichletEdges;
+	private int[] dirichletElements;
+	
+	/*
+	 * The Dirichlet edges of the element i are dirichletEdges[dirichletOffset[i]] ... dirichletEdges[dirichletOffset[i+1]-1]
+	 */
+	private int[] dirichletOffset;
+	
+	/*
+	 * Rows already updated by the current call of assemble(int[], int)
+	 */
+	private int[] rowStamp;
+	private int stamp;
+
+
+	public Matop2DRichardsCSR(SimulationContext context) {
+
+		super(context);
+		variables = context.variables;
+		
+		rowOffset = new int[topology.elementNumber+1];
+		diagonal = new double[topology.elementNumber];
+		
+		int dirichletNumber = 0;
+		for(int edge=1; edge<topology.edgeNumber; edge++) {
+			if(topology.edgeRightNeighbour[edge]==0) {
+				if(topology.edgesBoundaryBCType[edge]==2 || topology.edgesBoundaryBCType[edge]==4) {
+					dirichletNumber++;
+				}
+			} else {
+				rowOffset[topology.edgeLeftNeighbour[edge]+1]++;
+				rowOffset[topology.edgeRightNeighbour[edge]+1]++;
+			}
+		}
+		for(int element=1; element<topology.elementNumber; element++) {
+			rowOffset[element+1] += rowOffset[element];
+		}
+		
+		column = new int[rowOffset[topology.elementNumber]];
+		entryEdge = new int[rowOffset[topology.elementNumber]];
+		values = new double[rowOffset[topology.elementNumber]];
+		dirichletEdges = new int[dirichletNumber];
+		dirichletElements = new int[dirichletNumber];
+		dirichletOffset = new int[topology.elementNumber+1];
+		rowStamp = new int[topology.elementNumber];
+		
+		/*
+		 * Entries of each row follow the ascending order of the element edges
+		 */
+		int position = 0;
+		for(int element=1; element<topology.elementNumber; element++) {
+			int entry = rowOffset[element];
+			for(int i=topology.elementEdgesOffset[element]; i<topology.elementEdgesOffset[element+1]; i++) {
+				int edge = topology.elementEdgesIndex[i];
+				if(topology.edgeRightNeighbour[edge]==0) {
+					if(topology.edgesBoundaryBCType[edge]==2 || topology.edgesBoundaryBCType[edge]==4) {
+						dirichletEdges[position] = edge;
+						dirichletElements[position] = element;
+						position++;
+					}
+				} else {
+					column[entry] = topology.edgeLeftNeighbour[edge]==element ? topology.edgeRightNeighbour[edge] : topology.edgeLeftNeighbour[edge];
+					entryEdge[entry] = edge;
+					entry++;
+				}
+			}
+			dirichletOffset[element+1] = position;
+		}
+
+	}
+	
+	
+	
+	/**
+	 * Update the matrix values from the current transmissibility.
+	 */
+	public void assemble() {
+		
+		for(int element=1; element<topology.elementNumber; element++) {
+			diagonal[element] = 0.0;
+			for(int entry=rowOffset[element]; entry<rowOffset[element+1]; entry++) {
+				values[entry] = -variables.transmissibility[entryEdge[entry]];
+				diagonal[element] += variables.transmissibility[entryEdge[entry]];
+			}
+		}
+		
+		for(int i=0; i<dirichletEdges.length; i++) {
+			diagonal[dirichletElements[i]] += variables.transmissibility[dirichletEdges[i]];
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * Update only the rows of the elements of the given edges, with the same sums of {@link #assemble()}.
+	 */
+	@Override
+	public void assemble(int[] edges, int edgeNumber) {
+		
+		if(edgeNumber < 0) {
+			assemble();
+			return;
+		}
+		
+		stamp++;
+		for(int i=0; i<edgeNumber; i++) {
+			int left = topology.edgeLeftNeighbour[edges[i]];
+			int right = topology.edgeRightNeighbour[edges[i]];
+			if(rowStamp[left] != stamp) {
+				rowStamp[left] = stamp;
+				assembleRow(left);
+			}
+			if(right != 0 && rowStamp[right] != stamp) {
+				rowStamp[right] = stamp;
+				assembleRow(right);
+			}
+		}
+		
+	}
+	
+	
+	
+	private void assembleRow(int element) {
+		
+		diagonal[element] = 0.0;
+		for(int entry=rowOffset[element]; entry<rowOffset[element+1]; entry++) {
+			values[entry] = -variables.transmissibility[entryEdge[entry]];
+			diagonal[element] += variables.transmissibility[entryEdge[entry]];
+		}
+		for(int i=dirichletOffset[element]; i<dirichletOffset[element+1]; i++) {
+			diagonal[element] += variables.transmissibility[dirichletEdges[i]];
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * @return offsets of the rows, the off-diagonal entries of the row i are rowOffset[i] ... rowOffset[i+1]-1
+	 */
+	public int[] getRowOffset() {
+		return rowOffset;
+	}
+	
+	
+	public int[] getColumn() {
+		return column;
+	}
+	
+	
+	/**
+	 * @return off-diagonal entries, updated by {@link #assemble()}
+	 */
+	public double[] getValues() {
+		return values;
+	}
+	
+	
+	
+	public void solve(double[] dis, double[] x, double[] Apsi) {
+
+		final int[] rowOffset = this.rowOffset;
+		final int[] column = this.column;
+		final double[] values = this.values;
+		final double[] diagonal = this.diagonal;
+		final int elementNumber = topology.elementNumber;
+		
+		int entry = rowOffset[1];
+		for(int element=1; element<elementNumber; element++) {
+			double sum = (dis[element]+diagonal[element])*x[element];
+			final int rowEnd = rowOffset[element+1];
+			for(; entry<rowEnd; entry++) {
+				sum += values[entry]*x[column[entry]];
+			}
+			Apsi[element] = sum;
+		}
+
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.matop;
+
+import java.util.concurrent.ForkJoinPool;
+
+import it.geoframe.blogspot.whetgeo2d.data.ProblemQuantities;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
+import it.geoframe.blogspot.whetgeo2d.parallel.ParallelLoop;
+
+/**
+ * Parallel version of {@link Matop2DRichards}.
+ * The edges contributing to the operator (interior and Dirichlet edges) are partitioned
+ * once in colour classes such that two edges of the same class never share an element.
+ * Each class is then scattered in parallel without races, one class after the other.
+ * The result differs from the serial operator only by round-off, because the
+ * contributions to each element are summed in a different order.
+ */
+public class Matop2DRichardsParallel extends Matop2D {
+
+	private ProblemQuantities variables;
+	
+	/*
+	 * Edges of the colour c are colourEdges[colourOffset[c]] ... colourEdges[colourOffset[c+1]-1]
+	 */
+	private int[] colourOffset;
+	private int[] colourEdges;
+	
+	private ParallelLoop diagonalLoop;
+	private ParallelLoop[] colourLoops;
+	
+	/*
+	 * Arguments of the current product, read by the loop bodies
+	 */
+	private double[] dis;
+	private double[] x;
+	private double[] Apsi;
+
+
+
+	public Matop2DRichardsParallel(SimulationContext context, ForkJoinPool pool) {
+
+		super(context);
+		variables = context.variables;
+		
+		computeColours();
+		
+		diagonalLoop = ParallelLoop.create(pool, 1, topology.elementNumber, (from, to) -> {
+			for(int element=from; element<to; element++) {
+				Apsi[element] = dis[element]*x[element];
+			}
+		});
+		
+		colourLoops = new ParallelLoop[colourOffset.length-1];
+		for(int colour=0; colour<colourLoops.length; colour++) {
+			colourLoops[colour] = ParallelLoop.create(pool, colourOffset[colour], colourOffset[colour+1], this::scatter);
+		}
+
+	}
+	
+	
+	
+	/*
+	 * Greedy colouring: each edge gets the smallest colour not yet used by the edges of its elements
+	 */
+	private void computeColours() {
+		
+		long[] usedColours = new long[topology.elementNumber];
+		int[] edgeColour = new int[topology.edgeNumber];
+		int[] colourSize = new int[Long.SIZE+1];
+		int colourNumber = 0;
+		
+		for(int edge=1; edge<topology.edgeNumber; edge++) {
+			
+			edgeColour[edge] = -1;
+			int left = topology.edgeLeftNeighbour[edge];
+			int right = topology.edgeRightNeighbour[edge];
+			if(right==0 && topology.edgesBoundaryBCType[edge]!=2 && topology.edgesBoundaryBCType[edge]!=4) {
+				continue;
+			}
+			
+			long used = usedColours[left] | usedColours[right];
+			int colour = Long.numberOfTrailingZeros(~used);
+			if(colour == Long.SIZE) {
+				throw new IllegalStateException("Matop2DRichardsParallel: more than " + Long.SIZE + " edge colours");
+			}
+			usedColours[left] |= 1L << colour;
+			if(right != 0) {
+				usedColours[right] |= 1L << colour;
+			}
+			edgeColour[edge] = colour;
+			colourSize[colour+1]++;
+			colourNumber = Math.max(colourNumber, colour+1);
+			
+		}
+		
+		colourOffset = new int[colourNumber+1];
+		for(int colour=0; colour<colourNumber; colour++) {
+			colourOffset[colour+1] = colourOffset[colour] + colourSize[colour+1];
+		}
+		
+		colourEdges = new int[colourOffset[colourNumber]];
+		int[] position = new int[colourNumber];
+		for(int edge=1; edge<topology.edgeNumber; edge++) {
+			if(edgeColour[edge] >= 0) {
+				colourEdges[colourOffset[edgeColour[edge]] + position[edgeColour[edge]]] = edge;
+				position[edgeColour[edge]]++;
+			}
+		}
+		
+	}
+	
+	
+	
+	public int getColourNumber() {
+		
+		return colourOffset.length-1;
+		
+	}
+	
+	
+	
+	public void solve(double[] dis, double[] x, double[] Apsi) {
+
+		this.dis = dis;
+		this.x = x;
+		this.Apsi = Apsi;
+		
+		diagonalLoop.run();
+		for(ParallelLoop colourLoop : colourLoops) {
+			colourLoop.run();
+		}
+		
+		this.dis = null;
+		this.x = null;
+		this.Apsi = null;
+
+	}
+	
+	
+	
+	private void scatter(int from, int to) {
+		
+		double sideFlux;
+		for(int i=from; i<to; i++) {
+			
+			int edge = colourEdges[i];
+			int left = topology.edgeLeftNeighbour[edge];
+			int right = topology.edgeRightNeighbour[edge];
+			
+			if(right==0) {
+				
+				sideFlux = variables.transmissibility[edge] * ( -x[left] );
+				Apsi[left] -= sideFlux;
+				
+			} else {
+				
+				sideFlux = variables.transmissibility[edge] * ( x[right]-x[left] );
+				Apsi[left] -= sideFlux;
+				Apsi[right] += sideFlux;
+				
+			}
+		}
+		
+	}
+
+}
@@ -19,16 +19,27 @@
 
 package it.geoframe.blogspot.whetgeo2d.matop;
 
-import it.geoframe.blogspot.numerical.matop.Matop;
+import java.util.concurrent.ForkJoinPool;
+
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
 
 public class MatopFactory {
 
-	public Matop createMatop(String type) {
+	/**
+	 * @param type operator type
+	 * @param context data of the simulation
+	 * @param pool fork/join pool used by the parallel operators, may be null
+	 */
+	public Matop2D createMatop(String type, SimulationContext context, ForkJoinPool pool) {
 		
-		Matop matop = null;
+		Matop2D matop = null;
 		
 		if(type.equalsIgnoreCase("2DRichards") || type.equalsIgnoreCase("2D Richards")) {
-			matop = Matop2DRichards.getInstance();
+			matop = new Matop2DRichards(context);
+		} else if(type.equalsIgnoreCase("2DRichardsCSR") || type.equalsIgnoreCase("2D Richards CSR")) {
+			matop = new Matop2DRichardsCSR(context);
+		} else if(type.equalsIgnoreCase("2DRichardsParallel") || type.equalsIgnoreCase("2D Richards Parallel")) {
+			matop = new Matop2DRichardsParallel(context, pool);
 		} else {
 			System.out.println("ERROR MatopFactory.createMatop");
 		}
@@ -0,0 +1,167 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.newtonalgorithm;
+
+/**
+ * Predictor of the initial guess of the Newton iterations: the water suctions of the new time step are extrapolated in time
+ * from the last accepted ones, linearly from the last two or with the Lagrange parabola through the last three.
+ * The initial guess of the equation state is then applied to the predicted value as to the previous one.
+ * 
+ * Each element falls back to its previous water suction when the extrapolated change is not reliable:
+ * when it is not finite, when it changes sign (the water suction crosses saturation) or when the last two changes have opposite sign.
+ * The parabola is used only where its change has the sign of the linear one and does not exceed twice it,
+ * elsewhere the linear extrapolation is used.
+ */
+public class InitialGuessPredictor {
+	
+	private int elementNumber;
+	private int order;
+	
+	/*
+	 * Last three accepted water suctions, history[0] the most recent one,
+	 * and the time steps that produced them
+	 */
+	private double[][] history;
+	private double[] historyTimeDelta;
+	private int historySize;
+	
+	
+	
+	/**
+	 * @param elementNumber number of elements
+	 * @param order 1 linear extrapolation, 2 quadratic extrapolation
+	 */
+	public InitialGuessPredictor(int elementNumber, int order) {
+		
+		this.elementNumber = elementNumber;
+		this.order = order;
+		
+		history = new double[order+1][elementNumber];
+		historyTimeDelta = new double[order+1];
+		historySize = 0;
+		
+	}
+	
+	
+	
+	/**
+	 * Add the water suctions at the end of an accepted time step
+	 * 
+	 * @param waterSuctions water suctions
+	 * @param timeDelta time step that produced them, 0 for the initial condition
+	 */
+	public void accept(double[] waterSuctions, double timeDelta) {
+		
+		double[] oldest = history[order];
+		for(int i=order; i>0; i--) {
+			history[i] = history[i-1];
+			historyTimeDelta[i] = historyTimeDelta[i-1];
+		}
+		history[0] = oldest;
+		historyTimeDelta[0] = timeDelta;
+		System.arraycopy(waterSuctions, 1, history[0], 1, elementNumber-1);
+		historySize = Math.min(historySize+1, order+1);
+		
+	}
+	
+	
+	
+	/**
+	 * Forget the accepted water suctions, e.g. after a discontinuity of the boundary conditions
+	 */
+	public void reset() {
+		
+		historySize = 0;
+		
+	}
+	
+	
+	
+	/**
+	 * @return the last accepted water suctions
+	 */
+	public double[] getLastWaterSuctions() {
+		
+		return history[0];
+		
+	}
+	
+	
+	
+	/**
+	 * Overwrite the water suctions, that must be the last accepted ones, with their extrapolation after timeDelta
+	 * 
+	 * @param waterSuctions water suctions
+	 * @param timeDelta time step
+	 * @return false if there are less than two accepted water suctions, waterSuctions is then left unchanged
+	 */
+	public boolean predict(double[] waterSuctions, double timeDelta) {
+		
+		if(historySize < 2) {
+			return false;
+		}
+		
+		/*
+		 * Times of the accepted water suctions relative to the last one: 0, -h1, -h1-h2
+		 */
+		double h1 = historyTimeDelta[0];
+		double linear = timeDelta/h1;
+		boolean quadratic = order == 2 && historySize == 3;
+		double l0 = 0.0, l1 = 0.0, l2 = 0.0;
+		if(quadratic) {
+			double h2 = historyTimeDelta[1];
+			double t1 = -h1;
+			double t2 = -h1-h2;
+			l0 = (timeDelta-t1)*(timeDelta-t2)/((-t1)*(-t2));
+			l1 = timeDelta*(timeDelta-t2)/(t1*(t1-t2));
+			l2 = timeDelta*(timeDelta-t1)/(t2*(t2-t1));
+		}
+		
+		double[] x0 = history[0];
+		double[] x1 = history[1];
+		double[] x2 = history[historySize-1];
+		for(int element=1; element<elementNumber; element++) {
+			
+			double last = x0[element];
+			double change = linear*(last-x1[element]);
+			
+			if(quadratic) {
+				double previousChange = x1[element]-x2[element];
+				if(previousChange*change < 0.0) {
+					continue;
+				}
+				double quadraticChange = l0*last + l1*x1[element] + l2*x2[element] - last;
+				if(quadraticChange*change >= 0.0 && Math.abs(quadraticChange) <= 2.0*Math.abs(change)) {
+					change = quadraticChange;
+				}
+			}
+			
+			double prediction = last + change;
+			if(Double.isFinite(prediction) && prediction*last > 0.0) {
+				waterSuctions[element] = prediction;
+			}
+			
+		}
+		
+		return true;
+		
+	}
+
+}
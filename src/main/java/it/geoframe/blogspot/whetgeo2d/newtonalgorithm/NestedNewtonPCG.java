@@ -0,0 +1,530 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.newtonalgorithm;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import it.geoframe.blogspot.closureequation.equationstate.EquationState;
+import it.geoframe.blogspot.whetgeo2d.equationstate.BatchedEquationState;
+import it.geoframe.blogspot.whetgeo2d.linearsystemsolver.PreconditionedConjugateGradient;
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2D;
+import it.geoframe.blogspot.whetgeo2d.parallel.ParallelLoop;
+import it.geoframe.blogspot.whetgeo2d.preconditioner.Preconditioner;
+import it.geoframe.blogspot.whetgeo2d.telemetry.SolverTelemetry;
+
+/**
+ * Nested Newton algorithm (Casulli and Zanolli, 2010) on primitive arrays, with the linear systems solved by
+ * {@link PreconditionedConjugateGradient}. The iterations are the ones of NestedNewtonCG of the numerical library,
+ * which is recovered with the Jacobi preconditioner.
+ * The vectors are indexed by the element number, the entry 0 is unused.
+ * 
+ * The work vectors are allocated once and solve does not allocate. The product T x, needed by both the outer and the inner
+ * residual, is computed only when x has changed since the last one: the first inner iteration and the outer iteration
+ * following a converged inner loop reuse it.
+ * The equation states are evaluated by blocks of consecutive elements with the same equation state, and q, qIntegral
+ * at the outer iterate are computed once per outer iteration.
+ * 
+ * For an ensemble, see {@link it.geoframe.blogspot.whetgeo2d.data.MeshReplication}, each member has its own residuals,
+ * forcing term and conjugate gradient, and it drops out of the outer (inner) iterations as soon as its outer (inner) residual
+ * is below the tolerance: its equation states are no longer evaluated and its entries are no longer updated.
+ */
+public class NestedNewtonPCG {
+	
+	private int MAXITER_NEWT;
+	private double newtonTolerance;
+	private List<EquationState> equationState;
+	private int[] elementParameterID;
+	private int[] elementEquationStateID;
+	private int elementNumber;
+	private int members;
+	
+	private Matop2D matop;
+	private Preconditioner preconditioner;
+	private PreconditionedConjugateGradient cg;
+	
+	private double[] xOuter;
+	private double[] dis;
+	private double[] Apsi;
+	private double[] fks;
+	private double[] dx;
+	private double[] zero;
+	private double[] q;
+	private double[] qIntegral;
+	
+	/*
+	 * The block b is made of the elements blockStart[b], ..., blockStart[b+1]-1
+	 */
+	private int[] blockStart;
+	private int blockNumber;
+	
+	/*
+	 * true if Apsi is T x for the current x
+	 */
+	private boolean productUpToDate;
+	
+	/*
+	 * Members still in the outer and in the inner iterations, and the scalars of each member
+	 */
+	private boolean[] outerActive;
+	private boolean[] innerActive;
+	private double[] memberOuterResidual;
+	private double[] memberInnerResidual;
+	private double[] firstOuterResidual;
+	private double[] previousOuterResidual;
+	private double[] forcingTerm;
+	private double[] innerTolerance;
+	private double[] cgResidualTolerance;
+	
+	private double[] x;
+	private double[] y;
+	private ParallelLoop copyLoop;
+	private ParallelLoop updateLoop;
+	
+	/*
+	 * Iterations of the last call of solve
+	 */
+	private int outerIterations;
+	private int innerIterations;
+	private int cgIterations;
+	private double outerResidual;
+	private boolean converged;
+	
+	private SolverTelemetry telemetry = new SolverTelemetry();
+	
+	/*
+	 * Inexact Newton: forcing term of the outer iterations, chosen as in Eisenstat and Walker (1996).
+	 * forcingTermType is 0 for none, 1 or 2 for their choices.
+	 */
+	private static final double INITIAL_FORCING_TERM = 0.5;
+	private static final double FORCING_TERM_GAMMA = 0.9;
+	private static final double FORCING_TERM_ALPHA = 2.0;
+	private static final double FORCING_TERM_SAFEGUARD = 0.1;
+	private int forcingTermType;
+	private double maximumForcingTerm = 0.9;
+	
+	
+	
+	public NestedNewtonPCG(double newtonTolerance, int MAXITER_NEWT, List<EquationState> equationState, Matop2D matop, Preconditioner preconditioner,
+			double cgTolerance, int[] elementParameterID, int[] elementEquationStateID, int elementNumber) {
+		
+		this(newtonTolerance, MAXITER_NEWT, equationState, matop, preconditioner, cgTolerance, elementParameterID, elementEquationStateID, elementNumber, null);
+		
+	}
+	
+	
+	
+	/**
+	 * @param pool fork/join pool used for the vector operations, null for serial execution.
+	 * The equation states are always evaluated in the calling thread since the closure models are not thread-safe.
+	 */
+	public NestedNewtonPCG(double newtonTolerance, int MAXITER_NEWT, List<EquationState> equationState, Matop2D matop, Preconditioner preconditioner,
+			double cgTolerance, int[] elementParameterID, int[] elementEquationStateID, int elementNumber, ForkJoinPool pool) {
+		
+		this(newtonTolerance, MAXITER_NEWT, equationState, matop, preconditioner, cgTolerance, elementParameterID, elementEquationStateID, elementNumber, 1, pool);
+		
+	}
+	
+	
+	
+	/**
+	 * @param members number of ensemble members, the entries of the vectors are interleaved by member
+	 */
+	public NestedNewtonPCG(double newtonTolerance, int MAXITER_NEWT, List<EquationState> equationState, Matop2D matop, Preconditioner preconditioner,
+			double cgTolerance, int[] elementParameterID, int[] elementEquationStateID, int elementNumber, int members, ForkJoinPool pool) {
+		
+		this.newtonTolerance = newtonTolerance;
+		this.MAXITER_NEWT = MAXITER_NEWT;
+		this.equationState = equationState;
+		this.matop = matop;
+		this.preconditioner = preconditioner;
+		this.elementParameterID = elementParameterID;
+		this.elementEquationStateID = elementEquationStateID;
+		this.elementNumber = elementNumber;
+		this.members = members;
+		
+		cg = new PreconditionedConjugateGradient(matop, preconditioner, cgTolerance, elementNumber, members, pool);
+		
+		xOuter = new double[elementNumber];
+		dis = new double[elementNumber];
+		Apsi = new double[elementNumber];
+		fks = new double[elementNumber];
+		dx = new double[elementNumber];
+		zero = new double[elementNumber];
+		q = new double[elementNumber];
+		qIntegral = new double[elementNumber];
+		
+		blockStart = new int[elementNumber+1];
+		for(int element=1; element<elementNumber; element++) {
+			if(element==1 || elementEquationStateID[element]!=elementEquationStateID[element-1]) {
+				blockStart[blockNumber++] = element;
+			}
+		}
+		blockStart[blockNumber] = elementNumber;
+		
+		copyLoop = ParallelLoop.create(pool, 1, elementNumber, this::copy);
+		updateLoop = ParallelLoop.create(pool, 1, elementNumber, this::update);
+		
+		outerActive = new boolean[members];
+		innerActive = new boolean[members];
+		memberOuterResidual = new double[members];
+		memberInnerResidual = new double[members];
+		firstOuterResidual = new double[members];
+		previousOuterResidual = new double[members];
+		forcingTerm = new double[members];
+		innerTolerance = new double[members];
+		cgResidualTolerance = new double[members];
+		
+	}
+	
+	
+	
+	/**
+	 * Solve the system for a new matrix: the preconditioner is set up once and reused by all the Newton iterations.
+	 * 
+	 * @param x initial guess, overwritten with the solution
+	 * @param y temperatures
+	 * @param rhs right-hand side
+	 * @param mainDiagonal diagonal of T
+	 */
+	public void solve(double[] x, double[] y, double[] rhs, double[] mainDiagonal) {
+		
+		solve(x, y, rhs, mainDiagonal, true);
+		
+	}
+	
+	
+	
+	/**
+	 * @param applyInitialGuess if true x is limited by the initial guess of the equation state, that ensures the convergence.
+	 * If false x is used as it is, e.g. a predicted solution: the iterations then stop without convergence
+	 * as soon as the outer residual exceeds the first one.
+	 */
+	public void solve(double[] x, double[] y, double[] rhs, double[] mainDiagonal, boolean applyInitialGuess) {
+		
+		outerIterations = 0;
+		innerIterations = 0;
+		cgIterations = 0;
+		outerResidual = 0.0;
+		converged = false;
+		
+		preconditioner.setup();
+		
+		if(applyInitialGuess) {
+			for(int element=1; element<elementNumber; element++) {
+				x[element] = equationState.get(elementEquationStateID[element]).initialGuess(x[element], elementParameterID[element], element);
+			}
+		}
+		
+		this.x = x;
+		this.y = y;
+		productUpToDate = false;
+		Arrays.fill(outerActive, true);
+		Arrays.fill(firstOuterResidual, Double.MAX_VALUE);
+		Arrays.fill(memberInnerResidual, 0.0);
+		Arrays.fill(previousOuterResidual, 0.0);
+		Arrays.fill(forcingTerm, 0.0);
+		
+		for(int outer=0; outer<MAXITER_NEWT; outer++) {
+			
+			computeProduct();
+			
+			boolean diverged = false;
+			boolean outerConverged = true;
+			outerResidual = 0.0;
+			for(int member=0; member<members; member++) {
+				if(!outerActive[member]) {
+					continue;
+				}
+				double residual = 0.0;
+				for(int element=member+1; element<elementNumber; element+=members) {
+					double fs = equationState.get(elementEquationStateID[element]).equationState(x[element], y[element], elementParameterID[element], element)
+							- rhs[element] + Apsi[element];
+					residual += fs*fs;
+				}
+				residual = Math.sqrt(residual);
+				memberOuterResidual[member] = residual;
+				outerResidual = Math.max(outerResidual, residual);
+				if(residual < newtonTolerance) {
+					outerActive[member] = false;
+					continue;
+				}
+				outerConverged = false;
+				if(!applyInitialGuess && !(residual <= firstOuterResidual[member])) {
+					diverged = true;
+				}
+				if(outer == 0) {
+					firstOuterResidual[member] = residual;
+				}
+			}
+			if(outerConverged) {
+				converged = true;
+				break;
+			}
+			if(diverged) {
+				break;
+			}
+			outerIterations++;
+			
+			for(int member=0; member<members; member++) {
+				innerActive[member] = outerActive[member];
+				innerTolerance[member] = newtonTolerance;
+				if(outerActive[member] && forcingTermType != 0) {
+					forcingTerm[member] = computeForcingTerm(outer, memberOuterResidual[member], previousOuterResidual[member], memberInnerResidual[member], forcingTerm[member]);
+					previousOuterResidual[member] = memberOuterResidual[member];
+					innerTolerance[member] = Math.max(newtonTolerance, forcingTerm[member]*memberOuterResidual[member]);
+				}
+				/*
+				 * The conjugate gradient reduces the residual only as much as needed by the inner tolerance,
+				 * both in the Euclidean norm of the Newton residual
+				 */
+				cgResidualTolerance[member] = forcingTermType == 0 ? 0.0 : 0.5*innerTolerance[member];
+			}
+			
+			copyLoop.run();
+			
+			computeBlocks(outerActive, true);
+			
+			for(int inner=0; inner<MAXITER_NEWT; inner++) {
+				
+				computeProduct();
+				
+				/*
+				 * p is first evaluated for all the members, so that the members that have already converged
+				 * have a diagonal for the preconditioner
+				 */
+				computeBlocks(outer == 0 && inner == 0 ? null : innerActive, false);
+				
+				boolean innerConverged = true;
+				for(int member=0; member<members; member++) {
+					if(!innerActive[member]) {
+						continue;
+					}
+					double residual = 0.0;
+					for(int element=member+1; element<elementNumber; element+=members) {
+						dis[element] = dis[element] - q[element];
+						fks[element] = fks[element] - (qIntegral[element] + q[element]*(x[element]-xOuter[element])) - rhs[element] + Apsi[element];
+						residual += fks[element]*fks[element];
+					}
+					residual = Math.sqrt(residual);
+					memberInnerResidual[member] = residual;
+					if(residual < innerTolerance[member]) {
+						innerActive[member] = false;
+					} else {
+						innerConverged = false;
+					}
+				}
+				if(innerConverged) {
+					break;
+				}
+				innerIterations++;
+				
+				long time = telemetry.time();
+				cgIterations += cg.solve(dis, fks, mainDiagonal, dx, cgResidualTolerance, innerActive);
+				telemetry.stop(SolverTelemetry.CG, time);
+				
+				updateLoop.run();
+				productUpToDate = false;
+				
+			}
+			
+		}
+		
+		this.x = null;
+		this.y = null;
+		
+	}
+	
+	
+	
+	/*
+	 * q and qIntegral at xOuter if outer is true, p and pIntegral at x otherwise, of the members in computedMembers
+	 * or of all the members if it is null, by blocks of elements with the same equation state
+	 */
+	private void computeBlocks(boolean[] computedMembers, boolean outer) {
+		
+		boolean allMembers = true;
+		for(int member=0; computedMembers != null && member<members; member++) {
+			allMembers = allMembers && computedMembers[member];
+		}
+		
+		for(int block=0; block<blockNumber; block++) {
+			int from = blockStart[block];
+			EquationState state = equationState.get(elementEquationStateID[from]);
+			if(allMembers) {
+				if(outer) {
+					BatchedEquationState.computeQ(state, xOuter, y, elementParameterID, from, blockStart[block+1], q, qIntegral);
+				} else {
+					BatchedEquationState.computeP(state, x, y, elementParameterID, from, blockStart[block+1], dis, fks);
+				}
+				continue;
+			}
+			for(int element=from; element<blockStart[block+1]; element++) {
+				if(!computedMembers[(element-1)%members]) {
+					continue;
+				}
+				if(outer) {
+					BatchedEquationState.computeQ(state, xOuter, y, elementParameterID, element, element+1, q, qIntegral);
+				} else {
+					BatchedEquationState.computeP(state, x, y, elementParameterID, element, element+1, dis, fks);
+				}
+			}
+		}
+		
+	}
+	
+	
+	
+	/*
+	 * Forcing term of the outer iteration, from the norms of the outer residual of this iteration and of the previous one.
+	 * Choice 1 uses the norm of the residual of the linearized problem left by the inner iterations, lastInnerResidual,
+	 * choice 2 the ratio of the norms with gamma 0.9 and alpha 2. Both are safeguarded against a too fast decrease,
+	 * bounded by maximumForcingTerm and, to avoid oversolving the last iteration, not smaller than half the ratio
+	 * between the Newton tolerance and the residual.
+	 */
+	private double computeForcingTerm(int outer, double outerResidual, double previousOuterResidual, double lastInnerResidual, double previousForcingTerm) {
+		
+		double forcingTerm;
+		if(outer == 0) {
+			forcingTerm = INITIAL_FORCING_TERM;
+		} else if(forcingTermType == 1) {
+			forcingTerm = Math.abs(outerResidual - lastInnerResidual)/previousOuterResidual;
+			double safeguard = Math.pow(previousForcingTerm, 0.5*(1.0+Math.sqrt(5.0)));
+			if(safeguard > FORCING_TERM_SAFEGUARD) {
+				forcingTerm = Math.max(forcingTerm, safeguard);
+			}
+		} else {
+			forcingTerm = FORCING_TERM_GAMMA*Math.pow(outerResidual/previousOuterResidual, FORCING_TERM_ALPHA);
+			double safeguard = FORCING_TERM_GAMMA*Math.pow(previousForcingTerm, FORCING_TERM_ALPHA);
+			if(safeguard > FORCING_TERM_SAFEGUARD) {
+				forcingTerm = Math.max(forcingTerm, safeguard);
+			}
+		}
+		
+		return Math.min(maximumForcingTerm, Math.max(forcingTerm, 0.5*newtonTolerance/outerResidual));
+		
+	}
+	
+	
+	
+	/*
+	 * Apsi = T x, the equation state does not contribute to the diagonal
+	 */
+	private void computeProduct() {
+		
+		if(!productUpToDate) {
+			matop.solve(zero, x, Apsi);
+			productUpToDate = true;
+		}
+		
+	}
+	
+	
+	
+	private void copy(int from, int to) {
+		
+		for(int element=from; element<to; element++) {
+			xOuter[element] = x[element];
+		}
+		
+	}
+	
+	
+	
+	private void update(int from, int to) {
+		
+		for(int member=0; member<members; member++) {
+			if(innerActive[member]) {
+				for(int element=from+Math.floorMod(member-(from-1), members); element<to; element+=members) {
+					x[element] = x[element] - dx[element];
+				}
+			}
+		}
+		
+	}
+	
+	
+	
+	public int getOuterIterations() {
+		return outerIterations;
+	}
+	
+	
+	public int getInnerIterations() {
+		return innerIterations;
+	}
+	
+	
+	public int getCGIterations() {
+		return cgIterations;
+	}
+	
+	
+	/**
+	 * @return norm of the last outer residual of the last call
+	 */
+	public double getOuterResidual() {
+		return outerResidual;
+	}
+	
+	
+	/**
+	 * Inexact Newton method: the inner iterations of each outer iteration stop when the inner residual is below a forcing term
+	 * times the outer residual, instead of the Newton tolerance, and the conjugate gradient reduces its residual only as much
+	 * as needed by this inner tolerance, never below cgTolerance. The outer iterations still stop at the Newton tolerance.
+	 * 
+	 * @param typeForcingTerm None for the fixed tolerance cgTolerance, EisenstatWalker1 or EisenstatWalker2
+	 * for the choices 1 and 2 of Eisenstat and Walker (1996)
+	 * @param maximumForcingTerm upper bound of the forcing term
+	 */
+	public void setForcingTerm(String typeForcingTerm, double maximumForcingTerm) {
+		
+		if(typeForcingTerm.equalsIgnoreCase("EisenstatWalker1")) {
+			forcingTermType = 1;
+		} else if(typeForcingTerm.equalsIgnoreCase("EisenstatWalker2")) {
+			forcingTermType = 2;
+		} else {
+			if(!typeForcingTerm.equalsIgnoreCase("None")) {
+				System.out.println("ERROR NestedNewtonPCG: unknown forcing term " + typeForcingTerm + ", the fixed tolerance is used");
+			}
+			forcingTermType = 0;
+		}
+		this.maximumForcingTerm = maximumForcingTerm;
+		
+	}
+	
+	
+	/**
+	 * @param telemetry telemetry timing the conjugate gradient
+	 */
+	public void setTelemetry(SolverTelemetry telemetry) {
+		this.telemetry = telemetry;
+	}
+	
+	
+	/**
+	 * @return true if the residual of the last call is below the tolerance within MAXITER_NEWT outer iterations
+	 */
+	public boolean hasConverged() {
+		return converged;
+	}
+
+}
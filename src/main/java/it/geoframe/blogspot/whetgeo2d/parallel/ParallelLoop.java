@@ -0,0 +1,219 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.parallel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loop over the index range [start, end) split in chunks executed on a fork/join pool.
+ * The chunk tasks are allocated once and reused at every {@link #run()}, so that
+ * running the loop does not allocate. Chunk boundaries are aligned to multiples of
+ * {@link #CACHE_LINE} indices so that two threads never write the same cache line of a double[].
+ * The chunks depend only on the range and on the chunk size: without a pool they are executed
+ * one after the other in the calling thread, so per-chunk partial results do not depend on the number of threads.
+ */
+public class ParallelLoop {
+	
+	/**
+	 * Number of doubles in a 64 bytes cache line
+	 */
+	public static final int CACHE_LINE = 8;
+
+	public interface Body {
+		
+		void apply(int from, int to);
+		
+	}
+	
+	/**
+	 * Loop body that also receives the index of the chunk, e.g. to store partial sums
+	 */
+	public interface ChunkBody {
+		
+		void apply(int chunk, int from, int to);
+		
+	}
+	
+	private final ForkJoinPool pool;
+	private final ChunkBody body;
+	private final int alignment;
+	private final Chunk[] chunks;
+	private final RecursiveAction root;
+	
+	
+	
+	/**
+	 * @param pool fork/join pool, null for serial execution
+	 * @param start first index
+	 * @param end last index (excluded)
+	 * @param chunkSize minimum number of indices per chunk, rounded up to a multiple of CACHE_LINE
+	 * @param body loop body
+	 */
+	public ParallelLoop(ForkJoinPool pool, int start, int end, int chunkSize, Body body) {
+		
+		this(pool, start, end, chunkSize, (chunk, from, to) -> body.apply(from, to));
+		
+	}
+	
+	
+	
+	/**
+	 * @param pool fork/join pool, null for serial execution
+	 * @param start first index
+	 * @param end last index (excluded)
+	 * @param chunkSize minimum number of indices per chunk, rounded up to a multiple of CACHE_LINE
+	 * @param body loop body
+	 */
+	public ParallelLoop(ForkJoinPool pool, int start, int end, int chunkSize, ChunkBody body) {
+		
+		this(pool, start, end, chunkSize, CACHE_LINE, body);
+		
+	}
+	
+	
+	
+	private ParallelLoop(ForkJoinPool pool, int start, int end, int chunkSize, int alignment, ChunkBody body) {
+		
+		this.pool = pool != null && pool.getParallelism() > 1 ? pool : null;
+		this.body = body;
+		this.alignment = alignment;
+		
+		chunkSize = Math.max(alignment, (chunkSize+alignment-1)/alignment*alignment);
+		int chunkNumber = 0;
+		for(int from = start; from < end; from = nextBoundary(from, chunkSize)) {
+			chunkNumber++;
+		}
+		
+		chunks = new Chunk[chunkNumber];
+		int from = start;
+		for(int i=0; i<chunkNumber; i++) {
+			int to = Math.min(end, nextBoundary(from, chunkSize));
+			chunks[i] = new Chunk(i, from, to);
+			from = to;
+		}
+		
+		root = new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected void compute() {
+				ForkJoinTask.invokeAll(chunks);
+			}
+		};
+		
+	}
+	
+	
+	
+	/**
+	 * @param pool fork/join pool, null for serial execution
+	 * @param start first index
+	 * @param end last index (excluded)
+	 * @param body loop body
+	 * @return a loop split in about four chunks per thread, a single chunk without a pool
+	 */
+	public static ParallelLoop create(ForkJoinPool pool, int start, int end, Body body) {
+		
+		int threads = pool == null ? 1 : pool.getParallelism();
+		int chunkSize = threads == 1 ? end-start : (end-start)/(4*threads)+1;
+		return new ParallelLoop(pool, start, end, chunkSize, body);
+		
+	}
+	
+	
+	
+	/**
+	 * @param pool fork/join pool, null for serial execution
+	 * @param start first index
+	 * @param end last index (excluded)
+	 * @param body loop body
+	 * @return a loop with one chunk per index, not aligned to CACHE_LINE, for a few large work items that write disjoint data
+	 */
+	public static ParallelLoop createPerIndex(ForkJoinPool pool, int start, int end, Body body) {
+		
+		return new ParallelLoop(pool, start, end, 1, 1, (chunk, from, to) -> body.apply(from, to));
+		
+	}
+	
+	
+	
+	public int getChunkNumber() {
+		
+		return chunks.length;
+		
+	}
+	
+	
+	
+	public void run() {
+		
+		if(pool == null || chunks.length < 2) {
+			for(Chunk chunk : chunks) {
+				body.apply(chunk.index, chunk.from, chunk.to);
+			}
+			return;
+		}
+		
+		for(Chunk chunk : chunks) {
+			chunk.reinitialize();
+		}
+		root.reinitialize();
+		
+		if(ForkJoinTask.getPool() == pool) {
+			root.invoke();
+		} else {
+			pool.invoke(root);
+		}
+		
+	}
+	
+	
+	
+	private int nextBoundary(int from, int chunkSize) {
+		
+		return (from+chunkSize)/alignment*alignment;
+		
+	}
+	
+	
+	
+	private class Chunk extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		private final int index;
+		private final int from;
+		private final int to;
+		
+		Chunk(int index, int from, int to) {
+			this.index = index;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			body.apply(index, from, to);
+		}
+		
+	}
+
+}
@@ -0,0 +1,8 @@
+/**
+ * 
+ */
+/**
+ * @author Niccolo` Tubini
+ *
+ */
+package it.geoframe.blogspot.whetgeo2d.parallel;
\ No newline at end of file
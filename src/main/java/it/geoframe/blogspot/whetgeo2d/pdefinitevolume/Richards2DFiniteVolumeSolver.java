@@ -22,12 +22,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import it.geoframe.blogspot.whetgeo2d.data.*;
 import it.geoframe.blogspot.closureequation.closureequation.Parameters;
 import it.geoframe.blogspot.closureequation.equationstate.EquationState;
 import it.geoframe.blogspot.numerical.newtonalgorithm.NestedNewtonCG;
 import it.geoframe.blogspot.numerical.matop.Matop;
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2D;
+import it.geoframe.blogspot.whetgeo2d.newtonalgorithm.NestedNewtonPCG;
+import it.geoframe.blogspot.whetgeo2d.parallel.ParallelLoop;
+import it.geoframe.blogspot.whetgeo2d.preconditioner.JacobiPreconditioner;
+import it.geoframe.blogspot.whetgeo2d.preconditioner.Preconditioner;
+import it.geoframe.blogspot.whetgeo2d.telemetry.SolverTelemetry;
 
 import oms3.annotations.*;
 
@@ -54,12 +61,21 @@ public class Richards2DFiniteVolumeSolver {
 
 	@Description("Right hand side vector of the scalar equation to solve")
 	@Unit ("-")
-	private List<Double> rhs;
+	private double[] rhs;
 
 
 	@Description("Main diagonal of the matrix for the Jacobi preconditioner")
 	@Unit ("-")
-	private List<Double> mainDiagonal;
+	private double[] mainDiagonal;
+	
+	/*
+	 * Boxed copies of the state handed over to the nested Newton algorithm,
+	 * that works on List<Double>
+	 */
+	private List<Double> waterSuctionsList;
+	private List<Double> temperaturesList;
+	private List<Double> rhsList;
+	private List<Double> mainDiagonalList;
 	
 	@Description("")
 	@Unit ("-")
@@ -77,121 +93,256 @@ public class Richards2DFiniteVolumeSolver {
 	
 	private Topology topology;
 	
-	private double sideFlux;
+	/*
+	 * Arguments of the current call, read by the assembly loop
+	 */
+	private double[] kappasInterface;
+	private double[] transmissibility;
+	private double[] volumes;
+	private double[] gravityGradient;
+	
+	private ParallelLoop assemblyLoop;
+	private ParallelLoop edgeLoop;
 	
-	private double mainDiagonalEntry;
+	/*
+	 * Contribution of each edge to the right-hand side of its left element and to the main diagonal
+	 */
+	private double[] edgeFlux;
+	private double[] edgeDiagonal;
 	
 
 //	@Description("Object to perform the nested Newton algortithm")
 	private NestedNewtonCG nestedNewtonAlg;
+	
+	/*
+	 * Nested Newton algorithm on primitive arrays, used in place of nestedNewtonAlg
+	 */
+	private NestedNewtonPCG nestedNewtonPCG;
+	
+	private SolverTelemetry telemetry = new SolverTelemetry();
 
     //////////////////////////////
 
 
 
-	public Richards2DFiniteVolumeSolver( double newtonTolerance, double cdgTolerance,
+	public Richards2DFiniteVolumeSolver(SimulationContext context, double newtonTolerance, double cdgTolerance,
 			int MAXITER_NEWT, List<EquationState> equationState, Matop matop, List<Integer> elementParameterID, List<Integer> elementEquationStateID) {
-
-		geometry = Geometry.getInstance();
-		topology = Topology.getInstance();
 		
-		rhs = new ArrayList<Double>(Arrays.asList(new Double[topology.elementEdgesSet.size()]));
-		mainDiagonal = new ArrayList<Double>(Arrays.asList(new Double[topology.elementEdgesSet.size()]));
+		this(context, newtonTolerance, cdgTolerance, MAXITER_NEWT, equationState, matop, elementParameterID, elementEquationStateID, null);
+		
+	}
+	
+	
+	
+	public Richards2DFiniteVolumeSolver(SimulationContext context, double newtonTolerance, double cdgTolerance,
+			int MAXITER_NEWT, List<EquationState> equationState, Matop matop, List<Integer> elementParameterID, List<Integer> elementEquationStateID,
+			ForkJoinPool pool) {
+		
+		this(context, newtonTolerance, cdgTolerance, MAXITER_NEWT, equationState, matop, elementParameterID, elementEquationStateID, pool, null);
+		
+	}
+	
+	
+	
+	/**
+	 * @param pool fork/join pool used to assemble the right-hand side and the main diagonal, null for serial assembly
+	 * @param preconditioner preconditioner of the conjugate gradient, it requires matop to be a Matop2D.
+	 * If null the Jacobi preconditioned NestedNewtonCG of the numerical library is used.
+	 */
+	public Richards2DFiniteVolumeSolver(SimulationContext context, double newtonTolerance, double cdgTolerance,
+			int MAXITER_NEWT, List<EquationState> equationState, Matop matop, List<Integer> elementParameterID, List<Integer> elementEquationStateID,
+			ForkJoinPool pool, Preconditioner preconditioner) {
+		
+		this(context, newtonTolerance, cdgTolerance, MAXITER_NEWT, equationState, matop, elementParameterID, elementEquationStateID, pool,
+				preconditioner == null ? "NestedNewtonCG" : "NestedNewtonPCG", preconditioner);
+		
+	}
+	
+	
+	
+	/**
+	 * @param pool fork/join pool used to assemble the right-hand side and the main diagonal and by the vector operations
+	 * of NestedNewtonPCG, null for serial execution
+	 * @param typeNestedNewton nested Newton algorithm:
+	 * NestedNewtonCG the one of the numerical library, working on List<Double> with the Jacobi preconditioner;
+	 * NestedNewtonPCG the one working on primitive arrays, it requires matop to be a Matop2D.
+	 * @param preconditioner preconditioner of NestedNewtonPCG, if null the Jacobi preconditioner is used.
+	 * Since NestedNewtonCG has only the Jacobi preconditioner and no ensemble members, NestedNewtonPCG is used whenever
+	 * a preconditioner is given or the context has more than one member.
+	 */
+	public Richards2DFiniteVolumeSolver(SimulationContext context, double newtonTolerance, double cdgTolerance,
+			int MAXITER_NEWT, List<EquationState> equationState, Matop matop, List<Integer> elementParameterID, List<Integer> elementEquationStateID,
+			ForkJoinPool pool, String typeNestedNewton, Preconditioner preconditioner) {
+
+		geometry = context.geometry;
+		topology = context.topology;
+		
+		variables = context.variables;
+		
+		rhs = new double[topology.elementNumber];
+		mainDiagonal = new double[topology.elementNumber];
+		edgeFlux = new double[topology.edgeNumber];
+		edgeDiagonal = new double[topology.edgeNumber];
+		edgeLoop = ParallelLoop.create(pool, 0, topology.interiorEdges.length, this::assembleInteriorEdges);
+		assemblyLoop = ParallelLoop.create(pool, 1, topology.elementNumber, this::assemble);
+		waterSuctionsList = new ArrayList<Double>(Arrays.asList(new Double[topology.elementNumber]));
+		temperaturesList = new ArrayList<Double>(Arrays.asList(new Double[topology.elementNumber]));
+		rhsList = new ArrayList<Double>(Arrays.asList(new Double[topology.elementNumber]));
+		mainDiagonalList = new ArrayList<Double>(Arrays.asList(new Double[topology.elementNumber]));
 		this.elementParameterID = new ArrayList<Integer>(elementParameterID);
 		this.elementEquationStateID = new ArrayList<Integer>(elementEquationStateID);
 		
-		nestedNewtonAlg = new NestedNewtonCG(newtonTolerance, MAXITER_NEWT, equationState, matop, cdgTolerance,
-				elementParameterID, elementEquationStateID);
+		if(preconditioner == null && typeNestedNewton.equalsIgnoreCase("NestedNewtonCG") && context.members == 1) {
+			nestedNewtonAlg = new NestedNewtonCG(newtonTolerance, MAXITER_NEWT, equationState, matop, cdgTolerance,
+					elementParameterID, elementEquationStateID);
+		} else {
+			if(!typeNestedNewton.equalsIgnoreCase("NestedNewtonPCG") && !typeNestedNewton.equalsIgnoreCase("NestedNewtonCG")) {
+				System.out.println("ERROR Richards2DFiniteVolumeSolver: unknown nested Newton algorithm " + typeNestedNewton + ", NestedNewtonPCG is used");
+			}
+			if(preconditioner == null) {
+				preconditioner = new JacobiPreconditioner(topology.elementNumber);
+			}
+			nestedNewtonPCG = new NestedNewtonPCG(newtonTolerance, MAXITER_NEWT, equationState, (Matop2D) matop, preconditioner, cdgTolerance,
+					context.variables.elementParameterID, context.variables.elementEquationStateID, topology.elementNumber, context.members, pool);
+		}
 
 	}
 
 
 	
 
-	public List<Double> solve(double timeDelta, HashMap<Integer, double[]> inBC, List<Double> kappasInterface, List<Double> volumes, List<Double> ets,
-			List<Double> waterSuctions, List<Double> temperatures, List<Double> gravityGradient) {
+	/*
+	 * Flux and main diagonal contribution of the interior edges interiorEdges[from] ... interiorEdges[to-1]
+	 */
+	private void assembleInteriorEdges(int from, int to) {
+		
+		final int[] interiorEdges = topology.interiorEdges;
+		
+		for(int i=from; i<to; i++) {
+			int edge = interiorEdges[i];
+			edgeFlux[edge] = this.timeDelta*kappasInterface[edge]*gravityGradient[edge];
+			edgeDiagonal[edge] = transmissibility[edge];
+		}
+		
+	}
+	
+	
+	
+	/*
+	 * Flux and main diagonal contribution of the boundary edges, one loop per boundary condition type.
+	 * The edges of the other types keep a zero contribution.
+	 */
+	private void assembleBoundaryEdges() {
+		
+		final double[] boundaryValues = variables.boundaryValues;
+		
+		for(int edge : topology.neumannEdges) {
+			/*
+			 * FIXME: scalar product between edge and flux
+			 */
+			edgeFlux[edge] = this.timeDelta*geometry.edgesLength[edge]*boundaryValues[edge];
+		}
+		
+		for(int edge : topology.pressureEdges) {
+			edgeFlux[edge] = transmissibility[edge]*boundaryValues[edge] + this.timeDelta*kappasInterface[edge]*gravityGradient[edge];
+			edgeDiagonal[edge] = transmissibility[edge];
+		}
+		
+		for(int edge : topology.freeDrainageEdges) {
+			edgeFlux[edge] = this.timeDelta*kappasInterface[edge]*geometry.edgesLength[edge]*Math.min(0.0, gravityGradient[edge]);
+		}
+		
+		for(int edge : topology.totalHeadEdges) {
+			edgeFlux[edge] = transmissibility[edge]*(boundaryValues[edge]-geometry.edgesCentroidsCoordinates[edge][1]) 
+					+ this.timeDelta*kappasInterface[edge]*gravityGradient[edge];
+			edgeDiagonal[edge] = transmissibility[edge];
+		}
+		
+	}
+	
+	
+	
+	/*
+	 * Cell-centric gather of rhs and mainDiagonal for the elements [from, to).
+	 * Each element sums the contributions of its edges in ascending edge order,
+	 * that is the order of the former loop over the edges, so the result does not depend
+	 * on the number of threads.
+	 */
+	private void assemble(int from, int to) {
+		
+		final int[] elementEdgesOffset = topology.elementEdgesOffset;
+		final int[] elementEdgesIndex = topology.elementEdgesIndex;
+		final double[] elementEdgesSign = topology.elementEdgesSign;
+		
+		for(int element=from; element<to; element++) {
+			
+			double rhsElement = volumes[element];
+			double mainDiagonalElement = 0.0;
+			
+			for(int i=elementEdgesOffset[element]; i<elementEdgesOffset[element+1]; i++) {
+				int edge = elementEdgesIndex[i];
+				rhsElement += elementEdgesSign[i]*edgeFlux[edge];
+				mainDiagonalElement += edgeDiagonal[edge];
+			}
+			
+			rhs[element] = rhsElement;
+			mainDiagonal[element] = mainDiagonalElement;
+			
+		}
+		
+	}
+	
+	
+	
+	public double[] solve(double timeDelta, HashMap<Integer, double[]> inBC, double[] kappasInterface, double[] transmissibility, double[] volumes, double[] ets,
+			double[] waterSuctions, double[] temperatures, double[] gravityGradient) {
+		
+		return solve(timeDelta, inBC, kappasInterface, transmissibility, volumes, ets, waterSuctions, temperatures, gravityGradient, false);
+		
+	}
+	
+	
+	
+	/**
+	 * @param predictedInitialGuess true if waterSuctions is a predicted solution: NestedNewtonPCG then starts from it as it is,
+	 * without the limitation of the initial guess of the equation state, and the convergence is no longer ensured, see {@link #hasConverged()}.
+	 * NestedNewtonCG of the numerical library always limits the initial guess.
+	 */
+	public double[] solve(double timeDelta, HashMap<Integer, double[]> inBC, double[] kappasInterface, double[] transmissibility, double[] volumes, double[] ets,
+			double[] waterSuctions, double[] temperatures, double[] gravityGradient, boolean predictedInitialGuess) {
 
 
 		this.timeDelta = timeDelta;
 
+		telemetry.beginNewtonSolve();
+		long time = telemetry.time();
+
+		topology.resolveBoundaryValues(inBC, variables.boundaryValues);
+		this.kappasInterface = kappasInterface;
+		this.transmissibility = transmissibility;
+		this.volumes = volumes;
+		this.gravityGradient = gravityGradient;
 
 		/* 
-		 * Right-hand-side of the algebraic system:
+		 * Right-hand-side of the algebraic system and main diagonal of the matrix
 		 */
-		for(int element=1; element<topology.elementEdgesSet.size(); element++) {
-			rhs.set(element, volumes.get(element));
-			mainDiagonal.set(element, 0.0);
-		}
-				
-//		System.out.println("\n\n\tSIDE FLUX");
-		for(int edge=1; edge<topology.edgeRightNeighbour.size(); edge++) {
-			
-			/*
-			 * Add boundary condition
-			 * 	- 1 neumann
-			 * 	- 2 dirichlet with water pressure
-			 * 	- 3 free drainage
-			 * 	- 4 dirichlet with total head
-			 */
-			if(topology.edgeRightNeighbour.get(edge)==0) {
-				
-				if(topology.edgesBoundaryBCType.get(edge)==1) {
-					/*
-					 * FIXME: scalar product between edge and flux
-					 */
-					sideFlux = this.timeDelta*geometry.edgesLength.get(edge)*inBC.get(topology.edgesBoundaryBCValue.get(edge))[0];
-//					rhs.set(topology.edgeLeftNeighbour.get(edge), rhs.get(topology.edgeLeftNeighbour.get(edge))+sideFlux);
-					mainDiagonalEntry = 0.0;
-					
-				} else if(topology.edgesBoundaryBCType.get(edge)==2) {
-					
-					sideFlux = this.timeDelta*kappasInterface.get(edge)*( inBC.get(topology.edgesBoundaryBCValue.get(edge))[0]/geometry.delta_j.get(edge) 
-																					+ gravityGradient.get(edge) );
-//					rhs.set(topology.edgeLeftNeighbour.get(edge), rhs.get(topology.edgeLeftNeighbour.get(edge))+sideFlux);
-					mainDiagonalEntry = this.timeDelta*kappasInterface.get(edge)/geometry.delta_j.get(edge);
-
-				} else if(topology.edgesBoundaryBCType.get(edge)==3) {
-					
-//					sideFlux = this.timeDelta*kappasInterface.get(edge)*geometry.edgesLength.get(edge)*Math.min(0.0, geometry.edgeNormalVector.get(edge)[1]);
-					sideFlux = this.timeDelta*kappasInterface.get(edge)*geometry.edgesLength.get(edge)*Math.min(0.0, gravityGradient.get(edge));
-
-//					System.out.println(edge+" " +this.timeDelta*kappasInterface.get(edge)*geometry.edgesLength.get(edge) +" "+gravityGradient.get(edge)+" "+sideFlux);
-					mainDiagonalEntry = 0.0;
-
-				} else if(topology.edgesBoundaryBCType.get(edge)==4) {
-				
-					sideFlux = this.timeDelta*kappasInterface.get(edge)*( (inBC.get(topology.edgesBoundaryBCValue.get(edge))[0]-geometry.edgesCentroidsCoordinates.get(edge)[1])/geometry.delta_j.get(edge) 
-																					+ gravityGradient.get(edge) );
-					mainDiagonalEntry = this.timeDelta*kappasInterface.get(edge)/geometry.delta_j.get(edge);
-
-				}
-				
-//				System.out.println(edge + " " + sideFlux);
-				rhs.set(topology.edgeLeftNeighbour.get(edge), rhs.get(topology.edgeLeftNeighbour.get(edge))+sideFlux);
-				mainDiagonal.set(topology.edgeLeftNeighbour.get(edge), mainDiagonal.get(topology.edgeLeftNeighbour.get(edge))+mainDiagonalEntry);
-				
-			} else {
-				
-				sideFlux = this.timeDelta*kappasInterface.get(edge)*gravityGradient.get(edge);
-//				System.out.println(edge + " " + sideFlux);
-				rhs.set(topology.edgeRightNeighbour.get(edge), rhs.get(topology.edgeRightNeighbour.get(edge)) - sideFlux);
-				rhs.set(topology.edgeLeftNeighbour.get(edge), rhs.get(topology.edgeLeftNeighbour.get(edge)) + sideFlux);
-				
-				mainDiagonalEntry = this.timeDelta*kappasInterface.get(edge)/geometry.delta_j.get(edge);
-				mainDiagonal.set(topology.edgeRightNeighbour.get(edge), mainDiagonal.get(topology.edgeRightNeighbour.get(edge)) + mainDiagonalEntry);
-				mainDiagonal.set(topology.edgeLeftNeighbour.get(edge), mainDiagonal.get(topology.edgeLeftNeighbour.get(edge)) + mainDiagonalEntry);
-				
-			}
-			
-		}
+		edgeLoop.run();
+		assembleBoundaryEdges();
+		assemblyLoop.run();
+		
+		this.kappasInterface = null;
+		this.transmissibility = null;
+		this.volumes = null;
+		this.gravityGradient = null;
 		
+		telemetry.stop(SolverTelemetry.ASSEMBLY, time);
 		
-//		for(int element=1; element<topology.elementEdgesSet.size(); element++) {
+//		for(int element=1; element<topology.elementNumber; element++) {
 //			System.out.println("\t"+element+"\t"+mainDiagonal.get(element));
 //		}
 //		
 //		System.out.println("RHS");
-//		for(int element=1; element<topology.elementEdgesSet.size(); element++) {
+//		for(int element=1; element<topology.elementNumber; element++) {
 //			System.out.println("\t"+element+"\t"+rhs.get(element));
 //		}
 				
@@ -201,12 +352,93 @@ public class Richards2DFiniteVolumeSolver {
 		 * NESTED NEWTON ALGORITHM /
 		 */
 
-		nestedNewtonAlg.set(waterSuctions, temperatures, rhs, mainDiagonal);
-		return waterSuctions = nestedNewtonAlg.solver();
+		time = telemetry.time();
+		
+		if(nestedNewtonPCG != null) {
+			nestedNewtonPCG.solve(waterSuctions, temperatures, rhs, mainDiagonal, !predictedInitialGuess);
+			telemetry.stop(SolverTelemetry.NEWTON, time);
+			telemetry.endNewtonSolve(nestedNewtonPCG.getOuterIterations(), nestedNewtonPCG.getInnerIterations(), nestedNewtonPCG.getCGIterations(),
+					nestedNewtonPCG.getOuterResidual(), nestedNewtonPCG.hasConverged(), predictedInitialGuess);
+			return waterSuctions;
+		}
+		
+		for(int element=1; element<topology.elementNumber; element++) {
+			waterSuctionsList.set(element, waterSuctions[element]);
+			temperaturesList.set(element, temperatures[element]);
+			rhsList.set(element, rhs[element]);
+			mainDiagonalList.set(element, mainDiagonal[element]);
+		}
+		
+		nestedNewtonAlg.set(waterSuctionsList, temperaturesList, rhsList, mainDiagonalList);
+		List<Double> solution = nestedNewtonAlg.solver();
+		
+		for(int element=1; element<topology.elementNumber; element++) {
+			waterSuctions[element] = solution.get(element);
+		}
+		
+		telemetry.stop(SolverTelemetry.NEWTON, time);
+		telemetry.endNewtonSolve(0, 0, 0, 0.0, true, predictedInitialGuess);
+		
+		return waterSuctions;
 
 
 
 	} //// MAIN CYCLE END ////
+	
+	
+	
+	/**
+	 * @return true if the last solve converged within MAXITER_NEWT iterations.
+	 * NestedNewtonCG of the numerical library does not report it and it is assumed to converge.
+	 */
+	public boolean hasConverged() {
+		
+		return nestedNewtonPCG == null || nestedNewtonPCG.hasConverged();
+		
+	}
+	
+	
+	
+	/**
+	 * @return number of outer Newton iterations of the last solve, 0 for NestedNewtonCG.
+	 * The inner iterations are not used since they depend little on the time step, e.g. in saturated areas.
+	 */
+	public int getNewtonIterations() {
+		
+		return nestedNewtonPCG == null ? 0 : nestedNewtonPCG.getOuterIterations();
+		
+	}
+	
+	
+	
+	/**
+	 * Inexact Newton method, see {@link NestedNewtonPCG#setForcingTerm(String, double)}.
+	 * NestedNewtonCG of the numerical library has only the fixed tolerance.
+	 */
+	public void setForcingTerm(String typeForcingTerm, double maximumForcingTerm) {
+		
+		if(nestedNewtonPCG != null) {
+			nestedNewtonPCG.setForcingTerm(typeForcingTerm, maximumForcingTerm);
+		} else if(!typeForcingTerm.equalsIgnoreCase("None")) {
+			System.out.println("WARNING Richards2DFiniteVolumeSolver: NestedNewtonCG has no forcing term, the fixed tolerance is used");
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * @param telemetry telemetry timing the assembly, the nested Newton algorithm and the conjugate gradient,
+	 * and counting the iterations of NestedNewtonPCG
+	 */
+	public void setTelemetry(SolverTelemetry telemetry) {
+		
+		this.telemetry = telemetry;
+		if(nestedNewtonPCG != null) {
+			nestedNewtonPCG.setTelemetry(telemetry);
+		}
+		
+	}
 
 
 } 
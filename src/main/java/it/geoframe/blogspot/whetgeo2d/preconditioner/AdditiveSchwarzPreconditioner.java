@@ -0,0 +1,353 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package it.geoframe.blogspot.whetgeo2d.preconditioner;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import it.geoframe.blogspot.whetgeo2d.data.MeshPartitioning;
+import it.geoframe.blogspot.whetgeo2d.data.Topology;
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2DRichardsCSR;
+import it.geoframe.blogspot.whetgeo2d.parallel.ParallelLoop;
+
+/**
+ * One-level additive Schwarz preconditioner. The elements are split in subdomains by {@link MeshPartitioning},
+ * each subdomain is extended by overlap layers of neighbouring elements and the matrix restricted to it
+ * is approximately solved with an incomplete Cholesky factorization IC(0), refactorized at each update.
+ * The subdomains are factorized and solved in parallel, one task per subdomain.
+ * The local solutions are summed on the overlap, so that the preconditioner is symmetric positive definite
+ * as the conjugate gradient requires.
+ */
+public class AdditiveSchwarzPreconditioner extends Preconditioner {
+	
+	private int elementNumber;
+	private Subdomain[] subdomains;
+	
+	/*
+	 * Subdomains containing each element and the local index in them:
+	 * memberSubdomain[memberOffset[i] ... memberOffset[i+1]-1]
+	 */
+	private int[] memberOffset;
+	private int[] memberSubdomain;
+	private int[] memberLocal;
+	
+	private ParallelLoop updateLoop;
+	private ParallelLoop solveLoop;
+	private ParallelLoop sumLoop;
+	
+	private double[] dis;
+	private double[] mainDiagonal;
+	private double[] r;
+	private double[] z;
+	
+	
+	private static class Subdomain {
+		
+		/*
+		 * Elements of the subdomain in ascending order
+		 */
+		int[] element;
+		
+		/*
+		 * Strictly lower part of the local factor, as in IncompleteCholeskyPreconditioner but with local indices
+		 */
+		int[] lowerOffset;
+		int[] lowerColumn;
+		int[] lowerEntry;
+		double[] lower;
+		double[] lowerDiagonal;
+		int[] lowerProductsOffset;
+		int[] lowerProducts;
+		
+		double[] y;
+		double[] x;
+		
+	}
+	
+	
+	
+	/**
+	 * @param topology topology of the mesh
+	 * @param subdomainNumber number of subdomains
+	 * @param overlap number of layers of elements added to each subdomain
+	 * @param pool fork/join pool, null for serial execution
+	 */
+	public AdditiveSchwarzPreconditioner(Matop2DRichardsCSR matrix, boolean assembleMatrix, Topology topology, int subdomainNumber, int overlap,
+			ForkJoinPool pool) {
+		
+		super(matrix, assembleMatrix);
+		this.elementNumber = topology.elementNumber;
+		
+		MeshPartitioning partitioning = new MeshPartitioning(topology, subdomainNumber);
+		subdomainNumber = partitioning.partNumber;
+		
+		int[] rowOffset = matrix.getRowOffset();
+		int[] column = matrix.getColumn();
+		
+		subdomains = new Subdomain[subdomainNumber];
+		int[] stamp = new int[elementNumber];
+		int[] local = new int[elementNumber];
+		int[] layer = new int[elementNumber];
+		int[] memberCount = new int[elementNumber+1];
+		
+		for(int s=0; s<subdomainNumber; s++) {
+			
+			/*
+			 * Owned elements, then overlap layers by breadth-first search over the matrix graph
+			 */
+			int size = 0;
+			for(int element=1; element<elementNumber; element++) {
+				if(partitioning.elementPart[element] == s) {
+					stamp[element] = s+1;
+					layer[size++] = element;
+				}
+			}
+			int layerStart = 0;
+			for(int level=0; level<overlap; level++) {
+				int layerEnd = size;
+				for(int i=layerStart; i<layerEnd; i++) {
+					int element = layer[i];
+					for(int entry=rowOffset[element]; entry<rowOffset[element+1]; entry++) {
+						if(stamp[column[entry]] != s+1) {
+							stamp[column[entry]] = s+1;
+							layer[size++] = column[entry];
+						}
+					}
+				}
+				layerStart = layerEnd;
+			}
+			
+			Subdomain subdomain = new Subdomain();
+			subdomain.element = Arrays.copyOf(layer, size);
+			Arrays.sort(subdomain.element);
+			for(int i=0; i<size; i++) {
+				int element = subdomain.element[i];
+				local[element] = i;
+				memberCount[element+1]++;
+			}
+			
+			buildLowerPattern(subdomain, rowOffset, column, stamp, local, s+1);
+			subdomains[s] = subdomain;
+			
+		}
+		
+		memberOffset = memberCount;
+		for(int element=1; element<elementNumber; element++) {
+			memberOffset[element+1] += memberOffset[element];
+		}
+		memberSubdomain = new int[memberOffset[elementNumber]];
+		memberLocal = new int[memberOffset[elementNumber]];
+		int[] position = Arrays.copyOf(memberOffset, elementNumber);
+		for(int s=0; s<subdomainNumber; s++) {
+			for(int i=0; i<subdomains[s].element.length; i++) {
+				int element = subdomains[s].element[i];
+				memberSubdomain[position[element]] = s;
+				memberLocal[position[element]] = i;
+				position[element]++;
+			}
+		}
+		
+		updateLoop = ParallelLoop.createPerIndex(pool, 0, subdomainNumber, (from, to) -> {
+			for(int s=from; s<to; s++) {
+				factorize(subdomains[s]);
+			}
+		});
+		solveLoop = ParallelLoop.createPerIndex(pool, 0, subdomainNumber, (from, to) -> {
+			for(int s=from; s<to; s++) {
+				solve(subdomains[s]);
+			}
+		});
+		sumLoop = ParallelLoop.create(pool, 1, elementNumber, (from, to) -> {
+			for(int element=from; element<to; element++) {
+				double sum = 0.0;
+				for(int member=memberOffset[element]; member<memberOffset[element+1]; member++) {
+					sum += subdomains[memberSubdomain[member]].x[memberLocal[member]];
+				}
+				z[element] = sum;
+			}
+		});
+		
+	}
+	
+	
+	
+	/*
+	 * Lower pattern of the matrix restricted to the subdomain and the pairs of entries of each product of the factorization
+	 */
+	private static void buildLowerPattern(Subdomain subdomain, int[] rowOffset, int[] column, int[] stamp, int[] local, int subdomainStamp) {
+		
+		int size = subdomain.element.length;
+		int[] lowerOffset = new int[size+1];
+		for(int i=0; i<size; i++) {
+			int element = subdomain.element[i];
+			lowerOffset[i+1] = lowerOffset[i];
+			for(int entry=rowOffset[element]; entry<rowOffset[element+1]; entry++) {
+				if(column[entry]<element && stamp[column[entry]] == subdomainStamp) {
+					lowerOffset[i+1]++;
+				}
+			}
+		}
+		
+		int[] lowerColumn = new int[lowerOffset[size]];
+		int[] lowerEntry = new int[lowerOffset[size]];
+		for(int i=0; i<size; i++) {
+			int element = subdomain.element[i];
+			int position = lowerOffset[i];
+			for(int entry=rowOffset[element]; entry<rowOffset[element+1]; entry++) {
+				if(column[entry]<element && stamp[column[entry]] == subdomainStamp) {
+					int q = position;
+					while(q>lowerOffset[i] && lowerColumn[q-1]>local[column[entry]]) {
+						lowerColumn[q] = lowerColumn[q-1];
+						lowerEntry[q] = lowerEntry[q-1];
+						q--;
+					}
+					lowerColumn[q] = local[column[entry]];
+					lowerEntry[q] = entry;
+					position++;
+				}
+			}
+		}
+		
+		int[] lowerProductsOffset = new int[lowerColumn.length+1];
+		int[] lowerProducts = null;
+		for(int pass=0; pass<2; pass++) {
+			int products = 0;
+			for(int i=0; i<size; i++) {
+				for(int q=lowerOffset[i]; q<lowerOffset[i+1]; q++) {
+					int k = lowerColumn[q];
+					lowerProductsOffset[q] = products;
+					for(int qi=lowerOffset[i]; qi<q; qi++) {
+						for(int qk=lowerOffset[k]; qk<lowerOffset[k+1]; qk++) {
+							if(lowerColumn[qk]==lowerColumn[qi]) {
+								if(pass==1) {
+									lowerProducts[2*products] = qi;
+									lowerProducts[2*products+1] = qk;
+								}
+								products++;
+							}
+						}
+					}
+				}
+			}
+			lowerProductsOffset[lowerColumn.length] = products;
+			if(pass==0) {
+				lowerProducts = new int[2*products];
+			}
+		}
+		
+		subdomain.lowerOffset = lowerOffset;
+		subdomain.lowerColumn = lowerColumn;
+		subdomain.lowerEntry = lowerEntry;
+		subdomain.lowerProductsOffset = lowerProductsOffset;
+		subdomain.lowerProducts = lowerProducts;
+		subdomain.lower = new double[lowerColumn.length];
+		subdomain.lowerDiagonal = new double[size];
+		subdomain.y = new double[size];
+		subdomain.x = new double[size];
+		
+	}
+	
+	
+	
+	@Override
+	public void update(double[] dis, double[] mainDiagonal) {
+		
+		this.dis = dis;
+		this.mainDiagonal = mainDiagonal;
+		updateLoop.run();
+		
+	}
+	
+	
+	
+	@Override
+	public void apply(double[] r, double[] z) {
+		
+		this.r = r;
+		this.z = z;
+		solveLoop.run();
+		sumLoop.run();
+		
+	}
+	
+	
+	
+	private void factorize(Subdomain subdomain) {
+		
+		final double[] values = matrix.getValues();
+		final int[] lowerOffset = subdomain.lowerOffset;
+		final int[] lowerColumn = subdomain.lowerColumn;
+		final double[] lower = subdomain.lower;
+		final double[] lowerDiagonal = subdomain.lowerDiagonal;
+		
+		for(int i=0; i<subdomain.element.length; i++) {
+			
+			int element = subdomain.element[i];
+			double diagonal = mainDiagonal[element]+dis[element];
+			double pivot = diagonal;
+			for(int q=lowerOffset[i]; q<lowerOffset[i+1]; q++) {
+				double sum = values[subdomain.lowerEntry[q]];
+				for(int product=subdomain.lowerProductsOffset[q]; product<subdomain.lowerProductsOffset[q+1]; product++) {
+					sum -= lower[subdomain.lowerProducts[2*product]]*lower[subdomain.lowerProducts[2*product+1]];
+				}
+				lower[q] = sum/lowerDiagonal[lowerColumn[q]];
+				pivot -= lower[q]*lower[q];
+			}
+			
+			if(!(pivot > 1e-12*diagonal)) {
+				pivot = diagonal > 0.0 ? diagonal : 1.0;
+			}
+			lowerDiagonal[i] = Math.sqrt(pivot);
+			
+		}
+		
+	}
+	
+	
+	
+	private void solve(Subdomain subdomain) {
+		
+		final int[] lowerOffset = subdomain.lowerOffset;
+		final int[] lowerColumn = subdomain.lowerColumn;
+		final double[] lower = subdomain.lower;
+		final double[] lowerDiagonal = subdomain.lowerDiagonal;
+		final double[] y = subdomain.y;
+		final double[] x = subdomain.x;
+		int size = subdomain.element.length;
+		
+		for(int i=0; i<size; i++) {
+			double sum = r[subdomain.element[i]];
+			for(int q=lowerOffset[i]; q<lowerOffset[i+1]; q++) {
+				sum -= lower[q]*y[lowerColumn[q]];
+			}
+			y[i] = sum/lowerDiagonal[i];
+		}
+		
+		for(int i=size-1; i>=0; i--) {
+			x[i] = y[i]/lowerDiagonal[i];
+			for(int q=lowerOffset[i]; q<lowerOffset[i+1]; q++) {
+				y[lowerColumn[q]] -= lower[q]*x[i];
+			}
+		}
+		
+	}
+
+}
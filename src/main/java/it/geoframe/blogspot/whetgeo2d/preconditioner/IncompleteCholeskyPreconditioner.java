@@ -0,0 +1,186 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.preconditioner;
+
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2DRichardsCSR;
+
+/**
+ * Incomplete Cholesky factorization with no fill-in, IC(0): M = L L^T with L having the
+ * sparsity pattern of the lower part of the matrix. The pattern is computed once from the matrix,
+ * the numerical factorization costs about as much as a matrix product and it is repeated at each update,
+ * so that it follows the Newton diagonal.
+ * A pivot that is not positive, possible where the matrix is only semi-definite, is replaced by the diagonal entry.
+ */
+public class IncompleteCholeskyPreconditioner extends Preconditioner {
+	
+	private int elementNumber;
+	
+	/*
+	 * Strictly lower part of L: the entries of the row i are lowerOffset[i] ... lowerOffset[i+1]-1, sorted by column.
+	 * lowerEntry is the position of the entry in the CSR matrix.
+	 */
+	private int[] lowerOffset;
+	private int[] lowerColumn;
+	private int[] lowerEntry;
+	private double[] lower;
+	private double[] lowerDiagonal;
+	
+	/*
+	 * For each lower entry (i,k) the positions of the entries (i,j) and (k,j) with j<k
+	 * that contribute to it, as pairs in lowerProducts[lowerProductsOffset[q] ... lowerProductsOffset[q+1]-1]
+	 */
+	private int[] lowerProductsOffset;
+	private int[] lowerProducts;
+	
+	private double[] y;
+	
+	
+	
+	public IncompleteCholeskyPreconditioner(Matop2DRichardsCSR matrix, boolean assembleMatrix, int elementNumber) {
+		
+		super(matrix, assembleMatrix);
+		this.elementNumber = elementNumber;
+		
+		int[] rowOffset = matrix.getRowOffset();
+		int[] column = matrix.getColumn();
+		
+		lowerOffset = new int[elementNumber+1];
+		for(int element=1; element<elementNumber; element++) {
+			lowerOffset[element+1] = lowerOffset[element];
+			for(int entry=rowOffset[element]; entry<rowOffset[element+1]; entry++) {
+				if(column[entry]<element) {
+					lowerOffset[element+1]++;
+				}
+			}
+		}
+		
+		lowerColumn = new int[lowerOffset[elementNumber]];
+		lowerEntry = new int[lowerOffset[elementNumber]];
+		lower = new double[lowerOffset[elementNumber]];
+		lowerDiagonal = new double[elementNumber];
+		y = new double[elementNumber];
+		
+		for(int element=1; element<elementNumber; element++) {
+			int position = lowerOffset[element];
+			for(int entry=rowOffset[element]; entry<rowOffset[element+1]; entry++) {
+				if(column[entry]<element) {
+					/*
+					 * insertion sort, rows have a few entries
+					 */
+					int q = position;
+					while(q>lowerOffset[element] && lowerColumn[q-1]>column[entry]) {
+						lowerColumn[q] = lowerColumn[q-1];
+						lowerEntry[q] = lowerEntry[q-1];
+						q--;
+					}
+					lowerColumn[q] = column[entry];
+					lowerEntry[q] = entry;
+					position++;
+				}
+			}
+		}
+		
+		lowerProductsOffset = new int[lowerColumn.length+1];
+		int products = 0;
+		for(int pass=0; pass<2; pass++) {
+			products = 0;
+			for(int element=1; element<elementNumber; element++) {
+				for(int q=lowerOffset[element]; q<lowerOffset[element+1]; q++) {
+					int k = lowerColumn[q];
+					lowerProductsOffset[q] = products;
+					for(int qi=lowerOffset[element]; qi<q; qi++) {
+						for(int qk=lowerOffset[k]; qk<lowerOffset[k+1]; qk++) {
+							if(lowerColumn[qk]==lowerColumn[qi]) {
+								if(pass==1) {
+									lowerProducts[2*products] = qi;
+									lowerProducts[2*products+1] = qk;
+								}
+								products++;
+							}
+						}
+					}
+				}
+			}
+			lowerProductsOffset[lowerColumn.length] = products;
+			if(pass==0) {
+				lowerProducts = new int[2*products];
+			}
+		}
+		
+	}
+	
+	
+	
+	@Override
+	public void update(double[] dis, double[] mainDiagonal) {
+		
+		final double[] values = matrix.getValues();
+		
+		for(int element=1; element<elementNumber; element++) {
+			
+			double diagonal = mainDiagonal[element]+dis[element];
+			double pivot = diagonal;
+			for(int q=lowerOffset[element]; q<lowerOffset[element+1]; q++) {
+				double sum = values[lowerEntry[q]];
+				for(int product=lowerProductsOffset[q]; product<lowerProductsOffset[q+1]; product++) {
+					sum -= lower[lowerProducts[2*product]]*lower[lowerProducts[2*product+1]];
+				}
+				lower[q] = sum/lowerDiagonal[lowerColumn[q]];
+				pivot -= lower[q]*lower[q];
+			}
+			
+			if(!(pivot > 1e-12*diagonal)) {
+				pivot = diagonal > 0.0 ? diagonal : 1.0;
+			}
+			lowerDiagonal[element] = Math.sqrt(pivot);
+			
+		}
+		
+	}
+	
+	
+	
+	@Override
+	public void apply(double[] r, double[] z) {
+		
+		/*
+		 * L y = r
+		 */
+		for(int element=1; element<elementNumber; element++) {
+			double sum = r[element];
+			for(int q=lowerOffset[element]; q<lowerOffset[element+1]; q++) {
+				sum -= lower[q]*y[lowerColumn[q]];
+			}
+			y[element] = sum/lowerDiagonal[element];
+		}
+		
+		/*
+		 * L^T z = y, by columns of L
+		 */
+		for(int element=elementNumber-1; element>0; element--) {
+			z[element] = y[element]/lowerDiagonal[element];
+			for(int q=lowerOffset[element]; q<lowerOffset[element+1]; q++) {
+				y[lowerColumn[q]] -= lower[q]*z[element];
+			}
+		}
+		
+	}
+
+}
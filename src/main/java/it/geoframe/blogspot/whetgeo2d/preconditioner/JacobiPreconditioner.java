@@ -0,0 +1,68 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.preconditioner;
+
+/**
+ * Diagonal preconditioner, the one of the conjugate gradient of the numerical library.
+ */
+public class JacobiPreconditioner extends Preconditioner {
+	
+	private double[] dis;
+	private double[] mainDiagonal;
+	private int elementNumber;
+	
+	
+	
+	public JacobiPreconditioner(int elementNumber) {
+		
+		super(null, false);
+		this.elementNumber = elementNumber;
+		
+	}
+	
+	
+	
+	@Override
+	public void setup() {
+		
+	}
+	
+	
+	
+	@Override
+	public void update(double[] dis, double[] mainDiagonal) {
+		
+		this.dis = dis;
+		this.mainDiagonal = mainDiagonal;
+		
+	}
+	
+	
+	
+	@Override
+	public void apply(double[] r, double[] z) {
+		
+		for(int element=1; element<elementNumber; element++) {
+			z[element] = r[element]/(mainDiagonal[element]+dis[element]);
+		}
+		
+	}
+
+}
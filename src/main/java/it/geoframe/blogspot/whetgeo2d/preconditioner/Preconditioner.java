@@ -0,0 +1,81 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.preconditioner;
+
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2DRichardsCSR;
+
+/**
+ * Preconditioner of the matrix diag(mainDiagonal + dis) + T solved by the conjugate gradient inside the nested Newton algorithm.
+ * The off-diagonal entries of T are read from a {@link Matop2DRichardsCSR}, the diagonal is the one assembled
+ * by the solver. The vectors are indexed by the element number, the entry 0 is unused.
+ * <p>
+ * {@link #setup()} is called once per Picard iteration, when the transmissibility has changed, and does the expensive work.
+ * {@link #update(double[], double[])} is called before each linear solve, when only the Newton diagonal dis has changed.
+ */
+public abstract class Preconditioner {
+	
+	protected Matop2DRichardsCSR matrix;
+	private boolean assembleMatrix;
+	
+	
+	
+	/**
+	 * @param matrix assembled matrix of the problem
+	 * @param assembleMatrix true if the matrix is owned by the preconditioner and must be assembled at each setup,
+	 * false if it is the operator of the conjugate gradient and it is already assembled
+	 */
+	public Preconditioner(Matop2DRichardsCSR matrix, boolean assembleMatrix) {
+		
+		this.matrix = matrix;
+		this.assembleMatrix = assembleMatrix;
+		
+	}
+	
+	
+	
+	/**
+	 * Called once per Picard iteration, after the transmissibility has been updated.
+	 */
+	public void setup() {
+		
+		if(assembleMatrix) {
+			matrix.assemble();
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * Called before each linear solve.
+	 * 
+	 * @param dis diagonal contribution of the equation state
+	 * @param mainDiagonal diagonal of T
+	 */
+	public abstract void update(double[] dis, double[] mainDiagonal);
+	
+	
+	
+	/**
+	 * Compute z = M^-1 r.
+	 */
+	public abstract void apply(double[] r, double[] z);
+
+}
@@ -0,0 +1,84 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.preconditioner;
+
+import java.util.concurrent.ForkJoinPool;
+
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2D;
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2DRichardsCSR;
+
+public class PreconditionerFactory {
+
+	/**
+	 * @param type preconditioner type
+	 * @param context data of the simulation
+	 * @param matop operator of the conjugate gradient, its matrix is reused if it is assembled
+	 */
+	public Preconditioner createPreconditioner(String type, SimulationContext context, Matop2D matop) {
+		
+		return createPreconditioner(type, context, matop, null, 1, 1);
+		
+	}
+	
+	
+	
+	/**
+	 * @param type preconditioner type
+	 * @param context data of the simulation
+	 * @param matop operator of the conjugate gradient, its matrix is reused if it is assembled
+	 * @param pool fork/join pool of the subdomain solves of the additive Schwarz preconditioner, null for serial execution
+	 * @param subdomainNumber number of subdomains of the additive Schwarz preconditioner
+	 * @param subdomainOverlap layers of elements added to each subdomain of the additive Schwarz preconditioner
+	 */
+	public Preconditioner createPreconditioner(String type, SimulationContext context, Matop2D matop, ForkJoinPool pool, int subdomainNumber, int subdomainOverlap) {
+		
+		Preconditioner preconditioner = null;
+		int elementNumber = context.topology.elementNumber;
+		
+		if(type.equalsIgnoreCase("Jacobi")) {
+			return new JacobiPreconditioner(elementNumber);
+		}
+		
+		Matop2DRichardsCSR matrix;
+		boolean assembleMatrix;
+		if(matop instanceof Matop2DRichardsCSR) {
+			matrix = (Matop2DRichardsCSR) matop;
+			assembleMatrix = false;
+		} else {
+			matrix = new Matop2DRichardsCSR(context);
+			assembleMatrix = true;
+		}
+		
+		if(type.equalsIgnoreCase("SSOR")) {
+			preconditioner = new SSORPreconditioner(matrix, assembleMatrix, elementNumber, 1.0);
+		} else if(type.equalsIgnoreCase("IC0") || type.equalsIgnoreCase("Incomplete Cholesky") || type.equalsIgnoreCase("IncompleteCholesky")) {
+			preconditioner = new IncompleteCholeskyPreconditioner(matrix, assembleMatrix, elementNumber);
+		} else if(type.equalsIgnoreCase("AMG") || type.equalsIgnoreCase("Smoothed Aggregation AMG") || type.equalsIgnoreCase("SmoothedAggregationAMG")) {
+			preconditioner = new SmoothedAggregationAMGPreconditioner(matrix, assembleMatrix, elementNumber, context.members);
+		} else if(type.equalsIgnoreCase("AdditiveSchwarz") || type.equalsIgnoreCase("Additive Schwarz") || type.equalsIgnoreCase("ASM")) {
+			preconditioner = new AdditiveSchwarzPreconditioner(matrix, assembleMatrix, context.topology, subdomainNumber, subdomainOverlap, pool);
+		} else {
+			System.out.println("ERROR PreconditionerFactory.createPreconditioner");
+		}
+		
+		return preconditioner;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.preconditioner;
+
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2DRichardsCSR;
+
+/**
+ * Symmetric successive over-relaxation preconditioner
+ * M = 1/(omega(2-omega)) (D + omega L) D^-1 (D + omega U),
+ * where L and U are the lower and upper parts of T in the element numbering.
+ * It needs no setup, the diagonal is the current one.
+ */
+public class SSORPreconditioner extends Preconditioner {
+	
+	private double omega;
+	private double[] diagonal;
+	private int elementNumber;
+	
+	
+	
+	/**
+	 * @param omega relaxation factor in (0,2), 1 gives the symmetric Gauss-Seidel preconditioner
+	 */
+	public SSORPreconditioner(Matop2DRichardsCSR matrix, boolean assembleMatrix, int elementNumber, double omega) {
+		
+		super(matrix, assembleMatrix);
+		this.elementNumber = elementNumber;
+		this.omega = omega;
+		diagonal = new double[elementNumber];
+		
+	}
+	
+	
+	
+	@Override
+	public void update(double[] dis, double[] mainDiagonal) {
+		
+		for(int element=1; element<elementNumber; element++) {
+			diagonal[element] = mainDiagonal[element]+dis[element];
+		}
+		
+	}
+	
+	
+	
+	@Override
+	public void apply(double[] r, double[] z) {
+		
+		final int[] rowOffset = matrix.getRowOffset();
+		final int[] column = matrix.getColumn();
+		final double[] values = matrix.getValues();
+		
+		/*
+		 * (D + omega L) y = r, y is stored in z
+		 */
+		for(int element=1; element<elementNumber; element++) {
+			double sum = r[element];
+			for(int entry=rowOffset[element]; entry<rowOffset[element+1]; entry++) {
+				if(column[entry]<element) {
+					sum -= omega*values[entry]*z[column[entry]];
+				}
+			}
+			z[element] = sum/diagonal[element];
+		}
+		
+		/*
+		 * (D + omega U) z = D y
+		 */
+		for(int element=elementNumber-1; element>0; element--) {
+			double sum = diagonal[element]*z[element];
+			for(int entry=rowOffset[element]; entry<rowOffset[element+1]; entry++) {
+				if(column[entry]>element) {
+					sum -= omega*values[entry]*z[column[entry]];
+				}
+			}
+			z[element] = sum/diagonal[element];
+		}
+		
+		double scale = omega*(2.0-omega);
+		for(int element=1; element<elementNumber; element++) {
+			z[element] *= scale;
+		}
+		
+	}
+
+}
@@ -0,0 +1,495 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.preconditioner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2DRichardsCSR;
+
+/**
+ * Smoothed aggregation algebraic multigrid (Vanek, Mandel and Brezina, 1996) applied as one symmetric V-cycle:
+ * forward Gauss-Seidel before and backward Gauss-Seidel after the coarse correction, so that the preconditioner is symmetric.
+ * <p>
+ * The hierarchy (aggregates, smoothed prolongators and Galerkin coarse matrices) is built at the first update after
+ * {@link #setup()}, i.e. once per Picard iteration, with the Newton diagonal of that update.
+ * The following updates only refresh the diagonal of the finest matrix, the coarse matrices are reused.
+ * <p>
+ * In an ensemble the members are disconnected copies of the mesh, each one gets its own hierarchy built on its
+ * rows of the matrix, so that the aggregates and the number of levels are those of the single simulation.
+ */
+public class SmoothedAggregationAMGPreconditioner extends Preconditioner {
+	
+	/*
+	 * Coarsening stops at COARSEST_SIZE unknowns, the coarsest matrix is factorized if it has at most DENSE_SIZE unknowns
+	 */
+	private static final int COARSEST_SIZE = 100;
+	private static final int DENSE_SIZE = 1000;
+	private static final int MAX_LEVELS = 12;
+	private static final double STRENGTH_THRESHOLD = 0.08;
+	
+	private int elementNumber;
+	private int members;
+	private boolean rebuild;
+	private Hierarchy[] hierarchies;
+	
+	
+	private static class Hierarchy {
+		
+		List<Level> levels = new ArrayList<Level>();
+		
+		/*
+		 * Cholesky factor of the coarsest matrix, row-major lower triangle
+		 */
+		double[] coarseFactor;
+		
+	}
+	
+	
+	private static class Level {
+		
+		SparseMatrix A;
+		SparseMatrix P;
+		SparseMatrix R;
+		int[] diagonalPosition;
+		double[] x;
+		double[] b;
+		double[] r;
+		
+		Level(SparseMatrix A) {
+			this.A = A;
+			diagonalPosition = A.diagonalPosition();
+			x = new double[A.rows];
+			b = new double[A.rows];
+			r = new double[A.rows];
+		}
+		
+	}
+	
+	
+	
+	public SmoothedAggregationAMGPreconditioner(Matop2DRichardsCSR matrix, boolean assembleMatrix, int elementNumber) {
+		
+		this(matrix, assembleMatrix, elementNumber, 1);
+		
+	}
+	
+	
+	
+	/**
+	 * @param members number of members of the ensemble, whose elements are interleaved
+	 */
+	public SmoothedAggregationAMGPreconditioner(Matop2DRichardsCSR matrix, boolean assembleMatrix, int elementNumber, int members) {
+		
+		super(matrix, assembleMatrix);
+		this.elementNumber = elementNumber;
+		this.members = members;
+		hierarchies = new Hierarchy[members];
+		for(int member=0; member<members; member++) {
+			hierarchies[member] = new Hierarchy();
+		}
+		rebuild = true;
+		
+	}
+	
+	
+	
+	@Override
+	public void setup() {
+		
+		super.setup();
+		rebuild = true;
+		
+	}
+	
+	
+	
+	@Override
+	public void update(double[] dis, double[] mainDiagonal) {
+		
+		if(rebuild) {
+			for(int member=0; member<members; member++) {
+				buildHierarchy(hierarchies[member], fineMatrix(dis, mainDiagonal, member));
+			}
+			rebuild = false;
+		} else {
+			for(int member=0; member<members; member++) {
+				Level finest = hierarchies[member].levels.get(0);
+				for(int i=0; i<finest.A.rows; i++) {
+					finest.A.values[finest.diagonalPosition[i]] = mainDiagonal[i*members+member+1]+dis[i*members+member+1];
+				}
+			}
+		}
+		
+	}
+	
+	
+	
+	@Override
+	public void apply(double[] r, double[] z) {
+		
+		for(int member=0; member<members; member++) {
+			Level finest = hierarchies[member].levels.get(0);
+			for(int i=0; i<finest.A.rows; i++) {
+				finest.b[i] = r[i*members+member+1];
+			}
+			cycle(hierarchies[member], 0);
+			for(int i=0; i<finest.A.rows; i++) {
+				z[i*members+member+1] = finest.x[i];
+			}
+		}
+		
+	}
+	
+	
+	
+	private void cycle(Hierarchy hierarchy, int level) {
+		
+		Level current = hierarchy.levels.get(level);
+		
+		if(level==hierarchy.levels.size()-1) {
+			coarseSolve(hierarchy.coarseFactor, current);
+			return;
+		}
+		
+		Level next = hierarchy.levels.get(level+1);
+		Arrays.fill(current.x, 0.0);
+		forwardGaussSeidel(current);
+		current.A.residual(current.b, current.x, current.r);
+		current.R.multiply(current.r, next.b);
+		cycle(hierarchy, level+1);
+		current.P.multiplyAdd(next.x, current.x);
+		backwardGaussSeidel(current);
+		
+	}
+	
+	
+	
+	private static void forwardGaussSeidel(Level level) {
+		
+		SparseMatrix A = level.A;
+		for(int i=0; i<A.rows; i++) {
+			double sum = level.b[i];
+			for(int entry=A.rowOffset[i]; entry<A.rowOffset[i+1]; entry++) {
+				if(A.column[entry]!=i) {
+					sum -= A.values[entry]*level.x[A.column[entry]];
+				}
+			}
+			double diagonal = A.values[level.diagonalPosition[i]];
+			if(diagonal>0.0) {
+				level.x[i] = sum/diagonal;
+			}
+		}
+		
+	}
+	
+	
+	
+	private static void backwardGaussSeidel(Level level) {
+		
+		SparseMatrix A = level.A;
+		for(int i=A.rows-1; i>=0; i--) {
+			double sum = level.b[i];
+			for(int entry=A.rowOffset[i]; entry<A.rowOffset[i+1]; entry++) {
+				if(A.column[entry]!=i) {
+					sum -= A.values[entry]*level.x[A.column[entry]];
+				}
+			}
+			double diagonal = A.values[level.diagonalPosition[i]];
+			if(diagonal>0.0) {
+				level.x[i] = sum/diagonal;
+			}
+		}
+		
+	}
+	
+	
+	
+	private static void coarseSolve(double[] coarseFactor, Level level) {
+		
+		int n = level.A.rows;
+		
+		if(coarseFactor == null) {
+			Arrays.fill(level.x, 0.0);
+			forwardGaussSeidel(level);
+			backwardGaussSeidel(level);
+			return;
+		}
+		
+		/*
+		 * L y = b, L^T x = y. Null pivots, left by a singular matrix, give a null component.
+		 */
+		for(int i=0; i<n; i++) {
+			double sum = level.b[i];
+			for(int j=0; j<i; j++) {
+				sum -= coarseFactor[i*n+j]*level.x[j];
+			}
+			level.x[i] = coarseFactor[i*n+i]==0.0 ? 0.0 : sum/coarseFactor[i*n+i];
+		}
+		for(int i=n-1; i>=0; i--) {
+			double sum = level.x[i];
+			for(int j=i+1; j<n; j++) {
+				sum -= coarseFactor[j*n+i]*level.x[j];
+			}
+			level.x[i] = coarseFactor[i*n+i]==0.0 ? 0.0 : sum/coarseFactor[i*n+i];
+		}
+		
+	}
+	
+	
+	
+	private static void buildHierarchy(Hierarchy hierarchy, SparseMatrix fine) {
+		
+		List<Level> levels = hierarchy.levels;
+		levels.clear();
+		levels.add(new Level(fine));
+		
+		double threshold = STRENGTH_THRESHOLD;
+		while(levels.size()<MAX_LEVELS && levels.get(levels.size()-1).A.rows>COARSEST_SIZE) {
+			
+			Level current = levels.get(levels.size()-1);
+			SparseMatrix A = current.A;
+			
+			int[] aggregate = new int[A.rows];
+			int aggregateNumber = aggregate(A, current.diagonalPosition, threshold, aggregate);
+			if(aggregateNumber==0 || aggregateNumber==A.rows) {
+				break;
+			}
+			
+			current.P = smoothedProlongator(A, current.diagonalPosition, aggregate, aggregateNumber);
+			current.R = current.P.transpose();
+			levels.add(new Level(current.R.multiply(A.multiply(current.P))));
+			threshold *= 0.5;
+			
+		}
+		
+		hierarchy.coarseFactor = factorizeCoarsest(levels.get(levels.size()-1));
+		
+	}
+	
+	
+	
+	/*
+	 * Matrix of the unknowns member+1, member+1+members ... of the member, stored 0-based with the diagonal as first entry of each row.
+	 * The members are not coupled, so the columns of a row belong to the same member.
+	 */
+	private SparseMatrix fineMatrix(double[] dis, double[] mainDiagonal, int member) {
+		
+		final int[] rowOffset = matrix.getRowOffset();
+		final int[] column = matrix.getColumn();
+		final double[] values = matrix.getValues();
+		
+		int n = (elementNumber-1)/members;
+		int[] fineOffset = new int[n+1];
+		for(int i=0; i<n; i++) {
+			int row = i*members+member+1;
+			fineOffset[i+1] = fineOffset[i] + 1 + rowOffset[row+1]-rowOffset[row];
+		}
+		int[] fineColumn = new int[fineOffset[n]];
+		double[] fineValues = new double[fineOffset[n]];
+		for(int i=0; i<n; i++) {
+			int row = i*members+member+1;
+			int position = fineOffset[i];
+			fineColumn[position] = i;
+			fineValues[position] = mainDiagonal[row]+dis[row];
+			position++;
+			for(int entry=rowOffset[row]; entry<rowOffset[row+1]; entry++) {
+				fineColumn[position] = (column[entry]-1)/members;
+				fineValues[position] = values[entry];
+				position++;
+			}
+		}
+		
+		return new SparseMatrix(n, n, fineOffset, fineColumn, fineValues);
+		
+	}
+	
+	
+	
+	/*
+	 * Greedy aggregation on the graph of the strong connections |a_ij| >= threshold*sqrt(a_ii a_jj):
+	 * 1) a node whose strong neighbours are all free forms an aggregate with them;
+	 * 2) the remaining nodes join the aggregate of a strong neighbour built in 1);
+	 * 3) the nodes still free form aggregates with their free strong neighbours.
+	 */
+	private static int aggregate(SparseMatrix A, int[] diagonalPosition, double threshold, int[] aggregate) {
+		
+		Arrays.fill(aggregate, -1);
+		int aggregateNumber = 0;
+		
+		for(int i=0; i<A.rows; i++) {
+			if(aggregate[i]!=-1) {
+				continue;
+			}
+			boolean free = true;
+			for(int entry=A.rowOffset[i]; entry<A.rowOffset[i+1] && free; entry++) {
+				if(isStrong(A, diagonalPosition, threshold, i, entry) && aggregate[A.column[entry]]!=-1) {
+					free = false;
+				}
+			}
+			if(free) {
+				aggregate[i] = aggregateNumber;
+				for(int entry=A.rowOffset[i]; entry<A.rowOffset[i+1]; entry++) {
+					if(isStrong(A, diagonalPosition, threshold, i, entry)) {
+						aggregate[A.column[entry]] = aggregateNumber;
+					}
+				}
+				aggregateNumber++;
+			}
+		}
+		
+		int[] firstPass = aggregate.clone();
+		for(int i=0; i<A.rows; i++) {
+			if(aggregate[i]!=-1) {
+				continue;
+			}
+			for(int entry=A.rowOffset[i]; entry<A.rowOffset[i+1]; entry++) {
+				if(isStrong(A, diagonalPosition, threshold, i, entry) && firstPass[A.column[entry]]!=-1) {
+					aggregate[i] = firstPass[A.column[entry]];
+					break;
+				}
+			}
+		}
+		
+		for(int i=0; i<A.rows; i++) {
+			if(aggregate[i]!=-1) {
+				continue;
+			}
+			aggregate[i] = aggregateNumber;
+			for(int entry=A.rowOffset[i]; entry<A.rowOffset[i+1]; entry++) {
+				if(isStrong(A, diagonalPosition, threshold, i, entry) && aggregate[A.column[entry]]==-1) {
+					aggregate[A.column[entry]] = aggregateNumber;
+				}
+			}
+			aggregateNumber++;
+		}
+		
+		return aggregateNumber;
+		
+	}
+	
+	
+	
+	private static boolean isStrong(SparseMatrix A, int[] diagonalPosition, double threshold, int i, int entry) {
+		
+		int j = A.column[entry];
+		if(j==i) {
+			return false;
+		}
+		double product = A.values[diagonalPosition[i]]*A.values[diagonalPosition[j]];
+		return Math.abs(A.values[entry]) >= threshold*Math.sqrt(Math.abs(product));
+		
+	}
+	
+	
+	
+	/*
+	 * P = (I - omega D^-1 A) P_tentative, with the piecewise constant tentative prolongator
+	 * and omega = 4/(3 rho), rho being the Gershgorin bound of the spectral radius of D^-1 A.
+	 */
+	private static SparseMatrix smoothedProlongator(SparseMatrix A, int[] diagonalPosition, int[] aggregate, int aggregateNumber) {
+		
+		int[] size = new int[aggregateNumber];
+		for(int i=0; i<A.rows; i++) {
+			size[aggregate[i]]++;
+		}
+		int[] tentativeOffset = new int[A.rows+1];
+		int[] tentativeColumn = new int[A.rows];
+		double[] tentativeValues = new double[A.rows];
+		for(int i=0; i<A.rows; i++) {
+			tentativeOffset[i+1] = i+1;
+			tentativeColumn[i] = aggregate[i];
+			tentativeValues[i] = 1.0/Math.sqrt(size[aggregate[i]]);
+		}
+		SparseMatrix tentative = new SparseMatrix(A.rows, aggregateNumber, tentativeOffset, tentativeColumn, tentativeValues);
+		
+		double rho = 0.0;
+		for(int i=0; i<A.rows; i++) {
+			double diagonal = A.values[diagonalPosition[i]];
+			if(diagonal>0.0) {
+				double sum = 0.0;
+				for(int entry=A.rowOffset[i]; entry<A.rowOffset[i+1]; entry++) {
+					sum += Math.abs(A.values[entry]);
+				}
+				rho = Math.max(rho, sum/diagonal);
+			}
+		}
+		double omega = rho>0.0 ? 4.0/(3.0*rho) : 0.0;
+		
+		double[] smootherValues = new double[A.values.length];
+		for(int i=0; i<A.rows; i++) {
+			double diagonal = A.values[diagonalPosition[i]];
+			for(int entry=A.rowOffset[i]; entry<A.rowOffset[i+1]; entry++) {
+				smootherValues[entry] = (A.column[entry]==i ? 1.0 : 0.0) - (diagonal>0.0 ? omega*A.values[entry]/diagonal : 0.0);
+			}
+		}
+		SparseMatrix smoother = new SparseMatrix(A.rows, A.columns, A.rowOffset, A.column, smootherValues);
+		
+		return smoother.multiply(tentative);
+		
+	}
+	
+	
+	
+	private static double[] factorizeCoarsest(Level level) {
+		
+		int n = level.A.rows;
+		if(n>DENSE_SIZE) {
+			return null;
+		}
+		
+		double[] coarseFactor = new double[n*n];
+		double maxDiagonal = 0.0;
+		for(int i=0; i<n; i++) {
+			for(int entry=level.A.rowOffset[i]; entry<level.A.rowOffset[i+1]; entry++) {
+				coarseFactor[i*n+level.A.column[entry]] += level.A.values[entry];
+			}
+			maxDiagonal = Math.max(maxDiagonal, coarseFactor[i*n+i]);
+		}
+		
+		for(int j=0; j<n; j++) {
+			double pivot = coarseFactor[j*n+j];
+			for(int k=0; k<j; k++) {
+				pivot -= coarseFactor[j*n+k]*coarseFactor[j*n+k];
+			}
+			if(pivot <= 1e-12*maxDiagonal) {
+				coarseFactor[j*n+j] = 0.0;
+				for(int i=j+1; i<n; i++) {
+					coarseFactor[i*n+j] = 0.0;
+				}
+				continue;
+			}
+			double diagonal = Math.sqrt(pivot);
+			coarseFactor[j*n+j] = diagonal;
+			for(int i=j+1; i<n; i++) {
+				double sum = coarseFactor[i*n+j];
+				for(int k=0; k<j; k++) {
+					sum -= coarseFactor[i*n+k]*coarseFactor[j*n+k];
+				}
+				coarseFactor[i*n+j] = sum/diagonal;
+			}
+		}
+		
+		return coarseFactor;
+		
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2021 Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.preconditioner;
+
+import java.util.Arrays;
+
+/**
+ * Sparse matrix in compressed sparse row format with 0-based indices, used to build the
+ * multigrid hierarchy. The entries of the row i are rowOffset[i] ... rowOffset[i+1]-1.
+ */
+final class SparseMatrix {
+	
+	final int rows;
+	final int columns;
+	final int[] rowOffset;
+	final int[] column;
+	final double[] values;
+	
+	
+	
+	SparseMatrix(int rows, int columns, int[] rowOffset, int[] column, double[] values) {
+		
+		this.rows = rows;
+		this.columns = columns;
+		this.rowOffset = rowOffset;
+		this.column = column;
+		this.values = values;
+		
+	}
+	
+	
+	
+	/**
+	 * y = A x
+	 */
+	void multiply(double[] x, double[] y) {
+		
+		for(int i=0; i<rows; i++) {
+			double sum = 0.0;
+			for(int entry=rowOffset[i]; entry<rowOffset[i+1]; entry++) {
+				sum += values[entry]*x[column[entry]];
+			}
+			y[i] = sum;
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * y = y + A x
+	 */
+	void multiplyAdd(double[] x, double[] y) {
+		
+		for(int i=0; i<rows; i++) {
+			double sum = y[i];
+			for(int entry=rowOffset[i]; entry<rowOffset[i+1]; entry++) {
+				sum += values[entry]*x[column[entry]];
+			}
+			y[i] = sum;
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * r = b - A x
+	 */
+	void residual(double[] b, double[] x, double[] r) {
+		
+		for(int i=0; i<rows; i++) {
+			double sum = b[i];
+			for(int entry=rowOffset[i]; entry<rowOffset[i+1]; entry++) {
+				sum -= values[entry]*x[column[entry]];
+			}
+			r[i] = sum;
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * @return position of the diagonal entry of each row, -1 if it is not stored
+	 */
+	int[] diagonalPosition() {
+		
+		int[] position = new int[rows];
+		for(int i=0; i<rows; i++) {
+			position[i] = -1;
+			for(int entry=rowOffset[i]; entry<rowOffset[i+1]; entry++) {
+				if(column[entry]==i) {
+					position[i] = entry;
+				}
+			}
+		}
+		return position;
+		
+	}
+	
+	
+	
+	SparseMatrix transpose() {
+		
+		int[] transposeOffset = new int[columns+1];
+		for(int entry=0; entry<rowOffset[rows]; entry++) {
+			transposeOffset[column[entry]+1]++;
+		}
+		for(int j=0; j<columns; j++) {
+			transposeOffset[j+1] += transposeOffset[j];
+		}
+		
+		int[] next = new int[columns];
+		System.arraycopy(transposeOffset, 0, next, 0, columns);
+		int[] transposeColumn = new int[rowOffset[rows]];
+		double[] transposeValues = new double[rowOffset[rows]];
+		for(int i=0; i<rows; i++) {
+			for(int entry=rowOffset[i]; entry<rowOffset[i+1]; entry++) {
+				int position = next[column[entry]]++;
+				transposeColumn[position] = i;
+				transposeValues[position] = values[entry];
+			}
+		}
+		
+		return new SparseMatrix(columns, rows, transposeOffset, transposeColumn, transposeValues);
+		
+	}
+	
+	
+	
+	/**
+	 * @return the product this * B
+	 */
+	SparseMatrix multiply(SparseMatrix B) {
+		
+		int[] marker = new int[B.columns];
+		Arrays.fill(marker, -1);
+		double[] accumulator = new double[B.columns];
+		int[] productOffset = new int[rows+1];
+		
+		/*
+		 * Symbolic product, then numerical product
+		 */
+		for(int i=0; i<rows; i++) {
+			int count = 0;
+			for(int entry=rowOffset[i]; entry<rowOffset[i+1]; entry++) {
+				int k = column[entry];
+				for(int entryB=B.rowOffset[k]; entryB<B.rowOffset[k+1]; entryB++) {
+					if(marker[B.column[entryB]] != i) {
+						marker[B.column[entryB]] = i;
+						count++;
+					}
+				}
+			}
+			productOffset[i+1] = productOffset[i]+count;
+		}
+		
+		int[] productColumn = new int[productOffset[rows]];
+		double[] productValues = new double[productOffset[rows]];
+		Arrays.fill(marker, -1);
+		for(int i=0; i<rows; i++) {
+			int position = productOffset[i];
+			for(int entry=rowOffset[i]; entry<rowOffset[i+1]; entry++) {
+				int k = column[entry];
+				for(int entryB=B.rowOffset[k]; entryB<B.rowOffset[k+1]; entryB++) {
+					int j = B.column[entryB];
+					if(marker[j] != i) {
+						marker[j] = i;
+						productColumn[position++] = j;
+						accumulator[j] = 0.0;
+					}
+					accumulator[j] += values[entry]*B.values[entryB];
+				}
+			}
+			for(int entry=productOffset[i]; entry<productOffset[i+1]; entry++) {
+				productValues[entry] = accumulator[productColumn[entry]];
+			}
+		}
+		
+		return new SparseMatrix(rows, B.columns, productOffset, productColumn, productValues);
+		
+	}
+
+}
@@ -25,22 +25,31 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 
 //import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
 
 import it.geoframe.blogspot.closureequation.closureequation.Parameters;
 import it.geoframe.blogspot.closureequation.equationstate.EquationState;
-import it.geoframe.blogspot.numerical.matop.Matop;
 import it.geoframe.blogspot.whetgeo2d.data.ComputeQuantitiesRichards;
 import it.geoframe.blogspot.whetgeo2d.data.Geometry;
+import it.geoframe.blogspot.whetgeo2d.data.MeshReordering;
+import it.geoframe.blogspot.whetgeo2d.data.MeshReplication;
 import it.geoframe.blogspot.whetgeo2d.data.ProblemQuantities;
+import it.geoframe.blogspot.whetgeo2d.data.SimulationContext;
 import it.geoframe.blogspot.whetgeo2d.data.Topology;
-import it.geoframe.blogspot.whetgeo2d.matop.Matop2DRichards;
+import it.geoframe.blogspot.whetgeo2d.matop.Matop2D;
+import it.geoframe.blogspot.whetgeo2d.matop.MatopFactory;
+import it.geoframe.blogspot.whetgeo2d.newtonalgorithm.InitialGuessPredictor;
 import it.geoframe.blogspot.whetgeo2d.pdefinitevolume.Richards2DFiniteVolumeSolver;
+import it.geoframe.blogspot.whetgeo2d.preconditioner.Preconditioner;
+import it.geoframe.blogspot.whetgeo2d.preconditioner.PreconditionerFactory;
+import it.geoframe.blogspot.whetgeo2d.telemetry.SolverTelemetry;
 import oms3.annotations.In;
 import oms3.annotations.Out;
 import oms3.annotations.Unit;
 import oms3.annotations.Execute;
+import oms3.annotations.Finalize;
 import oms3.annotations.Description;
 import oms3.annotations.Documentation;
 import oms3.annotations.Author;
@@ -133,6 +142,12 @@ public class RichardsSolver2DMain {
 	@Unit("-")
 	public List<Integer> elementParameterID;
 
+	@Description("Number of members of an ensemble of simulations that differ only in the soil parameters, advanced together on the same mesh."
+			+ " The soil parameter arrays hold the parameter sets of the members one after the other, and elementParameterID refers to the ones of the first member."
+			+ " outputToBuffer contains the lists of each member one after the other")
+	@In
+	public int ensembleMembers = 1;
+
 	/*
 	 * MODELS
 	 * - closure equation
@@ -145,7 +160,9 @@ public class RichardsSolver2DMain {
 	public String[] typeClosureEquation;
 
 	@Description("It is possibile to chose between 3 different models to compute "
-			+ "the soil hydraulic properties: Van Genuchten; Brooks and Corey; Kosugi unimodal")
+			+ "the soil hydraulic properties: Van Genuchten; Brooks and Corey; Kosugi unimodal. "
+			+ "The suffix Tabulated, optionally followed by the tolerance (e.g. Van Genuchten Tabulated 1e-8), "
+			+ "evaluates the water retention curve from a table built for each parameter ID")
 	@In 
 	public String[] typeEquationState;
 
@@ -168,6 +185,87 @@ public class RichardsSolver2DMain {
 	@In
 	public String interfaceHydraulicConductivityModel;
 
+	@Description("Operator used in the conjugate gradient:"
+			+ " 2DRichards matrix-free operator"
+			+ " 2DRichardsCSR matrix assembled once per Picard iteration in CSR format"
+			+ " 2DRichardsParallel matrix-free operator with edge colouring, running on numberOfThreads threads")
+	@In
+	public String typeMatop = "2DRichards";
+
+	@Description("Nested Newton algorithm:"
+			+ " NestedNewtonCG the one of the numerical library, working on List<Double>"
+			+ " NestedNewtonPCG the one of WHETGEO-2D, working on primitive arrays with the dot products and vector updates on numberOfThreads threads."
+			+ " NestedNewtonPCG is always used with a preconditioner other than Jacobi")
+	@In
+	public String typeNestedNewton = "NestedNewtonCG";
+
+	@Description("Tolerances of the inner Newton iterations and of the conjugate gradient:"
+			+ " None the fixed tolerances newtonTolerance and cgTolerance"
+			+ " EisenstatWalker1, EisenstatWalker2 inexact Newton method, the inner iterations stop at a forcing term times the outer residual"
+			+ " and the conjugate gradient tolerance is relaxed accordingly, never below cgTolerance. The forcing term is the choice 1 or 2"
+			+ " of Eisenstat and Walker (1996). The outer iterations still stop at newtonTolerance."
+			+ " The forcing term requires NestedNewtonPCG, that is then always used")
+	@In
+	public String typeForcingTerm = "None";
+
+	@Description("Upper bound of the forcing term of the inexact Newton method")
+	@In
+	public double maximumForcingTerm = 0.9;
+
+	@Description("Preconditioner of the conjugate gradient:"
+			+ " Jacobi diagonal preconditioner"
+			+ " SSOR symmetric Gauss-Seidel"
+			+ " IC0 incomplete Cholesky factorization with no fill-in"
+			+ " AMG smoothed aggregation algebraic multigrid, set up once per Picard iteration"
+			+ " AdditiveSchwarz IC0 on overlapping subdomains of a partition of the mesh, solved in parallel and summed")
+	@In
+	public String typePreconditioner = "Jacobi";
+
+	@Description("Number of subdomains of the additive Schwarz preconditioner, 0 for one per thread")
+	@In
+	public int subdomainNumber = 0;
+
+	@Description("Number of layers of neighbouring elements added to each subdomain of the additive Schwarz preconditioner")
+	@In
+	public int subdomainOverlap = 1;
+
+	@Description("Renumbering of the elements and edges of the mesh, to improve the locality of the memory accesses:"
+			+ " None the numbering of the mesh inputs"
+			+ " RCM reverse Cuthill-McKee ordering of the elements"
+			+ " Hilbert ordering of the element centroids along a Hilbert curve."
+			+ " The outputs are always in the numbering of the mesh inputs")
+	@In
+	public String typeMeshReordering = "None";
+
+	@Description("true to recompute the hydraulic conductivity only where the water suction changed by more than conductivityUpdateTolerance"
+			+ " since its last evaluation, and the interface conductivity and the transmissibility only on the edges of these elements")
+	@In
+	public boolean incrementalConductivity = false;
+
+	@Description("Change of water suction below which the hydraulic conductivity is not recomputed by the incremental update."
+			+ " With 0 the results are the same as the ones of the full update")
+	@In
+	@Unit ("m")
+	public double conductivityUpdateTolerance = 0.0;
+
+	@Description("Maximum error of log(K) of the tables of the hydraulic conductivity built for each parameter ID,"
+			+ " about the relative error of K. With 0 the hydraulic conductivity is computed by the exact models")
+	@In
+	public double conductivityTableTolerance = 0.0;
+
+	@Description("Number of threads used by the parallel parts of the solver")
+	@In
+	public int numberOfThreads = 1;
+
+	@Description("true to count the iterations and to time the phases of the solver, see the outputs outNewtonIterations,"
+			+ " outInnerNewtonIterations, outCGIterations, outNewtonResidual and outPhaseTimes")
+	@In
+	public boolean telemetry = false;
+
+	@Description("CSV file with the iterations and the phase times of each time step, written only if telemetry is true")
+	@In
+	public String telemetryFileName;
+
 
 	/*
 	 * INITIAL CONDITION
@@ -263,6 +361,50 @@ public class RichardsSolver2DMain {
 	@In
 	public int picardIteration=1;
 
+	@Description("Initial guess of the Newton iterations:"
+			+ " Previous the water suctions of the previous time step"
+			+ " Linear linear extrapolation in time of the last two time steps"
+			+ " Quadratic quadratic extrapolation in time of the last three time steps."
+			+ " The extrapolation falls back to the previous water suction where it is not reliable."
+			+ " NestedNewtonPCG starts from the extrapolation as it is and, if it does not converge, the time step is solved again from the previous water suctions;"
+			+ " NestedNewtonCG limits it with the initial guess of the equation state as the previous water suctions")
+	@In
+	public String typeInitialGuess = "Previous";
+
+	/*
+	 * ADAPTIVE TIME STEP
+	 */
+	@Description("If true the time step is adapted to the number of Newton iterations, the volume error and the largest change of water suction,"
+			+ " starting from timeDelta. A time step whose Newton iterations do not converge within MAXITER_NEWT is rejected and repeated with half the time step."
+			+ " The nested Newton algorithm NestedNewtonPCG is used since it reports its convergence")
+	@In
+	public boolean adaptiveTimeStep = false;
+
+	@Description("Minimum time step of the adaptive time stepping")
+	@In
+	@Unit ("s")
+	public double timeDeltaMin = 1.0;
+
+	@Description("Maximum time step of the adaptive time stepping")
+	@In
+	@Unit ("s")
+	public double timeDeltaMax = Double.MAX_VALUE;
+
+	@Description("Number of outer Newton iterations per time step targeted by the adaptive time stepping."
+			+ " With the inexact Newton method, see typeForcingTerm, the target is increased by half")
+	@In
+	public int targetNewtonIterations = 5;
+
+	@Description("Largest change of water suction per time step targeted by the adaptive time stepping")
+	@In
+	@Unit ("m")
+	public double targetWaterSuctionChange = 0.5;
+
+	@Description("Largest absolute volume error per time step targeted by the adaptive time stepping")
+	@In
+	@Unit ("m2")
+	public double targetErrorVolume = 1e-6;
+
 	/*
 	 *  BOUNDARY CONDITIONS
 	 */
@@ -305,6 +447,37 @@ public class RichardsSolver2DMain {
 	@Out
 	public boolean doProcessBuffer;
 
+	@Description("Time steps accepted during the last time amount tTimeStep")
+	@Out
+	@Unit ("s")
+	public ArrayList<Double> outTimeDeltas = new ArrayList<Double>();
+
+	@Description("Number of time steps rejected during the last time amount tTimeStep")
+	@Out
+	public int outRejectedTimeSteps;
+
+	@Description("Outer Newton iterations during the last time amount tTimeStep, only with telemetry and NestedNewtonPCG")
+	@Out
+	public int outNewtonIterations;
+
+	@Description("Inner Newton iterations during the last time amount tTimeStep, only with telemetry and NestedNewtonPCG")
+	@Out
+	public int outInnerNewtonIterations;
+
+	@Description("Conjugate gradient iterations during the last time amount tTimeStep, only with telemetry and NestedNewtonPCG")
+	@Out
+	public int outCGIterations;
+
+	@Description("Norm of the last outer Newton residual of the last time step, only with telemetry and NestedNewtonPCG")
+	@Out
+	public double outNewtonResidual;
+
+	@Description("Time of the phases of the solver during the last time amount tTimeStep, only with telemetry:"
+			+ " thetas, conductivity, assembly, newton (cg included), cg, fluxes")
+	@Out
+	@Unit ("s")
+	public ArrayList<Double> outPhaseTimes;
+
 	//////////////////////////////////////////
 	//////////////////////////////////////////
 
@@ -332,8 +505,28 @@ public class RichardsSolver2DMain {
 	private Geometry geometry;
 	private Topology topology;
 	private Parameters parameters;
+	private SimulationContext context;
 	private ComputeQuantitiesRichards computeQuantitiesRichards;
-	private Matop matop2DRichards;
+	private Matop2D matop2DRichards;
+	private ForkJoinPool pool;
+
+	/*
+	 * Adaptive time step: the step proposed for the next time step, kept across the calls of solve,
+	 * and the water suctions at the beginning of the time step, restored when the time step is rejected
+	 */
+	private static final double MAX_TIME_DELTA_GROWTH = 2.0;
+	private static final double MIN_TIME_DELTA_REDUCTION = 0.5;
+	private static final double INEXACT_NEWTON_ITERATION_FACTOR = 1.5;
+	private double proposedTimeDelta;
+	private double[] waterSuctionsSnapshot;
+
+	private InitialGuessPredictor initialGuessPredictor;
+
+	private MeshReordering meshReordering;
+
+	private MeshReplication meshReplication;
+
+	private SolverTelemetry solverTelemetry;
 
 
 	@Execute
@@ -342,13 +535,67 @@ public class RichardsSolver2DMain {
 		if (step==0){
 
 
-			variables = ProblemQuantities.getInstance(icWaterSuction, temperature, elementEquationStateID, elementParameterID, elementEdgesSet.size(), edgeRightNeighbour.size());
-			topology = Topology.getInstance(edgeLeftNeighbour, edgeRightNeighbour, edgesBoundaryBCType, edgesBoundaryBCValue, elementEdgesSet);
-			geometry = Geometry.getInstance(elementsArea, edgesLenght, delta_j, edgeNormalVector, elementsCentroidsCoordinates, edgesCentroidsCoordinates);
+			meshReordering = MeshReordering.getInstance(typeMeshReordering, edgeLeftNeighbour, edgeRightNeighbour, edgesBoundaryBCType, edgesBoundaryBCValue, elementEdgesSet,
+					elementsArea, edgesLenght, delta_j, edgeNormalVector, elementsCentroidsCoordinates, edgesCentroidsCoordinates);
+
+			if(ensembleMembers > 1) {
+				if(ks.length % ensembleMembers != 0) {
+					throw new IllegalArgumentException("ERROR RichardsSolver2DMain: the soil parameters must have the same number of sets for each of the "
+							+ ensembleMembers + " ensemble members");
+				}
+				if(meshReordering == null) {
+					meshReplication = new MeshReplication(ensembleMembers, edgeLeftNeighbour, edgeRightNeighbour, edgesBoundaryBCType, edgesBoundaryBCValue, elementEdgesSet,
+							elementsArea, edgesLenght, delta_j, edgeNormalVector, elementsCentroidsCoordinates, edgesCentroidsCoordinates);
+				} else {
+					meshReplication = new MeshReplication(ensembleMembers, meshReordering.edgeLeftNeighbour, meshReordering.edgeRightNeighbour, meshReordering.edgesBoundaryBCType,
+							meshReordering.edgesBoundaryBCValue, meshReordering.elementEdgesSet, meshReordering.elementsArea, meshReordering.edgesLenght, meshReordering.delta_j,
+							meshReordering.edgeNormalVector, meshReordering.elementsCentroidsCoordinates, meshReordering.edgesCentroidsCoordinates);
+				}
+			}
+
+			List<Integer> equationStateID = elementEquationStateID;
+			List<Integer> parameterID = elementParameterID;
+			if(meshReplication != null) {
+				equationStateID = elementsToSolver(elementEquationStateID);
+				parameterID = meshReplication.replicateParameterID(meshReordering == null ? elementParameterID : meshReordering.permuteElements(elementParameterID),
+						ks.length/ensembleMembers);
+				variables = new ProblemQuantities(elementsToSolver(icWaterSuction), elementsToSolver(temperature), equationStateID, parameterID,
+						meshReplication.elementEdgesSet.size(), meshReplication.edgeRightNeighbour.size());
+				topology = Topology.getInstance(meshReplication.edgeLeftNeighbour, meshReplication.edgeRightNeighbour, meshReplication.edgesBoundaryBCType, meshReplication.edgesBoundaryBCValue,
+						meshReplication.elementEdgesSet);
+				geometry = Geometry.getInstance(meshReplication.elementsArea, meshReplication.edgesLenght, meshReplication.delta_j, meshReplication.edgeNormalVector,
+						meshReplication.elementsCentroidsCoordinates, meshReplication.edgesCentroidsCoordinates);
+			} else if(meshReordering == null) {
+				variables = new ProblemQuantities(icWaterSuction, temperature, equationStateID, parameterID, elementEdgesSet.size(), edgeRightNeighbour.size());
+				topology = Topology.getInstance(edgeLeftNeighbour, edgeRightNeighbour, edgesBoundaryBCType, edgesBoundaryBCValue, elementEdgesSet);
+				geometry = Geometry.getInstance(elementsArea, edgesLenght, delta_j, edgeNormalVector, elementsCentroidsCoordinates, edgesCentroidsCoordinates);
+			} else {
+				equationStateID = meshReordering.permuteElements(elementEquationStateID);
+				parameterID = meshReordering.permuteElements(elementParameterID);
+				variables = new ProblemQuantities(meshReordering.permuteElements(icWaterSuction), meshReordering.permuteElements(temperature), equationStateID, parameterID,
+						elementEdgesSet.size(), edgeRightNeighbour.size());
+				topology = Topology.getInstance(meshReordering.edgeLeftNeighbour, meshReordering.edgeRightNeighbour, meshReordering.edgesBoundaryBCType, meshReordering.edgesBoundaryBCValue,
+						meshReordering.elementEdgesSet);
+				geometry = Geometry.getInstance(meshReordering.elementsArea, meshReordering.edgesLenght, meshReordering.delta_j, meshReordering.edgeNormalVector,
+						meshReordering.elementsCentroidsCoordinates, meshReordering.edgesCentroidsCoordinates);
+			}
+
+			parameters = SimulationContext.createParameters(referenceTemperatureSWRC, beta0, thetaS, thetaR, par1SWRC, par2SWRC, par3SWRC, par4SWRC, par5SWRC, ks, alphaSpecificStorage, betaSpecificStorage);
+			
+			context = new SimulationContext(topology, geometry, variables, parameters, ensembleMembers);
 
-			parameters = Parameters.getInstance(referenceTemperatureSWRC, beta0, thetaS, thetaR, par1SWRC, par2SWRC, par3SWRC, par4SWRC, par5SWRC, ks, alphaSpecificStorage, betaSpecificStorage);
+			if(numberOfThreads > 1) {
+				pool = new ForkJoinPool(numberOfThreads);
+			}
+
+			computeQuantitiesRichards = new ComputeQuantitiesRichards(context, typeClosureEquation, typeEquationState, typeUHCModel, typeUHCTemperatureModel, interfaceHydraulicConductivityModel,
+					pool);
 
-			computeQuantitiesRichards = new ComputeQuantitiesRichards(typeClosureEquation, typeEquationState, typeUHCModel, typeUHCTemperatureModel, interfaceHydraulicConductivityModel);
+			computeQuantitiesRichards.setIncrementalConductivity(incrementalConductivity, conductivityUpdateTolerance);
+			
+			if(conductivityTableTolerance > 0.0) {
+				computeQuantitiesRichards.setConductivityTableTolerance(conductivityTableTolerance);
+			}
 
 			computeQuantitiesRichards.computeXStar();
 
@@ -358,10 +605,35 @@ public class RichardsSolver2DMain {
 
 			List<EquationState> equationState = computeQuantitiesRichards.getRichardsStateEquation();
 
-			matop2DRichards = new Matop2DRichards();
+			matop2DRichards = new MatopFactory().createMatop(typeMatop, context, pool);
 
-			richardsSolver = new Richards2DFiniteVolumeSolver(newtonTolerance, cgTolerance, MAXITER_NEWT, equationState, matop2DRichards,
-					variables.elementParameterID, variables.elementEquationStateID);
+			Preconditioner preconditioner = null;
+			if(!typePreconditioner.equalsIgnoreCase("Jacobi")) {
+				preconditioner = new PreconditionerFactory().createPreconditioner(typePreconditioner, context, matop2DRichards, pool,
+						subdomainNumber > 0 ? subdomainNumber : numberOfThreads, subdomainOverlap);
+			}
+
+			richardsSolver = new Richards2DFiniteVolumeSolver(context, newtonTolerance, cgTolerance, MAXITER_NEWT, equationState, matop2DRichards,
+					parameterID, equationStateID, pool, adaptiveTimeStep || !typeForcingTerm.equalsIgnoreCase("None") ? "NestedNewtonPCG" : typeNestedNewton,
+					preconditioner);
+			richardsSolver.setForcingTerm(typeForcingTerm, maximumForcingTerm);
+
+			solverTelemetry = new SolverTelemetry(telemetry, telemetryFileName);
+			richardsSolver.setTelemetry(solverTelemetry);
+
+			proposedTimeDelta = Math.max(timeDeltaMin, Math.min(timeDelta, timeDeltaMax));
+			waterSuctionsSnapshot = new double[topology.elementNumber];
+
+			if(typeInitialGuess.equalsIgnoreCase("Linear")) {
+				initialGuessPredictor = new InitialGuessPredictor(topology.elementNumber, 1);
+			} else if(typeInitialGuess.equalsIgnoreCase("Quadratic")) {
+				initialGuessPredictor = new InitialGuessPredictor(topology.elementNumber, 2);
+			} else if(!typeInitialGuess.equalsIgnoreCase("Previous")) {
+				System.out.println("ERROR RichardsSolver2DMain: unknown initial guess " + typeInitialGuess);
+			}
+			if(initialGuessPredictor != null) {
+				initialGuessPredictor.accept(variables.waterSuctions, 0.0);
+			}
 
 
 		}
@@ -377,31 +649,43 @@ public class RichardsSolver2DMain {
 		outputToBuffer.clear();
 
 		double sumTimeDelta = 0;
+		outTimeDeltas.clear();
+		outRejectedTimeSteps = 0;
+		solverTelemetry.reset();
 
 
 		while(sumTimeDelta < tTimeStep) {
 
+			boolean lastTimeDelta = false;
+			if(adaptiveTimeStep) {
+				timeDelta = proposedTimeDelta;
+				System.arraycopy(variables.waterSuctions, 1, waterSuctionsSnapshot, 1, topology.elementNumber-1);
+			}
 			if(sumTimeDelta + timeDelta>tTimeStep) {
 				timeDelta = tTimeStep - sumTimeDelta;
+				lastTimeDelta = true;
 			}
-			sumTimeDelta = sumTimeDelta + timeDelta;
 
 			variables.timeDelta = timeDelta;
 
+			solverTelemetry.beginTimeStep();
+
 
 			/*
 			 * Compute water volumes
 			 */
+			long time = solverTelemetry.time();
 			computeQuantitiesRichards.computeThetas();
 
 
-			//						for(int element=1; element<topology.elementEdgesSet.size(); element++) {
+			//						for(int element=1; element<topology.elementNumber; element++) {
 			//							System.out.println(element + " psi " + variables.waterSuctions.get(element) + " theta " + variables.thetas.get(element));
 			//						}
 
 			computeQuantitiesRichards.computeWaterVolume();
+			solverTelemetry.stop(SolverTelemetry.THETAS, time);
 
-			//						for(int element=1; element<topology.elementEdgesSet.size(); element++) {
+			//						for(int element=1; element<topology.elementNumber; element++) {
 			//							System.out.println(element + " " + variables.volumes.get(element));
 			//						}
 
@@ -409,20 +693,30 @@ public class RichardsSolver2DMain {
 			/*
 			 * Solve PDE
 			 */
+			boolean converged = true;
+			int newtonIterations = 0;
 			for(int picard=0; picard<picardIteration; picard++) {
 
 				/*
 				 * Compute hydraulic conductivity
 				 * 
 				 */	
+				time = solverTelemetry.time();
 				computeQuantitiesRichards.computeHydraulicConductivity();
-//												for(int element=1; element<topology.elementEdgesSet.size(); element++) {
+//												for(int element=1; element<topology.elementNumber; element++) {
 //													System.out.println(element + " " + variables.kappas.get(element));
 //												}
 				
 				
 				computeQuantitiesRichards.computeInterfaceHydraulicConductivity();
-//												for(int edge=1; edge<topology.edgeRightNeighbour.size(); edge++) {
+				
+				computeQuantitiesRichards.computeTransmissibility();
+				solverTelemetry.stop(SolverTelemetry.CONDUCTIVITY, time);
+				
+				time = solverTelemetry.time();
+				matop2DRichards.assemble(computeQuantitiesRichards.getChangedEdges(), computeQuantitiesRichards.getChangedEdgeNumber());
+				solverTelemetry.stop(SolverTelemetry.ASSEMBLY, time);
+//												for(int edge=1; edge<topology.edgeNumber; edge++) {
 //													System.out.println("\t" + edge + " psi " + variables.kappasInterface.get(edge));
 //												}
 
@@ -431,26 +725,44 @@ public class RichardsSolver2DMain {
 				 * Solve PDE
 				 */
 				//				System.out.println("\n\n\n\t\tSOLVER");
-				variables.waterSuctions = richardsSolver.solve(timeDelta, inHMBoundaryCondition, variables.kappasInterface, variables.volumes, null,
-						variables.waterSuctions, variables.temperatures, variables.gravityGradient);
+				boolean predicted = picard == 0 && initialGuessPredictor != null && initialGuessPredictor.predict(variables.waterSuctions, timeDelta);
+				variables.waterSuctions = richardsSolver.solve(timeDelta, inHMBoundaryCondition, variables.kappasInterface, variables.transmissibility, variables.volumes, null,
+						variables.waterSuctions, variables.temperatures, variables.gravityGradient, predicted);
+				if(predicted && !richardsSolver.hasConverged()) {
+					System.arraycopy(initialGuessPredictor.getLastWaterSuctions(), 1, variables.waterSuctions, 1, topology.elementNumber-1);
+					variables.waterSuctions = richardsSolver.solve(timeDelta, inHMBoundaryCondition, variables.kappasInterface, variables.transmissibility, variables.volumes, null,
+							variables.waterSuctions, variables.temperatures, variables.gravityGradient);
+				}
+				converged = converged && richardsSolver.hasConverged();
+				newtonIterations += richardsSolver.getNewtonIterations();
 
 			} // close Picard iteration
 
-
 			/*
-			 * Compute 
-			 * - water volume and total water volume
-			 * - water content
+			 * Reject the time step: restart from the snapshot with half the time step
 			 */
-			computeQuantitiesRichards.computeWaterVolumeNew();
-			computeQuantitiesRichards.computeThetasNew();
-			computeQuantitiesRichards.computeSaturationDegreeNew();
+			if(adaptiveTimeStep && !converged && timeDelta > timeDeltaMin) {
+				System.arraycopy(waterSuctionsSnapshot, 1, variables.waterSuctions, 1, topology.elementNumber-1);
+				proposedTimeDelta = Math.max(timeDeltaMin, MIN_TIME_DELTA_REDUCTION*timeDelta);
+				outRejectedTimeSteps++;
+				solverTelemetry.endTimeStep(inCurrentDate, timeDelta, false, Double.NaN);
+				continue;
+			}
+			if(adaptiveTimeStep && !converged) {
+				System.out.println("WARNING RichardsSolver2DMain: Newton iterations did not converge with the minimum time step " + timeDelta + " s");
+			}
+
+			sumTimeDelta = lastTimeDelta ? tTimeStep : sumTimeDelta + timeDelta;
 
 
 			/*
-			 * Fluxes
+			 * Compute in a single sweep
+			 * - water volume and total water volume
+			 * - water content and saturation degree
+			 * - fluxes
 			 */
-			computeQuantitiesRichards.computeDarcyVelocities(inHMBoundaryCondition);
+			time = solverTelemetry.time();
+			computeQuantitiesRichards.computePostStep(inHMBoundaryCondition);
 			//			computeQuantitiesRichards.computeDarcyVelocitiesCapillary(KMAX);
 			//			computeQuantitiesRichards.computeDarcyVelocitiesGravity(KMAX);
 			//			computeQuantitiesRichards.computePoreVelocities(KMAX);
@@ -463,20 +775,44 @@ public class RichardsSolver2DMain {
 			 */
 			computeQuantitiesRichards.computeError(timeDelta);
 //			System.out.println("\n\n\tERROR VOLUME "+variables.errorVolume);
+			solverTelemetry.stop(SolverTelemetry.FLUXES, time);
+
+			solverTelemetry.endTimeStep(inCurrentDate, timeDelta, true, variables.errorVolume);
+
+			if(initialGuessPredictor != null) {
+				initialGuessPredictor.accept(variables.waterSuctions, timeDelta);
+			}
+
+			if(adaptiveTimeStep) {
+				outTimeDeltas.add(timeDelta);
+				proposeTimeDelta(newtonIterations, lastTimeDelta);
+			}
+
+		}
 
+
+		if(telemetry) {
+			outNewtonIterations = solverTelemetry.getNewtonIterations();
+			outInnerNewtonIterations = solverTelemetry.getInnerNewtonIterations();
+			outCGIterations = solverTelemetry.getCGIterations();
+			outNewtonResidual = solverTelemetry.getNewtonResidual();
+			outPhaseTimes = solverTelemetry.getPhaseTimes();
+			solverTelemetry.flush();
 		}
 
 
 		if(saveDate == 1) {
 
-			outputToBuffer.add((ArrayList<Double>) variables.waterSuctions);
-			outputToBuffer.add((ArrayList<Double>) variables.thetasNew);
-			outputToBuffer.add((ArrayList<Double>) variables.volumesNew);
-			outputToBuffer.add((ArrayList<Double>) variables.saturationDegree);
-			outputToBuffer.add((ArrayList<Double>) variables.darcyVelocities);
-			outputToBuffer.add((ArrayList<Double>) variables.darcyVelocities);
-			outputToBuffer.add((ArrayList<Double>) variables.darcyVelocities);
-			outputToBuffer.add(new ArrayList<Double>(Arrays.asList(variables.errorVolume)));
+			for(int member=0; member<ensembleMembers; member++) {
+				outputToBuffer.add(elementsToArrayList(variables.waterSuctions, member));
+				outputToBuffer.add(elementsToArrayList(variables.thetasNew, member));
+				outputToBuffer.add(elementsToArrayList(variables.volumesNew, member));
+				outputToBuffer.add(elementsToArrayList(variables.saturationDegree, member));
+				outputToBuffer.add(edgesToArrayList(variables.darcyVelocities, member));
+				outputToBuffer.add(edgesToArrayList(variables.darcyVelocities, member));
+				outputToBuffer.add(edgesToArrayList(variables.darcyVelocities, member));
+				outputToBuffer.add(new ArrayList<Double>(Arrays.asList(variables.memberErrorVolume[member])));
+			}
 			doProcessBuffer = true;
 
 		} else {
@@ -485,6 +821,117 @@ public class RichardsSolver2DMain {
 		step++;
 		//
 	} //// MAIN CYCLE END ////
+	
+	
+	
+	@Finalize
+	public void close() {
+		
+		if(solverTelemetry != null) {
+			solverTelemetry.close();
+		}
+		
+		if(pool != null) {
+			pool.shutdown();
+		}
+		
+	}
+	
+	
+	/*
+	 * Time step for the next time step, from the ratios between the targets and the number of Newton iterations,
+	 * the largest change of water suction and the volume error of the accepted one. The most restrictive ratio is used,
+	 * bounded between MIN_TIME_DELTA_REDUCTION and MAX_TIME_DELTA_GROWTH.
+	 * The number of Newton iterations does not decrease much with the time step, so it reduces the time step only
+	 * when it exceeds twice the target. The inexact Newton method trades more outer iterations for fewer CG iterations,
+	 * so its target is INEXACT_NEWTON_ITERATION_FACTOR times larger.
+	 * A time step shortened to reach the end of tTimeStep does not change the proposed one.
+	 * For an ensemble the largest change of water suction and volume error among the members are used.
+	 */
+	private void proposeTimeDelta(int newtonIterations, boolean lastTimeDelta) {
+		
+		if(lastTimeDelta) {
+			return;
+		}
+		
+		double maxWaterSuctionChange = 0.0;
+		for(int element=1; element<topology.elementNumber; element++) {
+			maxWaterSuctionChange = Math.max(maxWaterSuctionChange, Math.abs(variables.waterSuctions[element]-waterSuctionsSnapshot[element]));
+		}
+		
+		double target = typeForcingTerm.equalsIgnoreCase("None") ? targetNewtonIterations : INEXACT_NEWTON_ITERATION_FACTOR*targetNewtonIterations;
+		double factor = MAX_TIME_DELTA_GROWTH;
+		if(newtonIterations <= target) {
+			factor = Math.min(factor, target/Math.max(1, newtonIterations));
+		} else {
+			factor = Math.min(factor, Math.min(1.0, 2.0*target/newtonIterations));
+		}
+		if(maxWaterSuctionChange > 0.0) {
+			factor = Math.min(factor, targetWaterSuctionChange/maxWaterSuctionChange);
+		}
+		for(double errorVolume : variables.memberErrorVolume) {
+			if(errorVolume != 0.0) {
+				factor = Math.min(factor, targetErrorVolume/Math.abs(errorVolume));
+			}
+		}
+		factor = Math.max(MIN_TIME_DELTA_REDUCTION, factor);
+		
+		proposedTimeDelta = Math.max(timeDeltaMin, Math.min(factor*timeDelta, timeDeltaMax));
+		
+	}
+	
+	
+	
+	/*
+	 * Element quantity of the mesh inputs in the numbering of the solver
+	 */
+	private <T> List<T> elementsToSolver(List<T> list) {
+		
+		if(meshReordering != null) {
+			list = meshReordering.permuteElements(list);
+		}
+		return meshReplication == null ? list : meshReplication.replicate(list);
+		
+	}
+	
+	
+	
+	/*
+	 * Element and edge quantities of an ensemble member in the numbering of the mesh inputs
+	 */
+	private ArrayList<Double> elementsToArrayList(double[] array, int member) {
+		
+		if(meshReplication != null) {
+			array = meshReplication.member(array, member);
+		}
+		return meshReordering == null ? toArrayList(array) : meshReordering.elementsToOriginal(array);
+		
+	}
+	
+	
+	private ArrayList<Double> edgesToArrayList(double[] array, int member) {
+		
+		if(meshReplication != null) {
+			array = meshReplication.member(array, member);
+		}
+		return meshReordering == null ? toArrayList(array) : meshReordering.edgesToOriginal(array);
+		
+	}
+	
+	
+	
+	/*
+	 * The buffer works on ArrayList<Double>, values are boxed only when the output is saved
+	 */
+	private ArrayList<Double> toArrayList(double[] array) {
+		
+		ArrayList<Double> list = new ArrayList<Double>(array.length);
+		for(int i=0; i<array.length; i++) {
+			list.add(array[i]);
+		}
+		return list;
+		
+	}
 
 
 
@@ -0,0 +1,55 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.telemetry;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event of a call of the nested Newton algorithm, including the assembly of the right-hand side.
+ */
+@Name("it.geoframe.blogspot.whetgeo2d.NewtonSolve")
+@Label("Nested Newton Solve")
+@Category({"WHETGEO-2D"})
+@Description("Nested Newton solve of the Richards solver")
+class NewtonSolveEvent extends Event {
+
+	@Label("Outer Newton Iterations")
+	int newtonIterations;
+
+	@Label("Inner Newton Iterations")
+	int innerNewtonIterations;
+
+	@Label("CG Iterations")
+	int cgIterations;
+
+	@Label("Newton Residual")
+	double newtonResidual;
+
+	@Label("Converged")
+	boolean converged;
+
+	@Label("Predicted Initial Guess")
+	boolean predictedInitialGuess;
+
+}
@@ -0,0 +1,345 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.telemetry;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Counters and timers of the Richards solver, per time step and summed since the last call of {@link #reset()}.
+ * 
+ * The time is split in the phases THETAS (water contents and volumes), CONDUCTIVITY (hydraulic conductivity,
+ * interface conductivity and transmissibility), ASSEMBLY (matrix-free operator, right-hand side and main diagonal),
+ * NEWTON (nested Newton algorithm, CG included), CG (conjugate gradient) and FLUXES (post-step quantities and volume error).
+ * The counters are those of NestedNewtonPCG, the nested Newton algorithm of the numerical library does not report them.
+ * 
+ * When disabled the timers do not read the clock and nothing is summed over the time steps, so the cost is a branch per call.
+ * Each time step and each nested Newton solve is also a JDK Flight Recorder event, TimeStepEvent and NewtonSolveEvent:
+ * they are committed only if enabled in the recording, and the timers are read whenever TimeStepEvent is.
+ * If a file name is given, a line per time step is written in CSV format.
+ */
+public class SolverTelemetry {
+
+	public static final int THETAS = 0;
+	public static final int CONDUCTIVITY = 1;
+	public static final int ASSEMBLY = 2;
+	public static final int NEWTON = 3;
+	public static final int CG = 4;
+	public static final int FLUXES = 5;
+	public static final String[] PHASES = {"thetas", "conductivity", "assembly", "newton", "cg", "fluxes"};
+
+	private boolean enabled;
+	private boolean timing;
+
+	private long[] stepTimes = new long[PHASES.length];
+	private int stepNewtonIterations;
+	private int stepInnerNewtonIterations;
+	private int stepCGIterations;
+	private double stepNewtonResidual;
+
+	private long[] totalTimes = new long[PHASES.length];
+	private int newtonIterations;
+	private int innerNewtonIterations;
+	private int cgIterations;
+	private double newtonResidual;
+
+	private TimeStepEvent timeStepEvent;
+	private NewtonSolveEvent newtonSolveEvent;
+
+	private BufferedWriter writer;
+	private int timeStep;
+
+
+
+	/**
+	 * Disabled telemetry: only the JDK Flight Recorder events are committed, if enabled in the recording.
+	 */
+	public SolverTelemetry() {
+
+		this(false, null);
+
+	}
+
+
+
+	/**
+	 * @param enabled true to update the counters and the timers
+	 * @param fileName CSV file with a line per time step, null for none. It is used only if enabled.
+	 */
+	public SolverTelemetry(boolean enabled, String fileName) {
+
+		this.enabled = enabled;
+		timing = enabled;
+
+		if(enabled && fileName != null) {
+			try {
+				writer = new BufferedWriter(new FileWriter(fileName));
+				writer.write("date,timeStep,timeDelta,accepted,newtonIterations,innerNewtonIterations,cgIterations,newtonResidual,errorVolume");
+				for(String phase : PHASES) {
+					writer.write("," + phase);
+				}
+				writer.newLine();
+			} catch (IOException e) {
+				System.out.println("ERROR SolverTelemetry: unable to write " + fileName + ", " + e.getMessage());
+				writer = null;
+			}
+		}
+
+	}
+
+
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+
+
+	/**
+	 * @return start time of a phase, to be passed to {@link #stop(int, long)}, 0 if the timers are not used
+	 */
+	public long time() {
+
+		return timing ? System.nanoTime() : 0L;
+
+	}
+
+
+
+	/**
+	 * Add the time elapsed since start to the phase
+	 */
+	public void stop(int phase, long start) {
+
+		if(timing) {
+			stepTimes[phase] += System.nanoTime() - start;
+		}
+
+	}
+
+
+
+	public void beginTimeStep() {
+
+		timeStepEvent = new TimeStepEvent();
+		timing = enabled || timeStepEvent.isEnabled();
+		timeStepEvent.begin();
+
+		for(int phase=0; phase<PHASES.length; phase++) {
+			stepTimes[phase] = 0L;
+		}
+		stepNewtonIterations = 0;
+		stepInnerNewtonIterations = 0;
+		stepCGIterations = 0;
+		stepNewtonResidual = 0.0;
+
+	}
+
+
+
+	/**
+	 * @param date current date of the simulation, written in the CSV file, it can be null
+	 * @param timeDelta time step
+	 * @param accepted false if the time step is rejected and repeated with a shorter time step
+	 * @param errorVolume volume error of the time step
+	 */
+	public void endTimeStep(String date, double timeDelta, boolean accepted, double errorVolume) {
+
+		timeStepEvent.end();
+		if(timeStepEvent.shouldCommit()) {
+			timeStepEvent.timeDelta = timeDelta;
+			timeStepEvent.accepted = accepted;
+			timeStepEvent.newtonIterations = stepNewtonIterations;
+			timeStepEvent.innerNewtonIterations = stepInnerNewtonIterations;
+			timeStepEvent.cgIterations = stepCGIterations;
+			timeStepEvent.newtonResidual = stepNewtonResidual;
+			timeStepEvent.errorVolume = errorVolume;
+			timeStepEvent.thetasTime = stepTimes[THETAS];
+			timeStepEvent.conductivityTime = stepTimes[CONDUCTIVITY];
+			timeStepEvent.assemblyTime = stepTimes[ASSEMBLY];
+			timeStepEvent.newtonTime = stepTimes[NEWTON];
+			timeStepEvent.cgTime = stepTimes[CG];
+			timeStepEvent.fluxesTime = stepTimes[FLUXES];
+			timeStepEvent.commit();
+		}
+		timeStepEvent = null;
+
+		if(!enabled) {
+			return;
+		}
+
+		for(int phase=0; phase<PHASES.length; phase++) {
+			totalTimes[phase] += stepTimes[phase];
+		}
+		newtonIterations += stepNewtonIterations;
+		innerNewtonIterations += stepInnerNewtonIterations;
+		cgIterations += stepCGIterations;
+		newtonResidual = stepNewtonResidual;
+		timeStep++;
+
+		if(writer != null) {
+			try {
+				writer.write(String.format(Locale.ROOT, "%s,%d,%s,%d,%d,%d,%d,%s,%s", date == null ? "" : date, timeStep, Double.toString(timeDelta), accepted ? 1 : 0,
+						stepNewtonIterations, stepInnerNewtonIterations, stepCGIterations, Double.toString(stepNewtonResidual), Double.toString(errorVolume)));
+				for(int phase=0; phase<PHASES.length; phase++) {
+					writer.write("," + stepTimes[phase]*1e-9);
+				}
+				writer.newLine();
+			} catch (IOException e) {
+				System.out.println("ERROR SolverTelemetry: unable to write the CSV file, " + e.getMessage());
+				writer = null;
+			}
+		}
+
+	}
+
+
+
+	public void beginNewtonSolve() {
+
+		newtonSolveEvent = new NewtonSolveEvent();
+		newtonSolveEvent.begin();
+
+	}
+
+
+
+	/**
+	 * @param newtonIterations outer Newton iterations
+	 * @param innerNewtonIterations inner Newton iterations
+	 * @param cgIterations conjugate gradient iterations
+	 * @param newtonResidual norm of the last outer residual
+	 * @param converged true if the residual is below the tolerance
+	 * @param predictedInitialGuess true if the solve started from a predicted solution
+	 */
+	public void endNewtonSolve(int newtonIterations, int innerNewtonIterations, int cgIterations, double newtonResidual, boolean converged,
+			boolean predictedInitialGuess) {
+
+		newtonSolveEvent.end();
+		if(newtonSolveEvent.shouldCommit()) {
+			newtonSolveEvent.newtonIterations = newtonIterations;
+			newtonSolveEvent.innerNewtonIterations = innerNewtonIterations;
+			newtonSolveEvent.cgIterations = cgIterations;
+			newtonSolveEvent.newtonResidual = newtonResidual;
+			newtonSolveEvent.converged = converged;
+			newtonSolveEvent.predictedInitialGuess = predictedInitialGuess;
+			newtonSolveEvent.commit();
+		}
+		newtonSolveEvent = null;
+
+		stepNewtonIterations += newtonIterations;
+		stepInnerNewtonIterations += innerNewtonIterations;
+		stepCGIterations += cgIterations;
+		stepNewtonResidual = newtonResidual;
+
+	}
+
+
+
+	/**
+	 * Clear the counters and the timers summed over the time steps
+	 */
+	public void reset() {
+
+		for(int phase=0; phase<PHASES.length; phase++) {
+			totalTimes[phase] = 0L;
+		}
+		newtonIterations = 0;
+		innerNewtonIterations = 0;
+		cgIterations = 0;
+		newtonResidual = 0.0;
+
+	}
+
+
+
+	public int getNewtonIterations() {
+		return newtonIterations;
+	}
+
+
+	public int getInnerNewtonIterations() {
+		return innerNewtonIterations;
+	}
+
+
+	public int getCGIterations() {
+		return cgIterations;
+	}
+
+
+	/**
+	 * @return norm of the last outer residual of the last time step
+	 */
+	public double getNewtonResidual() {
+		return newtonResidual;
+	}
+
+
+	/**
+	 * @return time of each phase in seconds, in the order of PHASES
+	 */
+	public ArrayList<Double> getPhaseTimes() {
+
+		ArrayList<Double> phaseTimes = new ArrayList<Double>(PHASES.length);
+		for(int phase=0; phase<PHASES.length; phase++) {
+			phaseTimes.add(totalTimes[phase]*1e-9);
+		}
+		return phaseTimes;
+
+	}
+
+
+
+	/**
+	 * Write the buffered CSV lines to the file
+	 */
+	public void flush() {
+
+		if(writer != null) {
+			try {
+				writer.flush();
+			} catch (IOException e) {
+				System.out.println("ERROR SolverTelemetry: unable to write the CSV file, " + e.getMessage());
+				writer = null;
+			}
+		}
+
+	}
+
+
+
+	public void close() {
+
+		if(writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				System.out.println("ERROR SolverTelemetry: unable to close the CSV file, " + e.getMessage());
+			}
+			writer = null;
+		}
+
+	}
+
+}
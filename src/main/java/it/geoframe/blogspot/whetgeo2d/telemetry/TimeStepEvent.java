@@ -0,0 +1,84 @@
+/*
+ * GNU GPL v3 License
+ *
+ * Copyright 2019  Niccolo` Tubini
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.geoframe.blogspot.whetgeo2d.telemetry;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder event of a time step of the Richards solver, accepted or rejected.
+ * The duration of the event is the one of the time step, the phase times are those of {@link SolverTelemetry}.
+ */
+@Name("it.geoframe.blogspot.whetgeo2d.TimeStep")
+@Label("Richards Time Step")
+@Category({"WHETGEO-2D"})
+@Description("Time step of the Richards solver")
+class TimeStepEvent extends Event {
+
+	@Label("Time Delta")
+	double timeDelta;
+
+	@Label("Accepted")
+	boolean accepted;
+
+	@Label("Outer Newton Iterations")
+	int newtonIterations;
+
+	@Label("Inner Newton Iterations")
+	int innerNewtonIterations;
+
+	@Label("CG Iterations")
+	int cgIterations;
+
+	@Label("Newton Residual")
+	double newtonResidual;
+
+	@Label("Error Volume")
+	double errorVolume;
+
+	@Label("Thetas")
+	@Timespan(Timespan.NANOSECONDS)
+	long thetasTime;
+
+	@Label("Conductivity")
+	@Timespan(Timespan.NANOSECONDS)
+	long conductivityTime;
+
+	@Label("Assembly")
+	@Timespan(Timespan.NANOSECONDS)
+	long assemblyTime;
+
+	@Label("Newton")
+	@Timespan(Timespan.NANOSECONDS)
+	long newtonTime;
+
+	@Label("CG")
+	@Timespan(Timespan.NANOSECONDS)
+	long cgTime;
+
+	@Label("Fluxes")
+	@Timespan(Timespan.NANOSECONDS)
+	long fluxesTime;
+
+}